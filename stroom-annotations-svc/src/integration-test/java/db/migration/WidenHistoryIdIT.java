@@ -0,0 +1,230 @@
+package db.migration;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import stroom.annotations.App;
+import stroom.annotations.DatabaseRule;
+import stroom.annotations.config.Config;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.HistoryOperation;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+import stroom.query.testing.DropwizardAppWithClientsRule;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the migration that widens the history ID against copies of the history and outbox tables, as they were
+ * before it, while other connections keep inserting history and coalescing it away.
+ */
+public class WidenHistoryIdIT {
+
+    private static final String HISTORY = "annotation_history_widen_it";
+    private static final String OUTBOX = "annotation_outbox_widen_it";
+
+    /**
+     * Enough to be copied in more than one chunk
+     */
+    private static final int EXISTING_ROWS = 25000;
+
+    /**
+     * The rows at the top of the existing history are deleted, so the next ID is not simply one more than the highest
+     */
+    private static final int DELETED_FROM_TOP = 100;
+
+    private static final int WRITERS = 4;
+
+    @ClassRule
+    public static final DropwizardAppWithClientsRule<Config> appRule =
+            new DropwizardAppWithClientsRule<>(App.class, resourceFilePath("config_noauth.yml"));
+
+    @Rule
+    public DatabaseRule databaseRule = new DatabaseRule(appRule::getConfiguration);
+
+    private final Table<?> historyTable = DSL.table(HISTORY);
+
+    private final String index = UUID.randomUUID().toString();
+
+    @Before
+    public void createTables() {
+        final DSLContext database = databaseRule.database();
+        dropTables();
+
+        // The history as it was before the migration, without the columns added after it
+        database.execute(String.format("CREATE TABLE %s LIKE annotation_history", HISTORY));
+        database.execute(String.format("ALTER TABLE %s DROP COLUMN compressedContent, DROP COLUMN insertTime", HISTORY));
+        database.execute(String.format("ALTER TABLE %s MODIFY id INT NOT NULL AUTO_INCREMENT", HISTORY));
+        database.execute(String.format("CREATE TABLE %s LIKE annotation_outbox", OUTBOX));
+        database.execute(String.format("ALTER TABLE %s MODIFY historyId INT NOT NULL", OUTBOX));
+    }
+
+    @After
+    public void dropTables() {
+        final DSLContext database = databaseRule.database();
+        database.execute(String.format("DROP TABLE IF EXISTS %s, %s_wide, %s_narrow, %s", HISTORY, HISTORY, HISTORY, OUTBOX));
+    }
+
+    @Test
+    public void testMigrationWhileWriting() throws Exception {
+        final DSLContext database = databaseRule.database();
+
+        withConnection(connection -> insertHistory(DSL.using(connection, SQLDialect.MYSQL), UUID.randomUUID().toString()));
+        while (database.fetchCount(historyTable) < EXISTING_ROWS) {
+            database.execute(String.format("INSERT INTO %s (dataSourceUuid, operation, annotationId, status, content, " +
+                    "updateUser, updateTime, createUser, createTime) " +
+                    "SELECT dataSourceUuid, operation, UUID(), status, content, updateUser, updateTime, createUser, createTime " +
+                    "FROM %s", HISTORY, HISTORY));
+        }
+        database.execute(String.format("UPDATE %s SET content = annotationId", HISTORY));
+
+        final Set<Long> expectedIds = ConcurrentHashMap.newKeySet();
+        expectedIds.addAll(database.select(AnnotationHistory.ID_FIELD).from(historyTable).fetch(AnnotationHistory.ID_FIELD));
+        final List<Long> topIds = database.select(AnnotationHistory.ID_FIELD)
+                .from(historyTable)
+                .orderBy(AnnotationHistory.ID_FIELD.desc())
+                .limit(DELETED_FROM_TOP)
+                .fetch(AnnotationHistory.ID_FIELD);
+        database.deleteFrom(historyTable).where(AnnotationHistory.ID_FIELD.in(topIds)).execute();
+        expectedIds.removeAll(topIds);
+        final long nextIdBefore = getNextId(database);
+
+        // Each writer inserts history, and coalesces away every other point it inserted, until the migration is done
+        final AtomicBoolean migrating = new AtomicBoolean(true);
+        final Set<Long> handedOut = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        final List<Future<Integer>> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            writers.add(executor.submit(() -> withConnection(connection -> {
+                final DSLContext writer = DSL.using(connection, SQLDialect.MYSQL);
+                int written = 0;
+                while (migrating.get()) {
+                    final long id = insertHistory(writer, UUID.randomUUID().toString());
+                    handedOut.add(id);
+                    expectedIds.add(id);
+                    if (written % 2 == 1) {
+                        writer.deleteFrom(historyTable).where(AnnotationHistory.ID_FIELD.equal(id)).execute();
+                        expectedIds.remove(id);
+                    }
+                    written++;
+                }
+                return written;
+            })));
+        }
+
+        try {
+            withConnection(connection -> {
+                connection.setAutoCommit(false);
+                try {
+                    new V9__Widen_history_id(HISTORY, OUTBOX).migrate(connection);
+                    connection.commit();
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            });
+        } finally {
+            migrating.set(false);
+            executor.shutdown();
+        }
+        for (final Future<Integer> writer : writers) {
+            assertTrue(writer.get(30, TimeUnit.SECONDS) > 0);
+        }
+
+        // Every row written before or during the migration is there, and only those
+        final Set<Long> ids = new HashSet<>(database.select(AnnotationHistory.ID_FIELD)
+                .from(historyTable)
+                .fetch(AnnotationHistory.ID_FIELD));
+        assertEquals(expectedIds, ids);
+        assertEquals(0, database.fetchCount(historyTable,
+                Annotation.CONTENT_FIELD.notEqual(AnnotationHistory.ANNOTATION_ID_FIELD)));
+
+        assertEquals("BIGINT UNSIGNED", getColumnType(database, HISTORY, "id"));
+        assertEquals("BIGINT UNSIGNED", getColumnType(database, OUTBOX, "historyId"));
+
+        // Numbering carries on from the old table, so no ID is handed out twice
+        assertTrue(getNextId(database) >= nextIdBefore);
+        final long nextId = withConnection(connection ->
+                insertHistory(DSL.using(connection, SQLDialect.MYSQL), UUID.randomUUID().toString()));
+        assertTrue(nextId >= nextIdBefore);
+        assertTrue(handedOut.stream().allMatch(id -> id < nextId));
+    }
+
+    /**
+     * @param database A context on a single connection, so the ID can be read back
+     * @return The ID of the history point inserted
+     */
+    private long insertHistory(final DSLContext database, final String annotationId) {
+        final ULong now = ULong.valueOf(System.currentTimeMillis());
+        database.insertInto(historyTable)
+                .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, AnnotationHistory.ANNOTATION_ID_FIELD,
+                        AnnotationHistory.OPERATION_FIELD, Annotation.STATUS_FIELD, Annotation.CONTENT_FIELD,
+                        DocRefJooqEntity.UPDATE_USER_FIELD, DocRefJooqEntity.UPDATE_TIME_FIELD,
+                        DocRefJooqEntity.CREATE_USER_FIELD, DocRefJooqEntity.CREATE_TIME_FIELD)
+                .values(index, annotationId, HistoryOperation.UPDATE.toString(), Annotation.DEFAULT_STATUS.toString(),
+                        annotationId, "widenIT", now, "widenIT", now)
+                .execute();
+        return database.select(DSL.field("last_insert_id()", Long.class)).fetchOne(0, Long.class);
+    }
+
+    private static long getNextId(final DSLContext database) {
+        return database.select(DSL.field("AUTO_INCREMENT", Long.class))
+                .from(DSL.table("information_schema.TABLES"))
+                .where(DSL.field("TABLE_SCHEMA").equal(DSL.field("DATABASE()")))
+                .and(DSL.field("TABLE_NAME").equal(HISTORY))
+                .fetchOne(0, Long.class);
+    }
+
+    private static String getColumnType(final DSLContext database,
+                                        final String table,
+                                        final String column) {
+        return database.select(DSL.field("COLUMN_TYPE", String.class))
+                .from(DSL.table("information_schema.COLUMNS"))
+                .where(DSL.field("TABLE_SCHEMA").equal(DSL.field("DATABASE()")))
+                .and(DSL.field("TABLE_NAME").equal(table))
+                .and(DSL.field("COLUMN_NAME").equal(column))
+                .fetchOne(0, String.class)
+                .toUpperCase()
+                .replaceAll("\\(\\d+\\)", "");
+    }
+
+    @FunctionalInterface
+    private interface ConnectionCallable<T> {
+        T call(Connection connection) throws Exception;
+    }
+
+    /**
+     * Runs the callable on one connection of its own, so that last_insert_id() and the transaction are its own
+     */
+    private <T> T withConnection(final ConnectionCallable<T> callable) throws Exception {
+        final Connection connection = databaseRule.database().configuration().connectionProvider().acquire();
+        try {
+            return callable.call(connection);
+        } finally {
+            databaseRule.database().configuration().connectionProvider().release(connection);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package stroom.annotations;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.db.ManagedDataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.rules.ExternalResource;
+import stroom.annotations.config.Config;
+
+import java.util.function.Supplier;
+
+/**
+ * Connects to the database of the service under test for the duration of a test, so that tests can check,
+ * or set up, the rows behind the API.
+ */
+public class DatabaseRule extends ExternalResource {
+    private final Supplier<Config> configSupplier;
+
+    private ManagedDataSource dataSource;
+    private DSLContext database;
+
+    /**
+     * @param configSupplier Supplies the configuration of the running service, read once the test starts
+     */
+    public DatabaseRule(final Supplier<Config> configSupplier) {
+        this.configSupplier = configSupplier;
+    }
+
+    public DSLContext database() {
+        return database;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        dataSource = configSupplier.get().getDataSourceFactory().build(new MetricRegistry(), "test");
+        database = DSL.using(dataSource, SQLDialect.MYSQL);
+    }
+
+    @Override
+    protected void after() {
+        try {
+            dataSource.stop();
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
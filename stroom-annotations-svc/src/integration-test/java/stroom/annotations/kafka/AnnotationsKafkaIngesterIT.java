@@ -0,0 +1,350 @@
+package stroom.annotations.kafka;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import io.dropwizard.jackson.Jackson;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.eclipse.jetty.http.HttpStatus;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import stroom.annotations.App;
+import stroom.annotations.DatabaseRule;
+import stroom.annotations.client.AnnotationsHttpClient;
+import stroom.annotations.config.Config;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.model.Status;
+import stroom.annotations.service.AnnotationCounts;
+import stroom.query.api.v2.DocRef;
+import stroom.query.audit.authorisation.DocumentPermission;
+import stroom.query.audit.client.DocRefResourceHttpClient;
+import stroom.query.testing.DropwizardAppWithClientsRule;
+import stroom.query.testing.StroomAuthenticationRule;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnnotationsKafkaIngesterIT {
+
+    private static final String TOPIC = "stroom-annotations-ingest-it";
+
+    private static final long INGEST_TIMEOUT_MS = 30000;
+
+    public static final EmbeddedKafkaRule kafkaRule = new EmbeddedKafkaRule(12181, 19092);
+
+    public static final DropwizardAppWithClientsRule<Config> appRule =
+            new DropwizardAppWithClientsRule<>(App.class, resourceFilePath("config_kafka.yml"));
+
+    public static StroomAuthenticationRule authRule =
+            new StroomAuthenticationRule(WireMockConfiguration.options().port(10080));
+
+    // The broker must be up before the application starts consuming from it
+    @ClassRule
+    public static final RuleChain rules = RuleChain.outerRule(kafkaRule)
+            .around(authRule)
+            .around(appRule);
+
+    @Rule
+    public DatabaseRule databaseRule = new DatabaseRule(appRule::getConfiguration);
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+    private final AnnotationsHttpClient annotationsClient;
+    private final DocRefResourceHttpClient<AnnotationsDocRefEntity> docRefClient;
+
+    public AnnotationsKafkaIngesterIT() {
+        annotationsClient = appRule.getClient(AnnotationsHttpClient::new);
+        docRefClient = appRule.getClient(DocRefResourceHttpClient::new);
+    }
+
+    @Test
+    public void testIngestCreatesAnnotations() throws Exception {
+        final DocRef docRef = createDocument();
+
+        final int RECORDS_TO_INGEST = 10;
+        final List<Annotation> annotations = IntStream.range(0, RECORDS_TO_INGEST)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .dataSourceUuid(docRef.getUuid())
+                        .content(UUID.randomUUID().toString())
+                        .assignTo(UUID.randomUUID().toString())
+                        .status(Status.OPEN_ESCALATED)
+                        .build())
+                .collect(Collectors.toList());
+
+        final RecordMetadata lastSent;
+        try (final KafkaProducer<String, String> producer = createProducer()) {
+            for (final Annotation annotation : annotations) {
+                producer.send(new ProducerRecord<>(TOPIC,
+                        annotation.getId(),
+                        objectMapper.writeValueAsString(annotation))).get();
+            }
+            // Sending the first one again should not create a second history point
+            lastSent = producer.send(new ProducerRecord<>(TOPIC,
+                    annotations.get(0).getId(),
+                    objectMapper.writeValueAsString(annotations.get(0)))).get();
+        }
+
+        // Only once the duplicate has been consumed does its history show whether it was ignored
+        waitForCommittedOffset(lastSent);
+
+        for (final Annotation annotation : annotations) {
+            final Annotation ingested = waitForAnnotation(docRef.getUuid(), annotation.getId());
+            assertEquals(annotation.getContent(), ingested.getContent());
+            assertEquals(annotation.getAssignTo(), ingested.getAssignTo());
+            assertEquals(annotation.getStatus(), ingested.getStatus());
+        }
+
+        final Response historyResponse = annotationsClient.getHistory(authRule.adminUser(),
+                docRef.getUuid(),
+                annotations.get(0).getId());
+        assertEquals(HttpStatus.OK_200, historyResponse.getStatus());
+        final List<AnnotationHistory> history = historyResponse.readEntity(new GenericType<List<AnnotationHistory>>(){});
+        assertEquals(1, history.size());
+        assertEquals(HistoryOperation.CREATE, history.get(0).getOperation());
+    }
+
+    @Test
+    public void testIngestSkipsRecordsThatCannotBeWritten() throws Exception {
+        final DocRef docRef = createDocument();
+        final Meter rejected = appRule.getEnvironment().metrics()
+                .meter(MetricRegistry.name(AnnotationsKafkaIngester.class, "rejected"));
+        final long rejectedBefore = rejected.getCount();
+
+        final Annotation tooLong = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .dataSourceUuid(docRef.getUuid())
+                .content(String.join("", Collections.nCopies(Annotation.MAX_CONTENT_LENGTH + 1, "x")))
+                .build();
+        final Annotation tooShort = new Annotation.Builder().id("x")
+                .dataSourceUuid(docRef.getUuid())
+                .build();
+        final Annotation valid = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .dataSourceUuid(docRef.getUuid())
+                .content(UUID.randomUUID().toString())
+                .build();
+
+        final RecordMetadata lastSent;
+        try (final KafkaProducer<String, String> producer = createProducer()) {
+            producer.send(new ProducerRecord<>(TOPIC, tooLong.getId(), objectMapper.writeValueAsString(tooLong))).get();
+            producer.send(new ProducerRecord<>(TOPIC, tooShort.getId(), objectMapper.writeValueAsString(tooShort))).get();
+            producer.send(new ProducerRecord<>(TOPIC, "malformed", "{not json")).get();
+            lastSent = producer.send(new ProducerRecord<>(TOPIC, valid.getId(), objectMapper.writeValueAsString(valid))).get();
+        }
+
+        // The records that can never be written are skipped rather than holding up the one after them
+        waitForCommittedOffset(lastSent);
+        assertEquals(valid.getContent(), waitForAnnotation(docRef.getUuid(), valid.getId()).getContent());
+        assertEquals(HttpStatus.NOT_FOUND_404,
+                annotationsClient.get(authRule.adminUser(), docRef.getUuid(), tooLong.getId()).getStatus());
+        assertEquals(rejectedBefore + 3, rejected.getCount());
+    }
+
+    @Test
+    public void testSlowTransactionDoesNotSkipSettledHistory() throws Exception {
+        final DocRef followed = createDocument();
+        final DocRef blocked = createDocument();
+        final long settleMillis = appRule.getConfiguration().getChangeFeedConfig().getSettleTime().toMilliseconds();
+        final Meter slowTransactions = appRule.getEnvironment().metrics()
+                .meter(MetricRegistry.name(AnnotationsKafkaIngester.class, "slowTransactions"));
+        final long slowTransactionsBefore = slowTransactions.getCount();
+
+        // Another transaction holds the count row the blocked index needs, for several times the settle time
+        final String blockedAssignee = UUID.randomUUID().toString();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<?> holder = executor.submit(() -> databaseRule.database().transaction(configuration -> {
+            AnnotationCounts.add(configuration, blocked.getUuid(), Status.OPEN_ESCALATED.toString(), blockedAssignee, 0);
+            locked.countDown();
+            Thread.sleep(settleMillis * 4);
+        }));
+        executor.shutdown();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+        // One poll with the followed index first, so its annotations would share a transaction with the blocked ones
+        final List<Annotation> followedAnnotations = createAnnotations(followed, UUID.randomUUID().toString());
+        final List<Annotation> blockedAnnotations = createAnnotations(blocked, blockedAssignee);
+        try (final KafkaProducer<String, String> producer = createProducer()) {
+            for (final Annotation annotation : followedAnnotations) {
+                producer.send(new ProducerRecord<>(TOPIC, annotation.getId(), objectMapper.writeValueAsString(annotation)));
+            }
+            for (final Annotation annotation : blockedAnnotations) {
+                producer.send(new ProducerRecord<>(TOPIC, annotation.getId(), objectMapper.writeValueAsString(annotation)));
+            }
+            producer.flush();
+        }
+
+        final Set<String> expected = new HashSet<>();
+        followedAnnotations.forEach(annotation -> expected.add(annotation.getId()));
+
+        // Meanwhile annotations created through the API take later history IDs, which settle and move the reader on
+        final Set<String> seen = new HashSet<>();
+        Long cursor = null;
+        for (int i = 0; i < 3; i++) {
+            final String id = UUID.randomUUID().toString();
+            final Response createResponse = annotationsClient.create(authRule.adminUser(), followed.getUuid(), id);
+            assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+            createResponse.close();
+            expected.add(id);
+
+            Thread.sleep(settleMillis);
+            cursor = follow(followed, cursor, seen);
+        }
+
+        final long deadline = System.currentTimeMillis() + INGEST_TIMEOUT_MS;
+        while (!seen.containsAll(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            cursor = follow(followed, cursor, seen);
+        }
+        holder.get(10, TimeUnit.SECONDS);
+
+        // Nothing the reader moved past was committed after it had done so
+        assertEquals(expected, seen);
+
+        // The blocked annotations were rolled back rather than held open, and written once the lock was released
+        assertTrue(slowTransactions.getCount() > slowTransactionsBefore);
+        for (final Annotation annotation : blockedAnnotations) {
+            assertEquals(annotation.getContent(), waitForAnnotation(blocked.getUuid(), annotation.getId()).getContent());
+        }
+    }
+
+    private List<Annotation> createAnnotations(final DocRef docRef,
+                                               final String assignTo) {
+        final List<Annotation> annotations = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            annotations.add(new Annotation.Builder().id(UUID.randomUUID().toString())
+                    .dataSourceUuid(docRef.getUuid())
+                    .content(UUID.randomUUID().toString())
+                    .assignTo(assignTo)
+                    .status(Status.OPEN_ESCALATED)
+                    .build());
+        }
+        return annotations;
+    }
+
+    /**
+     * Reads the change feed of an index from a cursor, as a client following it would
+     * @param docRef The index to follow
+     * @param cursor The ID of the last change seen, null to start from the beginning
+     * @param seen The IDs of the annotations seen so far, added to
+     * @return The cursor to read from next
+     */
+    private Long follow(final DocRef docRef,
+                        final Long cursor,
+                        final Set<String> seen) {
+        final Response response = annotationsClient.feed(authRule.adminUser(), docRef.getUuid(), cursor, 100);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        final List<AnnotationHistory> changes = response.readEntity(new GenericType<List<AnnotationHistory>>(){});
+
+        changes.forEach(change -> seen.add(change.getAnnotationId()));
+        return changes.isEmpty() ? cursor : changes.get(changes.size() - 1).getId();
+    }
+
+    private KafkaProducer<String, String> createProducer() {
+        final Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaRule.getBootstrapServers());
+        return new KafkaProducer<>(properties, new StringSerializer(), new StringSerializer());
+    }
+
+    /**
+     * Waits until the ingester has committed the offset after a record, so that record has been dealt with
+     * @param sent The record sent
+     */
+    private void waitForCommittedOffset(final RecordMetadata sent) throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaRule.getBootstrapServers());
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG,
+                appRule.getConfiguration().getKafkaIngestConfig().getGroupId());
+
+        final TopicPartition partition = new TopicPartition(sent.topic(), sent.partition());
+        try (final KafkaConsumer<String, String> consumer =
+                     new KafkaConsumer<>(properties, new StringDeserializer(), new StringDeserializer())) {
+            final long deadline = System.currentTimeMillis() + INGEST_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                final OffsetAndMetadata committed = consumer.committed(partition);
+                if (null != committed && committed.offset() > sent.offset()) {
+                    return;
+                }
+                Thread.sleep(100);
+            }
+        }
+
+        throw new AssertionError(String.format("Offset %d was not committed", sent.offset()));
+    }
+
+    /**
+     * Polls the service until the annotation has been ingested
+     * @param index The index the annotation belongs to
+     * @param id The ID of the annotation
+     * @return The annotation as ingested
+     */
+    private Annotation waitForAnnotation(final String index, final String id) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + INGEST_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            final Response response = annotationsClient.get(authRule.adminUser(), index, id);
+            if (response.getStatus() == HttpStatus.OK_200) {
+                return response.readEntity(Annotation.class);
+            }
+            response.close();
+            Thread.sleep(100);
+        }
+
+        throw new AssertionError(String.format("Annotation %s was not ingested", id));
+    }
+
+    /**
+     * Utility function to randomly generate a new annotations index doc ref.
+     * It will also give READ, UPDATE, DELETE permissions to the admin user.
+     * @return The DocRef of the newly created annotations index.
+     */
+    private DocRef createDocument() {
+        final DocRef docRef = new DocRef.Builder()
+                .uuid(UUID.randomUUID().toString())
+                .type(AnnotationsDocRefEntity.TYPE)
+                .name(UUID.randomUUID().toString())
+                .build();
+
+        final Response createResponse = docRefClient.createDocument(authRule.adminUser(), docRef.getUuid(), docRef.getName());
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+
+        authRule.permitAdminUser()
+                .docRef(docRef)
+                .permission(DocumentPermission.READ)
+                .permission(DocumentPermission.DELETE)
+                .permission(DocumentPermission.UPDATE)
+                .done();
+
+        return docRef;
+    }
+}
@@ -0,0 +1,149 @@
+package stroom.annotations.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import io.dropwizard.jackson.Jackson;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.jetty.http.HttpStatus;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import stroom.annotations.App;
+import stroom.annotations.client.AnnotationsHttpClient;
+import stroom.annotations.config.Config;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.model.Status;
+import stroom.query.api.v2.DocRef;
+import stroom.query.audit.authorisation.DocumentPermission;
+import stroom.query.audit.client.DocRefResourceHttpClient;
+import stroom.query.testing.DropwizardAppWithClientsRule;
+import stroom.query.testing.StroomAuthenticationRule;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
+import static org.junit.Assert.assertEquals;
+
+public class AnnotationsKafkaPublisherIT {
+
+    private static final String TOPIC = "stroom-annotations-it";
+
+    private static final long CONSUME_TIMEOUT_MS = 30000;
+
+    public static final EmbeddedKafkaRule kafkaRule = new EmbeddedKafkaRule(12181, 19092);
+
+    public static final DropwizardAppWithClientsRule<Config> appRule =
+            new DropwizardAppWithClientsRule<>(App.class, resourceFilePath("config_kafka.yml"));
+
+    public static StroomAuthenticationRule authRule =
+            new StroomAuthenticationRule(WireMockConfiguration.options().port(10080));
+
+    // The broker must be up before the application starts relaying to it
+    @ClassRule
+    public static final RuleChain rules = RuleChain.outerRule(kafkaRule)
+            .around(authRule)
+            .around(appRule);
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+    private final AnnotationsHttpClient annotationsClient;
+    private final DocRefResourceHttpClient<AnnotationsDocRefEntity> docRefClient;
+
+    public AnnotationsKafkaPublisherIT() {
+        annotationsClient = appRule.getClient(AnnotationsHttpClient::new);
+        docRefClient = appRule.getClient(DocRefResourceHttpClient::new);
+    }
+
+    @Test
+    public void testMutationsArePublished() throws Exception {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+
+        final Response createResponse = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+        final Response updateResponse = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), annotation.getId(), annotation);
+        assertEquals(HttpStatus.OK_200, updateResponse.getStatus());
+        final Response deleteResponse = annotationsClient.remove(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        assertEquals(HttpStatus.OK_200, deleteResponse.getStatus());
+
+        final String expectedKey = String.format("%s:%s", docRef.getUuid(), annotation.getId());
+        final List<AnnotationHistory> published = consume(expectedKey, 3);
+
+        assertEquals(HistoryOperation.CREATE, published.get(0).getOperation());
+        assertEquals(HistoryOperation.UPDATE, published.get(1).getOperation());
+        assertEquals(annotation.getContent(), published.get(1).getContent());
+        assertEquals(HistoryOperation.DELETE, published.get(2).getOperation());
+    }
+
+    /**
+     * Reads the topic from the beginning until the expected number of records with the given key have arrived
+     * @param key The key of the records to gather
+     * @param expected The number of records to wait for
+     * @return The history points published with that key, in the order they were published
+     */
+    private List<AnnotationHistory> consume(final String key, final int expected) throws Exception {
+        final Properties properties = new Properties();
+        properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaRule.getBootstrapServers());
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG, UUID.randomUUID().toString());
+        properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+
+        final List<AnnotationHistory> results = new ArrayList<>();
+        try (final KafkaConsumer<String, String> consumer =
+                     new KafkaConsumer<>(properties, new StringDeserializer(), new StringDeserializer())) {
+            consumer.subscribe(Collections.singletonList(TOPIC));
+
+            final long deadline = System.currentTimeMillis() + CONSUME_TIMEOUT_MS;
+            while (results.size() < expected && System.currentTimeMillis() < deadline) {
+                for (final ConsumerRecord<String, String> record : consumer.poll(500)) {
+                    if (key.equals(record.key())) {
+                        results.add(objectMapper.readValue(record.value(), AnnotationHistory.class));
+                    }
+                }
+            }
+        }
+
+        assertEquals(expected, results.size());
+
+        return results;
+    }
+
+    /**
+     * Utility function to randomly generate a new annotations index doc ref.
+     * It will also give READ, UPDATE, DELETE permissions to the admin user.
+     * @return The DocRef of the newly created annotations index.
+     */
+    private DocRef createDocument() {
+        final DocRef docRef = new DocRef.Builder()
+                .uuid(UUID.randomUUID().toString())
+                .type(AnnotationsDocRefEntity.TYPE)
+                .name(UUID.randomUUID().toString())
+                .build();
+
+        final Response createResponse = docRefClient.createDocument(authRule.adminUser(), docRef.getUuid(), docRef.getName());
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+
+        authRule.permitAdminUser()
+                .docRef(docRef)
+                .permission(DocumentPermission.READ)
+                .permission(DocumentPermission.DELETE)
+                .permission(DocumentPermission.UPDATE)
+                .done();
+
+        return docRef;
+    }
+}
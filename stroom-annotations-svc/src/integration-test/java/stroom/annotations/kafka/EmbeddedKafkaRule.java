@@ -0,0 +1,73 @@
+package stroom.annotations.kafka;
+
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServerStartable;
+import org.apache.curator.test.TestingServer;
+import org.junit.rules.ExternalResource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Runs a single Kafka broker, and the Zookeeper it needs, for the duration of a test class.
+ */
+public class EmbeddedKafkaRule extends ExternalResource {
+    private final int zookeeperPort;
+    private final int kafkaPort;
+
+    private TestingServer zookeeper;
+    private KafkaServerStartable kafka;
+    private File logDir;
+
+    public EmbeddedKafkaRule(final int zookeeperPort,
+                             final int kafkaPort) {
+        this.zookeeperPort = zookeeperPort;
+        this.kafkaPort = kafkaPort;
+    }
+
+    public String getBootstrapServers() {
+        return String.format("localhost:%d", kafkaPort);
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        zookeeper = new TestingServer(zookeeperPort, true);
+        logDir = Files.createTempDirectory("embedded-kafka").toFile();
+
+        final Properties properties = new Properties();
+        properties.put("zookeeper.connect", zookeeper.getConnectString());
+        properties.put("broker.id", "0");
+        properties.put("listeners", String.format("PLAINTEXT://localhost:%d", kafkaPort));
+        properties.put("log.dirs", logDir.getAbsolutePath());
+        properties.put("num.partitions", "1");
+        properties.put("auto.create.topics.enable", "true");
+        properties.put("offsets.topic.replication.factor", "1");
+
+        kafka = new KafkaServerStartable(new KafkaConfig(properties));
+        kafka.startup();
+    }
+
+    @Override
+    protected void after() {
+        try {
+            kafka.shutdown();
+            kafka.awaitShutdown();
+            zookeeper.close();
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            deleteRecursively(logDir);
+        }
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,39 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.util.Duration;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolHealthCheckIT {
+
+    private static final Duration THRESHOLD = Duration.milliseconds(250);
+    private static final Duration WINDOW = Duration.seconds(1);
+
+    @Test
+    public void testOnlyRecentWaitsCount() throws InterruptedException {
+        final Timer acquireTimer = new Timer(new SlidingTimeWindowReservoir(WINDOW.toMilliseconds(), TimeUnit.MILLISECONDS));
+        final ConnectionPoolHealthCheck healthCheck = new ConnectionPoolHealthCheck(acquireTimer, THRESHOLD, WINDOW);
+
+        // A pool nobody has used is healthy
+        assertTrue(healthCheck.execute().isHealthy());
+
+        acquireTimer.update(10, TimeUnit.MILLISECONDS);
+        assertTrue(healthCheck.execute().isHealthy());
+
+        acquireTimer.update(500, TimeUnit.MILLISECONDS);
+        final HealthCheck.Result saturated = healthCheck.execute();
+        assertFalse(saturated.getMessage(), saturated.isHealthy());
+
+        // Once the slow waits have left the window, the pool is healthy again without any new connections
+        Thread.sleep(WINDOW.toMilliseconds() * 2);
+        final HealthCheck.Result recovered = healthCheck.execute();
+        assertTrue(recovered.getMessage(), recovered.isHealthy());
+    }
+}
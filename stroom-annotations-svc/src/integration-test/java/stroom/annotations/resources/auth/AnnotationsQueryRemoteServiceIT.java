@@ -1,5 +1,7 @@
 package stroom.annotations.resources.auth;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import org.eclipse.jetty.http.HttpStatus;
 import org.junit.ClassRule;
@@ -11,6 +13,8 @@ import stroom.annotations.model.AnnotationsDocRefEntity;
 import stroom.annotations.model.Status;
 import stroom.annotations.client.AnnotationsHttpClient;
 import stroom.annotations.resources.AuditedAnnotationsResourceImpl;
+import stroom.annotations.service.AnnotationsQueryServiceImpl;
+import stroom.annotations.service.SearchResultCache;
 import stroom.datasource.api.v2.DataSource;
 import stroom.datasource.api.v2.DataSourceField;
 import stroom.query.api.v2.DocRef;
@@ -38,6 +42,7 @@ import stroom.query.testing.QueryRemoteServiceIT;
 import stroom.query.testing.StroomAuthenticationRule;
 
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,6 +50,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -211,6 +220,110 @@ public class AnnotationsQueryRemoteServiceIT extends QueryRemoteServiceIT<Annota
         );
     }
 
+    @Test
+    public void testCountByStatus() throws QueryApiException {
+        final DocRef docRef = createDocument();
+
+        final Map<Status, Integer> expectedCounts = new HashMap<>();
+        expectedCounts.put(Status.OPEN_ESCALATED, 3);
+        expectedCounts.put(Status.CLOSED_DUPLICATE, 2);
+
+        expectedCounts.forEach((status, count) -> IntStream.range(0, count)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .dataSourceUuid(docRef.getUuid())
+                        .content("Some Content")
+                        .assignTo("Some Guy")
+                        .status(status)
+                        .build())
+                .forEach(a -> this.createAndUpdateAnnotation(docRef.getUuid(), a)));
+
+        final Map<String, Long> counts = searchCountsByStatus(docRef);
+
+        assertEquals(expectedCounts.entrySet().stream()
+                        .collect(Collectors.toMap(e -> e.getKey().toString(), e -> e.getValue().longValue())),
+                counts);
+    }
+
+    @Test
+    public void testConcurrentMovesKeepCounts() throws Exception {
+        final DocRef docRef = createDocument();
+        final int perGroup = 20;
+
+        final List<Annotation> inFirst = IntStream.range(0, perGroup)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .dataSourceUuid(docRef.getUuid())
+                        .content("Some Content")
+                        .assignTo("Some Guy")
+                        .status(Status.OPEN_ESCALATED)
+                        .build())
+                .peek(a -> this.createAndUpdateAnnotation(docRef.getUuid(), a))
+                .collect(Collectors.toList());
+        final List<Annotation> inSecond = IntStream.range(0, perGroup)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .dataSourceUuid(docRef.getUuid())
+                        .content("Some Content")
+                        .assignTo("Other Guy")
+                        .status(Status.CLOSED_DUPLICATE)
+                        .build())
+                .peek(a -> this.createAndUpdateAnnotation(docRef.getUuid(), a))
+                .collect(Collectors.toList());
+
+        // Move every annotation to the other group at once, so the count rows are locked in both directions
+        final List<Callable<Integer>> moves = new ArrayList<>();
+        IntStream.range(0, perGroup).forEach(i -> {
+            moves.add(() -> move(docRef, inFirst.get(i), "Other Guy", Status.CLOSED_DUPLICATE));
+            moves.add(() -> move(docRef, inSecond.get(i), "Some Guy", Status.OPEN_ESCALATED));
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (final Future<Integer> result : executor.invokeAll(moves)) {
+                assertEquals(Integer.valueOf(HttpStatus.OK_200), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final Map<String, Long> counts = searchCountsByStatus(docRef);
+        assertEquals(Long.valueOf(perGroup), counts.get(Status.OPEN_ESCALATED.toString()));
+        assertEquals(Long.valueOf(perGroup), counts.get(Status.CLOSED_DUPLICATE.toString()));
+    }
+
+    @Test
+    public void testCachedSearchSeesChanges() throws QueryApiException {
+        final Meter hits = appRule.getEnvironment().metrics()
+                .meter(MetricRegistry.name(SearchResultCache.class, "hits"));
+        final DocRef docRef = createDocument();
+
+        final Annotation annotation = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .dataSourceUuid(docRef.getUuid())
+                .content("Some Content")
+                .assignTo("Some Guy")
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        createAndUpdateAnnotation(docRef.getUuid(), annotation);
+
+        final Map<String, Long> firstCounts = searchCountsByStatus(docRef);
+        assertEquals(Long.valueOf(1), firstCounts.get(Status.OPEN_ESCALATED.toString()));
+
+        // Repeating the search is served from the cache
+        final long hitsBefore = hits.getCount();
+        assertEquals(firstCounts, searchCountsByStatus(docRef));
+        assertEquals(hitsBefore + 1, hits.getCount());
+
+        // A change to the index must not be hidden by the cached result
+        createAndUpdateAnnotation(docRef.getUuid(), new Annotation.Builder().id(UUID.randomUUID().toString())
+                .dataSourceUuid(docRef.getUuid())
+                .content("Some Content")
+                .assignTo("Some Guy")
+                .status(Status.OPEN_ESCALATED)
+                .build());
+
+        final long hitsAfterChange = hits.getCount();
+        final Map<String, Long> secondCounts = searchCountsByStatus(docRef);
+        assertEquals(Long.valueOf(2), secondCounts.get(Status.OPEN_ESCALATED.toString()));
+        assertEquals(hitsAfterChange, hits.getCount());
+    }
+
     @Test
     public void testDestroy() throws QueryApiException {
         final QueryKey aQueryKey = new QueryKey(UUID.randomUUID().toString());
@@ -268,6 +381,70 @@ public class AnnotationsQueryRemoteServiceIT extends QueryRemoteServiceIT<Annota
                 .build();
     }
 
+    /**
+     * Counts the annotations of an index by status, with a grouped search through the query API
+     *
+     * @param docRef The Document of the index to search
+     * @return The number of annotations with each status, keyed by status
+     */
+    private Map<String, Long> searchCountsByStatus(final DocRef docRef) throws QueryApiException {
+        final String queryKey = UUID.randomUUID().toString();
+        final SearchRequest request = new SearchRequest.Builder()
+                .query(new Query.Builder()
+                        .dataSource(docRef)
+                        .expression(new ExpressionOperator.Builder(ExpressionOperator.Op.AND).build())
+                        .build())
+                .key(queryKey)
+                .dateTimeLocale("en-gb")
+                .incremental(true)
+                .addResultRequests(new ResultRequest.Builder()
+                        .fetch(ResultRequest.Fetch.ALL)
+                        .resultStyle(ResultRequest.ResultStyle.FLAT)
+                        .componentId("componentId")
+                        .addMappings(new TableSettings.Builder()
+                                .queryId(queryKey)
+                                .extractValues(false)
+                                .showDetail(false)
+                                .addFields(new Field.Builder()
+                                        .name(Annotation.STATUS)
+                                        .expression("${" + Annotation.STATUS + "}")
+                                        .group(0)
+                                        .build())
+                                .addFields(new Field.Builder()
+                                        .name("Count")
+                                        .expression(AnnotationsQueryServiceImpl.COUNT_EXPRESSION)
+                                        .build())
+                                .build())
+                        .build())
+                .build();
+
+        final SearchResponse searchResponse = queryClient.search(authRule.adminUser(), request)
+                .orElseThrow(() -> new AssertionError("Response body missing"));
+
+        final Map<String, Long> counts = new HashMap<>();
+        for (final Result result : searchResponse.getResults()) {
+            assertTrue(result instanceof FlatResult);
+            ((FlatResult) result).getValues()
+                    .forEach(objects -> counts.put(objects.get(3).toString(), Long.valueOf(objects.get(4).toString())));
+        }
+
+        return counts;
+    }
+
+    private int move(final DocRef docRef,
+                     final Annotation annotation,
+                     final String assignTo,
+                     final Status status) throws Exception {
+        final Annotation update = new Annotation.Builder().id(annotation.getId())
+                .content(annotation.getContent())
+                .assignTo(assignTo)
+                .status(status)
+                .build();
+        final Response response = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), annotation.getId(), update);
+        response.close();
+        return response.getStatus();
+    }
+
     /**
      * Creates an annotation, then updates it to set all the fields from the given fully
      * populated annotation object. This is used by tests which assume that create/update work
@@ -25,6 +25,7 @@ import stroom.query.api.v2.Result;
 import stroom.query.api.v2.ResultRequest;
 import stroom.query.api.v2.SearchRequest;
 import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.Sort;
 import stroom.query.api.v2.TableSettings;
 import stroom.query.audit.rest.AuditedDocRefResourceImpl;
 import stroom.query.audit.rest.AuditedQueryResourceImpl;
@@ -35,6 +36,9 @@ import stroom.query.testing.QueryResourceIT;
 import stroom.query.testing.StroomAuthenticationRule;
 
 import javax.ws.rs.core.Response;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,6 +51,8 @@ import java.util.stream.IntStream;
 
 import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static stroom.annotations.service.AnnotationsServiceImpl.SEARCH_PAGE_LIMIT;
@@ -209,6 +215,109 @@ public class AnnotationsQueryResourceIT extends QueryResourceIT<AnnotationsDocRe
         );
     }
 
+    @Test
+    public void testQueryConditions() {
+        final DocRef docRef = createDocument();
+        final Instant before = Instant.now().minusSeconds(60);
+
+        final Annotation alice = createAndUpdateAnnotation(docRef.getUuid(), "alice", "100% done_x");
+        final Annotation bob = createAndUpdateAnnotation(docRef.getUuid(), "bob", "100 percent doneAx");
+        final Annotation carol = createAndUpdateAnnotation(docRef.getUuid(), "carol", "something else");
+
+        // Equals with a wildcard, or without one
+        assertEquals(ids(alice), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.ASSIGN_TO, ExpressionTerm.Condition.EQUALS, "ali*")
+                .build()));
+        assertEquals(ids(bob), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.ASSIGN_TO, ExpressionTerm.Condition.EQUALS, "bob")
+                .build()));
+
+        // The wildcards of LIKE only match themselves
+        assertEquals(ids(alice), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.CONTENT, ExpressionTerm.Condition.CONTAINS, "100%")
+                .build()));
+        assertEquals(ids(alice), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.CONTENT, ExpressionTerm.Condition.CONTAINS, "e_x")
+                .build()));
+        assertEquals(ids(alice), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.CONTENT, ExpressionTerm.Condition.EQUALS, "100%*")
+                .build()));
+
+        assertEquals(ids(alice, bob), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.ASSIGN_TO, ExpressionTerm.Condition.IN,
+                        String.join(ExpressionTerm.Condition.IN_CONDITION_DELIMITER, "alice", "bob"))
+                .build()));
+
+        assertEquals(ids(bob, carol), searchIds(docRef, new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                .addTerm(Annotation.ASSIGN_TO, ExpressionTerm.Condition.EQUALS, "alice")
+                .build()));
+
+        // Times can be given as ISO-8601 dates or epoch milliseconds
+        final Instant after = Instant.now().plusSeconds(60);
+        assertEquals(ids(alice, bob, carol), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(DocRefEntity.CREATE_TIME, ExpressionTerm.Condition.BETWEEN,
+                        String.join(ExpressionTerm.Condition.IN_CONDITION_DELIMITER, before.toString(), after.toString()))
+                .build()));
+        assertEquals(ids(alice, bob, carol), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(DocRefEntity.CREATE_TIME, ExpressionTerm.Condition.GREATER_THAN,
+                        Long.toString(before.toEpochMilli()))
+                .build()));
+        assertEquals(ids(), searchIds(docRef, new ExpressionOperator.Builder()
+                .addTerm(DocRefEntity.UPDATE_TIME, ExpressionTerm.Condition.GREATER_THAN, after.toString())
+                .build()));
+    }
+
+    @Test
+    public void testQuerySortBreaksTiesOnId() {
+        final DocRef docRef = createDocument();
+        final String assignee = UUID.randomUUID().toString();
+
+        final List<String> ids = IntStream.range(0, 5)
+                .mapToObj(i -> createAndUpdateAnnotation(docRef.getUuid(), assignee, UUID.randomUUID().toString()))
+                .map(Annotation::getId)
+                .sorted()
+                .collect(Collectors.toList());
+
+        // Every annotation has the same assignee, so the order comes from the ID
+        final FlatResult result = search(docRef, new ExpressionOperator.Builder().build(),
+                new OffsetRange.Builder().offset(0L).length(10L).build(),
+                new Field(Annotation.ASSIGN_TO, "${" + Annotation.ASSIGN_TO + "}",
+                        new Sort(0, Sort.SortDirection.DESCENDING), null, null, null),
+                new Field(Annotation.ID, "${" + Annotation.ID + "}", null, null, null, null));
+
+        assertEquals(ids, result.getValues().stream()
+                .map(row -> row.get(4).toString())
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testQueryOffsetRanges() {
+        final DocRef docRef = createDocument();
+
+        final int ANNOTATIONS = 7;
+        final long WINDOW = 3;
+        final List<String> ids = IntStream.range(0, ANNOTATIONS)
+                .mapToObj(i -> createAndUpdateAnnotation(docRef.getUuid(), "someone", UUID.randomUUID().toString()))
+                .map(Annotation::getId)
+                .sorted()
+                .collect(Collectors.toList());
+
+        // Each window holds the next IDs in order, and every window knows the total
+        final List<String> paged = new ArrayList<>();
+        for (long offset = 0; offset < ANNOTATIONS; offset += WINDOW) {
+            final FlatResult result = searchSortedIds(docRef, offset, WINDOW);
+            assertEquals(Math.min(WINDOW, ANNOTATIONS - offset), result.getValues().size());
+            assertEquals(Long.valueOf(ANNOTATIONS), result.getSize());
+            result.getValues().forEach(row -> paged.add(row.get(3).toString()));
+        }
+        assertEquals(ids, paged);
+
+        // A window past the end is empty, but still has the total
+        final FlatResult pastTheEnd = searchSortedIds(docRef, (long) ANNOTATIONS + 3, WINDOW);
+        assertEquals(0, pastTheEnd.getValues().size());
+        assertEquals(Long.valueOf(ANNOTATIONS), pastTheEnd.getSize());
+    }
+
     @Test
     public void testDestroy() {
         final QueryKey aQueryKey = new QueryKey(UUID.randomUUID().toString());
@@ -227,6 +336,25 @@ public class AnnotationsQueryResourceIT extends QueryResourceIT<AnnotationsDocRe
                 .containsOrdered(containsAllOf(AuditedQueryResourceImpl.QUERY_DESTROY, aQueryKey.getUuid()));
     }
 
+    @Test
+    public void testUnsupportedSearchesArePassedOn() {
+        final DocRef docRef = createDocument();
+        createAndUpdateAnnotation(docRef.getUuid(), "alice", UUID.randomUUID().toString());
+
+        final SearchRequest request = getValidSearchRequest(docRef, new ExpressionOperator.Builder()
+                .addTerm(Annotation.ASSIGN_TO, ExpressionTerm.Condition.IN_DICTIONARY, UUID.randomUUID().toString())
+                .build(), null);
+
+        final Response response = queryClient.search(authRule.adminUser(), request);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+
+        // Answered by the query service of the bundle, rather than refused as a condition SQL cannot express
+        final SearchResponse searchResponse = response.readEntity(SearchResponse.class);
+        if (null != searchResponse.getErrors()) {
+            searchResponse.getErrors().forEach(error -> assertFalse(error, error.contains("is not supported on annotations")));
+        }
+    }
+
     protected SearchRequest getValidSearchRequest(final DocRef docRef,
                                                 final ExpressionOperator expressionOperator,
                                                 final OffsetRange offsetRange) {
@@ -258,6 +386,85 @@ public class AnnotationsQueryResourceIT extends QueryResourceIT<AnnotationsDocRe
                 .build();
     }
 
+    /**
+     * Searches an index for the IDs of the annotations that match an expression
+     */
+    private Set<String> searchIds(final DocRef docRef, final ExpressionOperator expressionOperator) {
+        return search(docRef, expressionOperator, null,
+                new Field(Annotation.ID, "${" + Annotation.ID + "}", null, null, null, null))
+                .getValues().stream()
+                .map(row -> row.get(3).toString())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Reads a window of the IDs of every annotation in an index, in ID order
+     */
+    private FlatResult searchSortedIds(final DocRef docRef, final long offset, final long length) {
+        return search(docRef, new ExpressionOperator.Builder().build(),
+                new OffsetRange.Builder().offset(offset).length(length).build(),
+                new Field(Annotation.ID, "${" + Annotation.ID + "}",
+                        new Sort(0, Sort.SortDirection.ASCENDING), null, null, null));
+    }
+
+    private FlatResult search(final DocRef docRef,
+                              final ExpressionOperator expressionOperator,
+                              final OffsetRange offsetRange,
+                              final Field... fields) {
+        final String queryKey = UUID.randomUUID().toString();
+        final SearchRequest request = new SearchRequest.Builder()
+                .query(new Query.Builder()
+                        .dataSource(docRef)
+                        .expression(expressionOperator)
+                        .build())
+                .key(queryKey)
+                .dateTimeLocale("en-gb")
+                .incremental(true)
+                .addResultRequests(new ResultRequest.Builder()
+                        .fetch(ResultRequest.Fetch.ALL)
+                        .resultStyle(ResultRequest.ResultStyle.FLAT)
+                        .componentId("componentId")
+                        .requestedRange(offsetRange)
+                        .addMappings(new TableSettings.Builder()
+                                .queryId(queryKey)
+                                .extractValues(false)
+                                .showDetail(false)
+                                .addFields(fields)
+                                .build())
+                        .build())
+                .build();
+
+        final Response response = queryClient.search(authRule.adminUser(), request);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+
+        final SearchResponse searchResponse = response.readEntity(SearchResponse.class);
+        assertNull(searchResponse.getErrors());
+        assertEquals(1, searchResponse.getResults().size());
+        return (FlatResult) searchResponse.getResults().get(0);
+    }
+
+    private static Set<String> ids(final Annotation... annotations) {
+        return Arrays.stream(annotations)
+                .map(Annotation::getId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Creates an annotation with a random ID in the given index
+     */
+    private Annotation createAndUpdateAnnotation(final String docRefUuid,
+                                                 final String assignTo,
+                                                 final String content) {
+        final Annotation annotation = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .dataSourceUuid(docRefUuid)
+                .assignTo(assignTo)
+                .content(content)
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        createAndUpdateAnnotation(docRefUuid, annotation);
+        return annotation;
+    }
+
     /**
      * Creates an annotation, then updates it to set all the fields from the given fully
      * populated annotation object. This is used by tests which assume that create/update work
@@ -1,31 +1,54 @@
 package stroom.annotations.resources.auth;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import org.eclipse.jetty.http.HttpStatus;
+import org.glassfish.jersey.media.sse.EventInput;
+import org.glassfish.jersey.media.sse.InboundEvent;
+import org.jooq.Record2;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.annotations.App;
+import stroom.annotations.DatabaseRule;
 import stroom.annotations.config.Config;
+import stroom.annotations.kafka.AnnotationsKafkaPublisher;
+import stroom.annotations.metrics.RequestTimer;
+import stroom.annotations.metrics.SqlMetricsListener;
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationHistory;
 import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.annotations.model.BulkUpdateDTO;
 import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.model.ResponseMsgDTO;
 import stroom.annotations.model.Status;
 import stroom.annotations.client.AnnotationsHttpClient;
 import stroom.annotations.resources.AuditedAnnotationsResourceImpl;
+import stroom.annotations.service.AnnotationBloomFilters;
+import stroom.annotations.service.AnnotationChangeBus;
+import stroom.annotations.service.AnnotationCounts;
+import stroom.annotations.service.AnnotationPurger;
 import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
 import stroom.query.audit.authorisation.DocumentPermission;
 import stroom.query.audit.client.DocRefResourceHttpClient;
 import stroom.query.audit.rest.AuditedDocRefResourceImpl;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
 import stroom.query.testing.DropwizardAppWithClientsRule;
 import stroom.query.testing.FifoLogbackRule;
 import stroom.query.testing.StroomAuthenticationRule;
 
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,14 +56,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static stroom.annotations.service.AnnotationsServiceImpl.SEARCH_PAGE_LIMIT;
 import static stroom.query.testing.FifoLogbackRule.containsAllOf;
@@ -59,6 +90,9 @@ public class AnnotationsResourcesIT {
     @Rule
     public FifoLogbackRule auditLogRule = new FifoLogbackRule();
 
+    @Rule
+    public DatabaseRule databaseRule = new DatabaseRule(appRule::getConfiguration);
+
     private final AnnotationsHttpClient annotationsClient;
     private final DocRefResourceHttpClient<AnnotationsDocRefEntity> docRefClient;
 
@@ -109,6 +143,233 @@ public class AnnotationsResourcesIT {
                 .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.CREATE_ANNOTATION, annotationId));
     }
 
+    @Test
+    public void testCreateAnnotationWithBody() {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder()
+                .id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+
+        final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotation.getId(), annotation);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+
+        final Annotation created = response.readEntity(Annotation.class);
+        assertEquals(annotation.getId(), created.getId());
+        assertEquals(annotation.getContent(), created.getContent());
+        assertEquals(annotation.getAssignTo(), created.getAssignTo());
+        assertEquals(annotation.getStatus(), created.getStatus());
+
+        // Only the one history point for the create
+        final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        assertEquals(HttpStatus.OK_200, getHistoryResponse.getStatus());
+        final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+        assertEquals(1, history.size());
+        assertEquals(HistoryOperation.CREATE, history.get(0).getOperation());
+        assertEquals(annotation.getStatus(), history.get(0).getStatus());
+    }
+
+    @Test
+    public void testLongContentHistory() {
+        final DocRef docRef = createDocument();
+
+        // Long enough to be stored compressed in the history
+        final StringBuilder content = new StringBuilder();
+        while (content.length() < 4096) {
+            content.append(UUID.randomUUID().toString()).append(' ');
+        }
+        final Annotation annotation = new Annotation.Builder()
+                .id(UUID.randomUUID().toString())
+                .content(content.toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+
+        final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotation.getId(), annotation);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        response.close();
+
+        final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        assertEquals(HttpStatus.OK_200, getHistoryResponse.getStatus());
+        final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+        assertEquals(1, history.size());
+        assertEquals(annotation.getContent(), history.get(0).getContent());
+
+        // Only the history is compressed, the annotation is stored as it is
+        assertEquals(annotation.getContent(), getAnnotation(docRef.getUuid(), annotation.getId()).getContent());
+    }
+
+    @Test
+    public void testBulkUpdateLongContentHistory() {
+        final DocRef docRef = createDocument();
+
+        // Each long enough to be stored compressed in the history
+        final Map<String, String> contents = new HashMap<>();
+        IntStream.range(0, 3).forEach(i -> {
+            final StringBuilder content = new StringBuilder();
+            while (content.length() < 4096) {
+                content.append(UUID.randomUUID().toString()).append(' ');
+            }
+            final Annotation annotation = new Annotation.Builder()
+                    .id(UUID.randomUUID().toString())
+                    .content(content.toString())
+                    .status(Status.OPEN_ESCALATED)
+                    .build();
+
+            final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotation.getId(), annotation);
+            assertEquals(HttpStatus.OK_200, response.getStatus());
+            response.close();
+            contents.put(annotation.getId(), annotation.getContent());
+        });
+
+        // The history of a bulk update is copied from the annotations, and compressed by the database
+        final BulkUpdateDTO bulkUpdate = new BulkUpdateDTO.Builder()
+                .ids(new ArrayList<>(contents.keySet()))
+                .status(Status.CLOSED_DUPLICATE)
+                .build();
+        final Response response = annotationsClient.updateAll(authRule.adminUser(), docRef.getUuid(), bulkUpdate);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        assertEquals(contents.size(), response.readEntity(ResponseMsgDTO.class).getRecordsUpdated());
+
+        final List<Record2<String, byte[]>> updates = databaseRule.database()
+                .select(Annotation.CONTENT_FIELD, AnnotationHistory.COMPRESSED_CONTENT_FIELD)
+                .from(DSL.table("annotation_history"))
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid()))
+                .and(AnnotationHistory.OPERATION_FIELD.equal(HistoryOperation.UPDATE.toString()))
+                .fetch();
+        assertEquals(contents.size(), updates.size());
+        updates.forEach(r -> {
+            assertNull(r.get(Annotation.CONTENT_FIELD));
+            assertNotNull(r.get(AnnotationHistory.COMPRESSED_CONTENT_FIELD));
+        });
+
+        // And decompressed when it is read back
+        contents.forEach((id, content) -> {
+            final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), id);
+            assertEquals(HttpStatus.OK_200, getHistoryResponse.getStatus());
+            final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+            assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE),
+                    history.stream().map(AnnotationHistory::getOperation).collect(Collectors.toList()));
+            assertEquals(Status.CLOSED_DUPLICATE, history.get(1).getStatus());
+            assertEquals(content, history.get(0).getContent());
+            assertEquals(content, history.get(1).getContent());
+        });
+    }
+
+    @Test
+    public void testUpsert() {
+        final DocRef docRef = createDocument();
+        final String id = UUID.randomUUID().toString();
+
+        final Annotation first = new Annotation.Builder()
+                .id(id)
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        final Response createResponse = annotationsClient.upsert(authRule.adminUser(), docRef.getUuid(), id, first);
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+        assertEquals(first.getContent(), createResponse.readEntity(Annotation.class).getContent());
+
+        final Annotation second = new Annotation.Builder()
+                .id(id)
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.CLOSED_DUPLICATE)
+                .build();
+        final Response updateResponse = annotationsClient.upsert(authRule.adminUser(), docRef.getUuid(), id, second);
+        assertEquals(HttpStatus.OK_200, updateResponse.getStatus());
+        updateResponse.close();
+
+        final Annotation current = getAnnotation(docRef.getUuid(), id);
+        assertEquals(second.getContent(), current.getContent());
+        assertEquals(second.getAssignTo(), current.getAssignTo());
+        assertEquals(second.getStatus(), current.getStatus());
+
+        final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), id);
+        final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE),
+                history.stream().map(AnnotationHistory::getOperation).collect(Collectors.toList()));
+
+        auditLogRule.check().thereAreAtLeast(4)
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.CREATE_DOC_REF, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.UPSERT_ANNOTATION, id))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.UPSERT_ANNOTATION, id))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION, id));
+    }
+
+    @Test
+    public void testConcurrentUpserts() throws Exception {
+        final DocRef docRef = createDocument();
+        final String id = UUID.randomUUID().toString();
+        final int numberUpserts = 8;
+
+        // Every upsert is of the same new annotation, released at once so their first inserts race
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(numberUpserts);
+        try {
+            final List<Future<Integer>> statuses = IntStream.range(0, numberUpserts)
+                    .mapToObj(i -> new Annotation.Builder()
+                            .id(id)
+                            .content(UUID.randomUUID().toString())
+                            .status(Status.OPEN_ESCALATED)
+                            .build())
+                    .map(a -> executor.submit(() -> {
+                        start.await();
+                        final Response response = annotationsClient.upsert(authRule.adminUser(), docRef.getUuid(), id, a);
+                        response.close();
+                        return response.getStatus();
+                    }))
+                    .collect(Collectors.toList());
+            start.countDown();
+
+            for (final Future<Integer> status : statuses) {
+                assertEquals(Integer.valueOf(HttpStatus.OK_200), status.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Exactly one of them created it, the rest updated it
+        final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), id);
+        final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+        assertEquals(HistoryOperation.CREATE, history.get(0).getOperation());
+        assertTrue(history.stream().skip(1).allMatch(h -> HistoryOperation.UPDATE.equals(h.getOperation())));
+
+        // And it was only counted once
+        final Long count = databaseRule.database()
+                .select(DSL.sum(AnnotationCounts.COUNT_FIELD).cast(Long.class))
+                .from(AnnotationCounts.COUNT_TABLE)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid()))
+                .fetchOne(0, Long.class);
+        assertEquals(Long.valueOf(1), count);
+    }
+
+    @Test
+    public void testUnchangedUpdateSkipsHistory() {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder()
+                .id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        createAndUpdateAnnotation(docRef, annotation);
+        final Annotation updated = getAnnotation(docRef.getUuid(), annotation.getId());
+
+        // Submit the same state again
+        final Response updateResponse = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), annotation.getId(), annotation);
+        assertEquals(HttpStatus.OK_200, updateResponse.getStatus());
+        final Annotation unchanged = updateResponse.readEntity(Annotation.class);
+        assertEquals(updated.getUpdateTime(), unchanged.getUpdateTime());
+
+        final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE),
+                history.stream().map(AnnotationHistory::getOperation).collect(Collectors.toList()));
+    }
+
     @Test
     public void testCreateAndGetAnnotation() {
         final DocRef docRef = createDocument();
@@ -127,6 +388,110 @@ public class AnnotationsResourcesIT {
                 .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION, annotationId));
     }
 
+    @Test
+    public void testServerTiming() {
+        final DocRef docRef = createDocument();
+        final String annotationId = UUID.randomUUID().toString();
+
+        final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotationId);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+
+        final String serverTiming = response.getHeaderString(RequestTimer.SERVER_TIMING_HEADER);
+        assertNotNull(serverTiming);
+        Stream.of(RequestTimer.DOC_REF, RequestTimer.AUTHORISATION, RequestTimer.SERVICE, RequestTimer.AUDIT)
+                .forEach(stage -> assertTrue(serverTiming.contains(stage + ";dur=")));
+    }
+
+    @Test
+    public void testSqlMetrics() {
+        final DocRef docRef = createDocument();
+        final String annotationId = UUID.randomUUID().toString();
+
+        final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), annotationId);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+
+        final Set<String> timers = appRule.getEnvironment().metrics().getTimers().keySet();
+        assertTrue(timers.contains(MetricRegistry.name(SqlMetricsListener.class, "insert.annotation")));
+        assertTrue(timers.contains(MetricRegistry.name(SqlMetricsListener.class, "insert.annotation_history")));
+
+        // A get by ID is timed apart from the other reads of the annotation table
+        getAnnotation(docRef.getUuid(), annotationId);
+        assertTrue(appRule.getEnvironment().metrics().getTimers().keySet()
+                .contains(MetricRegistry.name(SqlMetricsListener.class, "select.annotation.where_datasourceuuid_id")));
+
+        // An update is named by every column it constrains, including those that skip an unchanged annotation
+        final Annotation annotation = new Annotation.Builder()
+                .id(annotationId)
+                .content(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        final Response updateResponse = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), annotationId, annotation);
+        assertEquals(HttpStatus.OK_200, updateResponse.getStatus());
+        assertTrue(appRule.getEnvironment().metrics().getTimers().keySet()
+                .contains(MetricRegistry.name(SqlMetricsListener.class,
+                        "update.annotation.where_assignto_content_datasourceuuid_id_status")));
+    }
+
+    @Test
+    public void testBloomFilters() throws InterruptedException {
+        final MetricRegistry metrics = appRule.getEnvironment().metrics();
+        final Gauge loaded = metrics.getGauges().get(MetricRegistry.name(AnnotationBloomFilters.class, "loaded"));
+        final Gauge indexes = metrics.getGauges().get(MetricRegistry.name(AnnotationBloomFilters.class, "indexes"));
+        final Meter skipped = metrics.meter(MetricRegistry.name(AnnotationBloomFilters.class, "skipped"));
+        final Meter passed = metrics.meter(MetricRegistry.name(AnnotationBloomFilters.class, "passed"));
+
+        for (int i = 0; i < 50 && !Boolean.TRUE.equals(loaded.getValue()); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(Boolean.TRUE, loaded.getValue());
+
+        // An annotation created through this instance is added to the filter of its index straight away
+        final DocRef docRef = createDocument();
+        final String createdId = UUID.randomUUID().toString();
+        final Response createResponse = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), createdId);
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+        assertTrue((Integer) indexes.getValue() >= 1);
+
+        final long passedBefore = passed.getCount();
+        getAnnotation(docRef.getUuid(), createdId);
+        assertEquals(passedBefore + 1, passed.getCount());
+
+        // An ID that was never created is answered without going to the database
+        final long skippedBefore = skipped.getCount();
+        final Response missingResponse = annotationsClient.get(authRule.adminUser(), docRef.getUuid(), UUID.randomUUID().toString());
+        assertEquals(HttpStatus.NOT_FOUND_404, missingResponse.getStatus());
+        assertEquals(skippedBefore + 1, skipped.getCount());
+
+        // One created by another instance is picked up from the history once it has settled
+        final String otherId = UUID.randomUUID().toString();
+        final ULong now = ULong.valueOf(System.currentTimeMillis());
+        databaseRule.database().transaction(configuration -> {
+            DSL.using(configuration).insertInto(DSL.table("annotation"))
+                    .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, Annotation.ID_FIELD, Annotation.STATUS_FIELD,
+                            DocRefJooqEntity.UPDATE_USER_FIELD, DocRefJooqEntity.UPDATE_TIME_FIELD,
+                            DocRefJooqEntity.CREATE_USER_FIELD, DocRefJooqEntity.CREATE_TIME_FIELD)
+                    .values(docRef.getUuid(), otherId, Annotation.DEFAULT_STATUS.toString(),
+                            "otherInstance", now, "otherInstance", now)
+                    .execute();
+            DSL.using(configuration).insertInto(DSL.table("annotation_history"))
+                    .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, AnnotationHistory.ANNOTATION_ID_FIELD,
+                            AnnotationHistory.OPERATION_FIELD, Annotation.STATUS_FIELD,
+                            DocRefJooqEntity.UPDATE_USER_FIELD, DocRefJooqEntity.UPDATE_TIME_FIELD,
+                            DocRefJooqEntity.CREATE_USER_FIELD, DocRefJooqEntity.CREATE_TIME_FIELD)
+                    .values(docRef.getUuid(), otherId, HistoryOperation.CREATE.toString(),
+                            Annotation.DEFAULT_STATUS.toString(), "otherInstance", now, "otherInstance", now)
+                    .execute();
+        });
+
+        Response otherResponse = annotationsClient.get(authRule.adminUser(), docRef.getUuid(), otherId);
+        for (int i = 0; i < 50 && HttpStatus.OK_200 != otherResponse.getStatus(); i++) {
+            Thread.sleep(100);
+            otherResponse = annotationsClient.get(authRule.adminUser(), docRef.getUuid(), otherId);
+        }
+        assertEquals(HttpStatus.OK_200, otherResponse.getStatus());
+        assertEquals(otherId, otherResponse.readEntity(Annotation.class).getId());
+    }
+
     @Test
     public void testCreateUpdateAndGetMultipleAnnotations() {
         // Create some test data
@@ -190,6 +555,188 @@ public class AnnotationsResourcesIT {
                 .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION, id));
     }
 
+    @Test
+    public void testDeleteIndexPurgesAnnotations() throws InterruptedException {
+        final Meter indexesPurged = appRule.getEnvironment().metrics()
+                .meter(MetricRegistry.name(AnnotationPurger.class, "indexes"));
+
+        final DocRef docRef = createDocument();
+        IntStream.range(0, 5)
+                .mapToObj(i -> new Annotation.Builder()
+                        .id(UUID.randomUUID().toString())
+                        .content(UUID.randomUUID().toString())
+                        .assignTo(UUID.randomUUID().toString())
+                        .status(Status.OPEN_ESCALATED)
+                        .build())
+                .forEach(a -> createAndUpdateAnnotation(docRef, a));
+        final List<Long> historyIds = databaseRule.database()
+                .select(AnnotationHistory.ID_FIELD)
+                .from(DSL.table("annotation_history"))
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid()))
+                .fetch(AnnotationHistory.ID_FIELD);
+        assertEquals(10, historyIds.size());
+
+        final long purgedBefore = indexesPurged.getCount();
+        final Response deleteResponse = docRefClient.deleteDocument(authRule.adminUser(), docRef.getUuid());
+        assertEquals(HttpStatus.OK_200, deleteResponse.getStatus());
+
+        // The purge is queued with the delete, and the queue is worked through in the background
+        for (int i = 0; i < 100 && databaseRule.database().fetchExists(AnnotationPurger.PURGE_TABLE,
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(databaseRule.database().fetchExists(AnnotationPurger.PURGE_TABLE,
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+        assertTrue(indexesPurged.getCount() > purgedBefore);
+
+        assertEquals(0, databaseRule.database().fetchCount(DSL.table("annotation"),
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+        assertEquals(0, databaseRule.database().fetchCount(DSL.table("annotation_history"),
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+        assertEquals(0, databaseRule.database().fetchCount(AnnotationCounts.COUNT_TABLE,
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+        assertEquals(0, databaseRule.database().fetchCount(AnnotationsKafkaPublisher.OUTBOX_TABLE,
+                AnnotationsKafkaPublisher.HISTORY_ID_FIELD.in(historyIds)));
+    }
+
+    @Test
+    public void testPurgeWaitsForTheDocumentToBeDeleted() throws InterruptedException {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder()
+                .id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .build();
+        createAndUpdateAnnotation(docRef, annotation);
+
+        // As left by a delete that queued the purge and then failed
+        databaseRule.database().insertInto(AnnotationPurger.PURGE_TABLE)
+                .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, AnnotationPurger.REQUEST_TIME_FIELD)
+                .values(docRef.getUuid(), ULong.valueOf(System.currentTimeMillis()))
+                .execute();
+        Thread.sleep(1000);
+
+        final Response getResponse = annotationsClient.get(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+        assertEquals(HttpStatus.OK_200, getResponse.getStatus());
+        getResponse.close();
+
+        // Once the document is deleted the queued purge goes ahead
+        final Response deleteResponse = docRefClient.deleteDocument(authRule.adminUser(), docRef.getUuid());
+        assertEquals(HttpStatus.OK_200, deleteResponse.getStatus());
+        for (int i = 0; i < 100 && databaseRule.database().fetchExists(AnnotationPurger.PURGE_TABLE,
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, databaseRule.database().fetchCount(DSL.table("annotation"),
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+
+        // Deleting it again finds nothing to delete, and queues nothing
+        final Response secondDeleteResponse = docRefClient.deleteDocument(authRule.adminUser(), docRef.getUuid());
+        assertEquals(HttpStatus.NOT_FOUND_404, secondDeleteResponse.getStatus());
+        assertFalse(databaseRule.database().fetchExists(AnnotationPurger.PURGE_TABLE,
+                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())));
+    }
+
+    @Test
+    public void testExists() {
+        final DocRef docRef = createDocument();
+
+        final Map<String, Status> annotated = IntStream.range(0, 5)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .content(UUID.randomUUID().toString())
+                        .assignTo(UUID.randomUUID().toString())
+                        .status(i % 2 == 0 ? Status.OPEN_ESCALATED : Status.CLOSED_DUPLICATE)
+                        .build())
+                .peek(a -> this.createAndUpdateAnnotation(docRef, a))
+                .collect(Collectors.toMap(Annotation::getId, Annotation::getStatus));
+
+        final List<String> ids = Stream.concat(annotated.keySet().stream(),
+                IntStream.range(0, 20).mapToObj(i -> UUID.randomUUID().toString()))
+                .collect(Collectors.toList());
+
+        final Response response = annotationsClient.exists(authRule.adminUser(), docRef.getUuid(), ids);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        final Map<String, Status> statuses = response.readEntity(new GenericType<Map<String, Status>>(){});
+        response.close();
+
+        assertEquals(annotated, statuses);
+
+        auditLogRule.check()
+                .thereAreAtLeast(1 + (2 * annotated.size()) + 1)
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.CREATE_DOC_REF, docRef.getUuid()))
+                .containsAnywhere(containsAllOf(AuditedAnnotationsResourceImpl.CHECK_ANNOTATIONS_EXIST, docRef.getUuid()));
+    }
+
+    @Test
+    public void testBulkUpdate() {
+        final DocRef docRef = createDocument();
+
+        final Map<String, Status> initial = IntStream.range(0, 6)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .content(UUID.randomUUID().toString())
+                        .assignTo("Some Guy")
+                        .status(i < 4 ? Status.OPEN_ESCALATED : Status.OPEN_MONITORING_EVENT)
+                        .build())
+                .peek(a -> this.createAndUpdateAnnotation(docRef, a))
+                .collect(Collectors.toMap(Annotation::getId, Annotation::getStatus));
+
+        final BulkUpdateDTO bulkUpdate = new BulkUpdateDTO.Builder()
+                .expression(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                        .addTerm(Annotation.STATUS, ExpressionTerm.Condition.EQUALS, Status.OPEN_ESCALATED.toString())
+                        .build())
+                .status(Status.CLOSED_DUPLICATE)
+                .build();
+        final Response response = annotationsClient.updateAll(authRule.adminUser(), docRef.getUuid(), bulkUpdate);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        assertEquals(4, response.readEntity(ResponseMsgDTO.class).getRecordsUpdated());
+
+        final Response existsResponse = annotationsClient.exists(authRule.adminUser(), docRef.getUuid(),
+                new ArrayList<>(initial.keySet()));
+        final Map<String, Status> statuses = existsResponse.readEntity(new GenericType<Map<String, Status>>(){});
+        initial.forEach((id, status) -> assertEquals(Status.OPEN_ESCALATED.equals(status) ? Status.CLOSED_DUPLICATE : status,
+                statuses.get(id)));
+
+        // Create, update, then the bulk update
+        initial.entrySet().stream()
+                .filter(e -> Status.OPEN_ESCALATED.equals(e.getValue()))
+                .forEach(e -> {
+                    final Response getHistoryResponse = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), e.getKey());
+                    final List<AnnotationHistory> history = getHistoryResponse.readEntity(new GenericType<List<AnnotationHistory>>() {});
+                    assertEquals(3, history.size());
+                    assertEquals(Status.CLOSED_DUPLICATE, history.get(2).getStatus());
+                });
+
+        // Nothing is left to change
+        final Response repeatResponse = annotationsClient.updateAll(authRule.adminUser(), docRef.getUuid(), bulkUpdate);
+        assertEquals(0, repeatResponse.readEntity(ResponseMsgDTO.class).getRecordsUpdated());
+
+        // Unassigned annotations are picked up by an update of the assignee alone
+        final List<String> unassigned = IntStream.range(0, 3)
+                .mapToObj(i -> new Annotation.Builder().id(UUID.randomUUID().toString())
+                        .content(UUID.randomUUID().toString())
+                        .status(Status.OPEN_ESCALATED)
+                        .build())
+                .peek(a -> this.createAndUpdateAnnotation(docRef, a))
+                .map(Annotation::getId)
+                .collect(Collectors.toList());
+        unassigned.forEach(id -> assertNull(getAnnotation(docRef.getUuid(), id).getAssignTo()));
+
+        final BulkUpdateDTO assignUpdate = new BulkUpdateDTO.Builder()
+                .ids(unassigned)
+                .assignTo("Another Guy")
+                .build();
+        final Response assignResponse = annotationsClient.updateAll(authRule.adminUser(), docRef.getUuid(), assignUpdate);
+        assertEquals(HttpStatus.OK_200, assignResponse.getStatus());
+        assertEquals(unassigned.size(), assignResponse.readEntity(ResponseMsgDTO.class).getRecordsUpdated());
+        unassigned.forEach(id -> {
+            final Annotation assigned = getAnnotation(docRef.getUuid(), id);
+            assertEquals("Another Guy", assigned.getAssignTo());
+            assertEquals(Status.OPEN_ESCALATED, assigned.getStatus());
+        });
+
+        auditLogRule.check()
+                .containsAnywhere(containsAllOf(AuditedAnnotationsResourceImpl.BULK_UPDATE_ANNOTATIONS, docRef.getUuid()));
+    }
+
     @Test
     public void testGetHistory() {
         final DocRef docRef = createDocument();
@@ -381,6 +928,96 @@ public class AnnotationsResourcesIT {
         );
     }
 
+    @Test
+    public void testFeed() {
+        final DocRef docRef = createDocument();
+
+        final int RECORDS_TO_CREATE = 3;
+        final List<String> ids = IntStream.range(0, RECORDS_TO_CREATE)
+                .mapToObj(i -> UUID.randomUUID().toString())
+                .peek(id -> {
+                    final Response createResponse = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), id);
+                    assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+                })
+                .collect(Collectors.toList());
+
+        // Changes are held back until they have settled, so a transaction that commits late is not skipped
+        assertEquals(0, getFeed(docRef, null, 2).size());
+        waitForHistoryToSettle();
+
+        // Read the first page, then use the last ID seen as the cursor for the next
+        final List<AnnotationHistory> firstPage = getFeed(docRef, null, 2);
+        assertEquals(2, firstPage.size());
+        assertEquals(ids.get(0), firstPage.get(0).getAnnotationId());
+        assertEquals(ids.get(1), firstPage.get(1).getAnnotationId());
+
+        final long cursor = firstPage.get(1).getId();
+        final List<AnnotationHistory> secondPage = getFeed(docRef, cursor, 2);
+        assertEquals(1, secondPage.size());
+        assertEquals(ids.get(2), secondPage.get(0).getAnnotationId());
+        assertEquals(HistoryOperation.CREATE, secondPage.get(0).getOperation());
+
+        final List<AnnotationHistory> finalPage = getFeed(docRef, (long) secondPage.get(0).getId(), 2);
+        assertEquals(0, finalPage.size());
+
+        auditLogRule.check().thereAreAtLeast(1 + RECORDS_TO_CREATE + 3)
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.CREATE_DOC_REF, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION_FEED, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION_FEED, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.GET_ANNOTATION_FEED, docRef.getUuid()));
+    }
+
+    @Test
+    public void testFeedRejectsBadLimit() {
+        final DocRef docRef = createDocument();
+
+        final Response zeroResponse = annotationsClient.feed(authRule.adminUser(), docRef.getUuid(), null, 0);
+        assertEquals(HttpStatus.BAD_REQUEST_400, zeroResponse.getStatus());
+
+        final Response negativeResponse = annotationsClient.feed(authRule.adminUser(), docRef.getUuid(), null, -1);
+        assertEquals(HttpStatus.BAD_REQUEST_400, negativeResponse.getStatus());
+    }
+
+    @Test
+    public void testChangesStream() {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        createAndUpdateAnnotation(docRef, annotation);
+        waitForHistoryToSettle();
+
+        // Resume from the very start of the index, so the create and update are replayed
+        final Response changesResponse = annotationsClient.changes(authRule.adminUser(), docRef.getUuid(), 0L);
+        assertEquals(HttpStatus.OK_200, changesResponse.getStatus());
+
+        try (final EventInput eventInput = changesResponse.readEntity(EventInput.class)) {
+            final InboundEvent createEvent = eventInput.read();
+            assertEquals(HistoryOperation.CREATE.toString(), createEvent.getName());
+            assertEquals(annotation.getId(), createEvent.readData(AnnotationHistory.class).getAnnotationId());
+
+            final InboundEvent updateEvent = eventInput.read();
+            assertEquals(HistoryOperation.UPDATE.toString(), updateEvent.getName());
+            assertEquals(annotation.getContent(), updateEvent.readData(AnnotationHistory.class).getContent());
+
+            // Then changes made after subscribing arrive live
+            final Response deleteResponse = annotationsClient.remove(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+            assertEquals(HttpStatus.OK_200, deleteResponse.getStatus());
+
+            final InboundEvent deleteEvent = eventInput.read();
+            assertEquals(HistoryOperation.DELETE.toString(), deleteEvent.getName());
+            assertTrue(Long.parseLong(deleteEvent.getId()) > Long.parseLong(updateEvent.getId()));
+        }
+
+        auditLogRule.check().thereAreAtLeast(4)
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.CREATE_DOC_REF, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.CREATE_ANNOTATION, annotation.getId()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.UPDATE_ANNOTATION, annotation.getId()))
+                .containsOrdered(containsAllOf(AuditedAnnotationsResourceImpl.WATCH_ANNOTATIONS, docRef.getUuid()));
+    }
+
     /**
      * Utility function to randomly generate a new annotations index doc ref.
      * It assumes that the creation of documents works, the detail of that is tested in another suite of tests.
@@ -471,6 +1108,152 @@ public class AnnotationsResourcesIT {
         return result;
     }
 
+    @Test
+    public void testChangesStreamFromNow() {
+        final DocRef docRef = createDocument();
+        final Annotation annotation = new Annotation.Builder().id(UUID.randomUUID().toString())
+                .content(UUID.randomUUID().toString())
+                .assignTo(UUID.randomUUID().toString())
+                .status(Status.OPEN_ESCALATED)
+                .build();
+        createAndUpdateAnnotation(docRef, annotation);
+        waitForHistoryToSettle();
+
+        // Without a last event ID, only changes made after subscribing are sent
+        final Response changesResponse = annotationsClient.changes(authRule.adminUser(), docRef.getUuid(), null);
+        assertEquals(HttpStatus.OK_200, changesResponse.getStatus());
+
+        try (final EventInput eventInput = changesResponse.readEntity(EventInput.class)) {
+            // Nothing has changed yet, so the stream is kept alive with heartbeats
+            final InboundEvent heartbeat = eventInput.read();
+            assertEquals("heartbeat", heartbeat.getComment());
+
+            final Response deleteResponse = annotationsClient.remove(authRule.adminUser(), docRef.getUuid(), annotation.getId());
+            assertEquals(HttpStatus.OK_200, deleteResponse.getStatus());
+
+            InboundEvent deleteEvent = eventInput.read();
+            while (null == deleteEvent.getName()) {
+                deleteEvent = eventInput.read();
+            }
+            assertEquals(HistoryOperation.DELETE.toString(), deleteEvent.getName());
+            assertEquals(annotation.getId(), deleteEvent.readData(AnnotationHistory.class).getAnnotationId());
+        }
+    }
+
+    @Test
+    public void testChangesStreamFromNowKeepsUnsettledChanges() throws Exception {
+        final DocRef docRef = createDocument();
+        final String heldId = UUID.randomUUID().toString();
+
+        // A history point that takes its ID, then commits after a later one has
+        final CountDownLatch inserted = new CountDownLatch(1);
+        final CountDownLatch commit = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<?> held = executor.submit(() -> databaseRule.database().transaction(configuration -> {
+            final ULong now = ULong.valueOf(System.currentTimeMillis());
+            DSL.using(configuration).insertInto(DSL.table("annotation_history"))
+                    .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                            AnnotationHistory.OPERATION_FIELD,
+                            AnnotationHistory.ANNOTATION_ID_FIELD,
+                            Annotation.STATUS_FIELD,
+                            DocRefJooqEntity.CREATE_USER_FIELD,
+                            DocRefJooqEntity.CREATE_TIME_FIELD,
+                            DocRefJooqEntity.UPDATE_USER_FIELD,
+                            DocRefJooqEntity.UPDATE_TIME_FIELD)
+                    .values(docRef.getUuid(),
+                            HistoryOperation.CREATE.toString(),
+                            heldId,
+                            Status.OPEN_ESCALATED.toString(),
+                            "test",
+                            now,
+                            "test",
+                            now)
+                    .execute();
+            inserted.countDown();
+            commit.await();
+        }));
+        executor.shutdown();
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+
+        final String id = UUID.randomUUID().toString();
+        final Response createResponse = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), id);
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+
+        // Subscribing while neither has settled starts before both, rather than after the latest ID
+        final Response changesResponse = annotationsClient.changes(authRule.adminUser(), docRef.getUuid(), null);
+        assertEquals(HttpStatus.OK_200, changesResponse.getStatus());
+        commit.countDown();
+        held.get(10, TimeUnit.SECONDS);
+
+        try (final EventInput eventInput = changesResponse.readEntity(EventInput.class)) {
+            final Set<String> delivered = new HashSet<>();
+            while (delivered.size() < 2) {
+                final InboundEvent event = eventInput.read();
+                if (null != event.getName()) {
+                    delivered.add(event.readData(AnnotationHistory.class).getAnnotationId());
+                }
+            }
+            assertEquals(new HashSet<>(Arrays.asList(heldId, id)), delivered);
+        }
+    }
+
+    @Test
+    public void testClosedChangesStreamsAreDropped() throws InterruptedException {
+        final DocRef docRef = createDocument();
+
+        final Response changesResponse = annotationsClient.changes(authRule.adminUser(), docRef.getUuid(), null);
+        assertEquals(HttpStatus.OK_200, changesResponse.getStatus());
+        final EventInput eventInput = changesResponse.readEntity(EventInput.class);
+        assertNotNull(eventInput.read());
+        eventInput.close();
+
+        // The heartbeats written to the closed stream fail, which drops it from the bus
+        final Gauge subscriptions = appRule.getEnvironment().metrics().getGauges()
+                .get(MetricRegistry.name(AnnotationChangeBus.class, "subscriptions"));
+        final long heartbeatMillis = appRule.getConfiguration().getChangeFeedConfig().getHeartbeatInterval().toMilliseconds();
+        for (int i = 0; i < 20 && !Integer.valueOf(0).equals(subscriptions.getValue()); i++) {
+            Thread.sleep(heartbeatMillis);
+        }
+        assertEquals(0, subscriptions.getValue());
+    }
+
+    /**
+     * Waits until the history written so far is old enough to be read by the feed
+     */
+    private void waitForHistoryToSettle() {
+        try {
+            Thread.sleep(appRule.getConfiguration().getChangeFeedConfig().getSettleTime().toMilliseconds() * 2);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Reads a page of the change feed for an index
+     *
+     * @param docRef The Document of the index to read the changes of
+     * @param fromId The ID of the last change already seen, null to start from the beginning
+     * @param limit The maximum number of changes to return
+     * @return The page of changes returned by the service.
+     */
+    private List<AnnotationHistory> getFeed(final DocRef docRef,
+                                            final Long fromId,
+                                            final Integer limit) {
+        List<AnnotationHistory> result = null;
+
+        try {
+            final Response response = annotationsClient.feed(authRule.adminUser(), docRef.getUuid(), fromId, limit);
+            assertEquals(HttpStatus.OK_200, response.getStatus());
+
+            result = response.readEntity(new GenericType<List<AnnotationHistory>>(){});
+        } catch (Exception e) {
+            fail(e.getLocalizedMessage());
+        }
+
+        return result;
+    }
+
     /**
      * Given an ID, calls GET on the service to retrieve that specific annotation.
      * This function asserts that the annotation was found correctly.
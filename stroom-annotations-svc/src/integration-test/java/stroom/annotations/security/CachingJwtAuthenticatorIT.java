@@ -0,0 +1,236 @@
+package stroom.annotations.security;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.dropwizard.jackson.Jackson;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.RsaJsonWebKey;
+import org.jose4j.jwk.RsaJwkGenerator;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.NumericDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import stroom.annotations.config.AuthenticationCacheConfig;
+import stroom.query.audit.security.ServiceUser;
+import stroom.query.audit.security.TokenConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachingJwtAuthenticatorIT {
+
+    private static final String PUBLIC_KEY_PATH = "/testAuthService/publicKey";
+    private static final String ISSUER = "stroom";
+
+    @Rule
+    public WireMockRule tokenService = new WireMockRule(options().port(10081));
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private RsaJsonWebKey currentKey;
+    private RsaJsonWebKey nextKey;
+
+    private JsonWebKeyCache keys;
+
+    @Before
+    public void setup() throws Exception {
+        currentKey = createKey();
+        nextKey = createKey();
+        publish(currentKey);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (null != keys) {
+            keys.stop();
+        }
+    }
+
+    @Test
+    public void testVerifiedTokensAreCached() throws Exception {
+        final CachingJwtAuthenticator authenticator = createAuthenticator("200ms", "1m");
+        final String subject = UUID.randomUUID().toString();
+        final String jwt = createToken(currentKey, subject, 60);
+
+        for (int i = 0; i < 3; i++) {
+            final Optional<ServiceUser> user = authenticator.authenticate(jwt);
+            assertTrue(user.isPresent());
+            assertEquals(subject, user.get().getName());
+            assertEquals(jwt, user.get().getJwt());
+        }
+
+        assertEquals(1, getVerifications());
+        assertEquals(1, getMisses());
+        assertEquals(2, getHits());
+
+        // Another token is verified on its own
+        assertTrue(authenticator.authenticate(createToken(currentKey, subject, 60)).isPresent());
+        assertEquals(2, getVerifications());
+    }
+
+    @Test
+    public void testCachedTokensExpireWithTheToken() throws Exception {
+        final CachingJwtAuthenticator authenticator = createAuthenticator("200ms", "1m");
+        final String jwt = createToken(currentKey, UUID.randomUUID().toString(), 2);
+
+        assertTrue(authenticator.authenticate(jwt).isPresent());
+        assertTrue(authenticator.authenticate(jwt).isPresent());
+        assertEquals(1, getVerifications());
+
+        // The time to live is a minute, but the token expires first
+        Thread.sleep(3000);
+        authenticator.authenticate(jwt);
+        assertEquals(2, getVerifications());
+        assertEquals(2, getMisses());
+    }
+
+    @Test
+    public void testRejectedTokensAreNotCached() throws Exception {
+        final CachingJwtAuthenticator authenticator = createAuthenticator("200ms", "1m");
+        final String forged = createToken(createKey(), UUID.randomUUID().toString(), 60);
+        final String otherIssuer = createToken(currentKey, UUID.randomUUID().toString(), 60, "someoneElse");
+
+        for (int i = 0; i < 2; i++) {
+            assertFalse(authenticator.authenticate(forged).isPresent());
+            assertFalse(authenticator.authenticate(otherIssuer).isPresent());
+        }
+
+        assertEquals(4, getVerifications());
+        assertEquals(0, getHits());
+    }
+
+    @Test
+    public void testRotatedKeysAreFetched() throws Exception {
+        final CachingJwtAuthenticator authenticator = createAuthenticator("1m", "500ms");
+        final String nextToken = createToken(nextKey, UUID.randomUUID().toString(), 60);
+        final List<String> forged = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            forged.add(createToken(createKey(), UUID.randomUUID().toString(), 60));
+        }
+        Thread.sleep(1000);
+        tokenService.resetRequests();
+
+        // The token service starts signing with its next key, and publishes both while tokens from the first are live
+        publish(currentKey, nextKey);
+        assertTrue(authenticator.authenticate(nextToken).isPresent());
+        assertTrue(authenticator.authenticate(createToken(currentKey, UUID.randomUUID().toString(), 60)).isPresent());
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "unknownKeys")).getCount());
+        tokenService.verify(1, getRequestedFor(urlEqualTo(PUBLIC_KEY_PATH)));
+
+        // Unknown keys do not fetch the keys again within the minimum interval
+        for (final String jwt : forged) {
+            assertFalse(authenticator.authenticate(jwt).isPresent());
+        }
+        tokenService.verify(1, getRequestedFor(urlEqualTo(PUBLIC_KEY_PATH)));
+    }
+
+    @Test
+    public void testKeysAreRefreshedInTheBackground() throws Exception {
+        final CachingJwtAuthenticator authenticator = createAuthenticator("200ms", "1m");
+        final String jwt = createToken(currentKey, UUID.randomUUID().toString(), 60);
+        assertTrue(authenticator.authenticate(jwt).isPresent());
+
+        // A failed fetch keeps the keys already held
+        tokenService.stubFor(get(urlEqualTo(PUBLIC_KEY_PATH)).willReturn(aResponse().withStatus(500)));
+        Thread.sleep(1000);
+        assertTrue(metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "refreshFailures")).getCount() > 0);
+        assertTrue(authenticator.authenticate(createToken(currentKey, UUID.randomUUID().toString(), 60)).isPresent());
+
+        // The next key is picked up without any token asking for it
+        publish(nextKey);
+        Thread.sleep(1000);
+        final long unknownKeys = metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "unknownKeys")).getCount();
+        assertTrue(authenticator.authenticate(createToken(nextKey, UUID.randomUUID().toString(), 60)).isPresent());
+        assertEquals(unknownKeys, metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "unknownKeys")).getCount());
+    }
+
+    /**
+     * @param keyRefreshInterval How often the keys are fetched in the background
+     * @param minimumKeyRefreshInterval How often a token signed by an unknown key can fetch them
+     */
+    private CachingJwtAuthenticator createAuthenticator(final String keyRefreshInterval,
+                                                        final String minimumKeyRefreshInterval) throws Exception {
+        final AuthenticationCacheConfig config = Jackson.newObjectMapper().readValue(String.format(
+                "{\"timeToLive\": \"1m\", \"keyRefreshInterval\": \"%s\", \"minimumKeyRefreshInterval\": \"%s\"}",
+                keyRefreshInterval, minimumKeyRefreshInterval),
+                AuthenticationCacheConfig.class);
+        final TokenConfig tokenConfig = Jackson.newObjectMapper().readValue(String.format(
+                "{\"publicKeyUrl\": \"http://localhost:%d%s\", \"jwsIssuer\": \"%s\", \"algorithm\": \"%s\"}",
+                tokenService.port(), PUBLIC_KEY_PATH, ISSUER, AlgorithmIdentifiers.RSA_USING_SHA256),
+                TokenConfig.class);
+
+        keys = new JsonWebKeyCache(tokenConfig.getPublicKeyUrl(), config, metricRegistry);
+        keys.start();
+
+        return new CachingJwtAuthenticator(new JwtVerifier(tokenConfig, keys, metricRegistry), config, metricRegistry);
+    }
+
+    private void publish(final RsaJsonWebKey... published) {
+        final String body = (published.length == 1)
+                ? published[0].toJson(JsonWebKey.OutputControlLevel.PUBLIC_ONLY)
+                : new JsonWebKeySet(published).toJson(JsonWebKey.OutputControlLevel.PUBLIC_ONLY);
+
+        tokenService.stubFor(get(urlEqualTo(PUBLIC_KEY_PATH))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(body)));
+    }
+
+    private static RsaJsonWebKey createKey() throws Exception {
+        final RsaJsonWebKey key = RsaJwkGenerator.generateJwk(2048);
+        key.setKeyId(UUID.randomUUID().toString());
+        return key;
+    }
+
+    private static String createToken(final RsaJsonWebKey key,
+                                      final String subject,
+                                      final int secondsToLive) throws Exception {
+        return createToken(key, subject, secondsToLive, ISSUER);
+    }
+
+    private static String createToken(final RsaJsonWebKey key,
+                                      final String subject,
+                                      final int secondsToLive,
+                                      final String issuer) throws Exception {
+        final JwtClaims claims = new JwtClaims();
+        claims.setSubject(subject);
+        claims.setIssuer(issuer);
+        claims.setExpirationTime(NumericDate.fromMilliseconds(System.currentTimeMillis() + secondsToLive * 1000L));
+
+        final JsonWebSignature jws = new JsonWebSignature();
+        jws.setPayload(claims.toJson());
+        jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.RSA_USING_SHA256);
+        jws.setKeyIdHeaderValue(key.getKeyId());
+        jws.setKey(key.getPrivateKey());
+        return jws.getCompactSerialization();
+    }
+
+    private long getVerifications() {
+        return metricRegistry.timer(MetricRegistry.name(JwtVerifier.class, "verification")).getCount();
+    }
+
+    private long getHits() {
+        return metricRegistry.meter(MetricRegistry.name(CachingJwtAuthenticator.class, "hits")).getCount();
+    }
+
+    private long getMisses() {
+        return metricRegistry.meter(MetricRegistry.name(CachingJwtAuthenticator.class, "misses")).getCount();
+    }
+}
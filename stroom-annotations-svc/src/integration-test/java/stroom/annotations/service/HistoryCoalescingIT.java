@@ -0,0 +1,216 @@
+package stroom.annotations.service;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import org.eclipse.jetty.http.HttpStatus;
+import org.jooq.impl.DSL;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import stroom.annotations.App;
+import stroom.annotations.DatabaseRule;
+import stroom.annotations.client.AnnotationsHttpClient;
+import stroom.annotations.config.Config;
+import stroom.annotations.kafka.AnnotationsKafkaPublisher;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.model.Status;
+import stroom.query.api.v2.DocRef;
+import stroom.query.audit.authorisation.DocumentPermission;
+import stroom.query.audit.client.DocRefResourceHttpClient;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.testing.DropwizardAppWithClientsRule;
+import stroom.query.testing.StroomAuthenticationRule;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static io.dropwizard.testing.ResourceHelpers.resourceFilePath;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The service under test coalesces updates within a two second window, and queues history for Kafka without ever
+ * relaying it, so the outbox shows which history points were withdrawn.
+ */
+public class HistoryCoalescingIT {
+
+    private static final long WINDOW_MS = 2000;
+
+    @ClassRule
+    public static final DropwizardAppWithClientsRule<Config> appRule =
+            new DropwizardAppWithClientsRule<>(App.class, resourceFilePath("config_coalescing.yml"));
+
+    @ClassRule
+    public static StroomAuthenticationRule authRule =
+            new StroomAuthenticationRule(WireMockConfiguration.options().port(10080));
+
+    @Rule
+    public DatabaseRule databaseRule = new DatabaseRule(appRule::getConfiguration);
+
+    private final AnnotationsHttpClient annotationsClient;
+    private final DocRefResourceHttpClient<AnnotationsDocRefEntity> docRefClient;
+
+    public HistoryCoalescingIT() {
+        annotationsClient = appRule.getClient(AnnotationsHttpClient::new);
+        docRefClient = appRule.getClient(DocRefResourceHttpClient::new);
+    }
+
+    @Test
+    public void testUpdatesWithinWindowAreCoalesced() {
+        final DocRef docRef = createDocument();
+        final String id = create(docRef);
+        final Set<Long> seenIds = new HashSet<>(historyIds(docRef, id));
+
+        String content = null;
+        for (int i = 0; i < 3; i++) {
+            content = UUID.randomUUID().toString();
+            final Response response = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), id, annotation(id, content));
+            assertEquals(HttpStatus.OK_200, response.getStatus());
+            response.close();
+            seenIds.addAll(historyIds(docRef, id));
+        }
+
+        final List<AnnotationHistory> history = getHistory(docRef, id);
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE), operations(history));
+        assertEquals(content, history.get(1).getContent());
+        assertEquals(4, seenIds.size());
+        assertOnlyCurrentHistoryIsQueued(history, seenIds);
+    }
+
+    @Test
+    public void testUpsertsWithinWindowAreCoalesced() {
+        final DocRef docRef = createDocument();
+        final String id = UUID.randomUUID().toString();
+        final Set<Long> seenIds = new HashSet<>();
+
+        String content = null;
+        for (int i = 0; i < 3; i++) {
+            content = UUID.randomUUID().toString();
+            final Response response = annotationsClient.upsert(authRule.adminUser(), docRef.getUuid(), id, annotation(id, content));
+            assertEquals(HttpStatus.OK_200, response.getStatus());
+            response.close();
+            seenIds.addAll(historyIds(docRef, id));
+        }
+
+        final List<AnnotationHistory> history = getHistory(docRef, id);
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE), operations(history));
+        assertEquals(content, history.get(1).getContent());
+        assertEquals(3, seenIds.size());
+        assertOnlyCurrentHistoryIsQueued(history, seenIds);
+    }
+
+    @Test
+    public void testUpdateAfterAnotherUserIsNotCoalesced() {
+        final DocRef docRef = createDocument();
+        final String id = create(docRef);
+        update(docRef, id);
+
+        // Make the latest update look like it was made by someone else
+        databaseRule.database()
+                .update(DSL.table("annotation_history"))
+                .set(DocRefJooqEntity.UPDATE_USER_FIELD, "someoneElse")
+                .where(AnnotationHistory.ID_FIELD.equal(getHistory(docRef, id).get(1).getId()))
+                .execute();
+
+        update(docRef, id);
+
+        final List<AnnotationHistory> history = getHistory(docRef, id);
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE, HistoryOperation.UPDATE),
+                operations(history));
+        assertOnlyCurrentHistoryIsQueued(history, new HashSet<>(historyIds(docRef, id)));
+    }
+
+    @Test
+    public void testUpdateOutsideWindowIsNotCoalesced() throws InterruptedException {
+        final DocRef docRef = createDocument();
+        final String id = create(docRef);
+        update(docRef, id);
+
+        Thread.sleep(WINDOW_MS + 500);
+
+        update(docRef, id);
+
+        final List<AnnotationHistory> history = getHistory(docRef, id);
+        assertEquals(Arrays.asList(HistoryOperation.CREATE, HistoryOperation.UPDATE, HistoryOperation.UPDATE),
+                operations(history));
+    }
+
+    /**
+     * Every history point still in the history is queued for Kafka, and every one that was coalesced away is not
+     * @param history The current history of the annotation
+     * @param seenIds The IDs of every history point seen for the annotation, including those since removed
+     */
+    private void assertOnlyCurrentHistoryIsQueued(final List<AnnotationHistory> history,
+                                                  final Set<Long> seenIds) {
+        final Set<Long> queued = new HashSet<>(databaseRule.database()
+                .select(AnnotationsKafkaPublisher.HISTORY_ID_FIELD)
+                .from(AnnotationsKafkaPublisher.OUTBOX_TABLE)
+                .where(AnnotationsKafkaPublisher.HISTORY_ID_FIELD.in(seenIds))
+                .fetch(AnnotationsKafkaPublisher.HISTORY_ID_FIELD));
+
+        assertEquals(history.stream().map(AnnotationHistory::getId).collect(Collectors.toSet()), queued);
+    }
+
+    private Annotation annotation(final String id, final String content) {
+        return new Annotation.Builder()
+                .id(id)
+                .content(content)
+                .status(Status.OPEN_ESCALATED)
+                .build();
+    }
+
+    private String create(final DocRef docRef) {
+        final String id = UUID.randomUUID().toString();
+        final Response response = annotationsClient.create(authRule.adminUser(), docRef.getUuid(), id);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        response.close();
+        return id;
+    }
+
+    private void update(final DocRef docRef, final String id) {
+        final Response response = annotationsClient.update(authRule.adminUser(), docRef.getUuid(), id,
+                annotation(id, UUID.randomUUID().toString()));
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        response.close();
+    }
+
+    private List<AnnotationHistory> getHistory(final DocRef docRef, final String id) {
+        final Response response = annotationsClient.getHistory(authRule.adminUser(), docRef.getUuid(), id);
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        return response.readEntity(new GenericType<List<AnnotationHistory>>() {});
+    }
+
+    private List<Long> historyIds(final DocRef docRef, final String id) {
+        return getHistory(docRef, id).stream().map(AnnotationHistory::getId).collect(Collectors.toList());
+    }
+
+    private static List<HistoryOperation> operations(final List<AnnotationHistory> history) {
+        return history.stream().map(AnnotationHistory::getOperation).collect(Collectors.toList());
+    }
+
+    private DocRef createDocument() {
+        final DocRef docRef = new DocRef.Builder()
+                .uuid(UUID.randomUUID().toString())
+                .type(AnnotationsDocRefEntity.TYPE)
+                .name(UUID.randomUUID().toString())
+                .build();
+
+        final Response createResponse = docRefClient.createDocument(authRule.adminUser(), docRef.getUuid(), docRef.getName());
+        assertEquals(HttpStatus.OK_200, createResponse.getStatus());
+
+        authRule.permitAdminUser()
+                .docRef(docRef)
+                .permission(DocumentPermission.READ)
+                .permission(DocumentPermission.UPDATE)
+                .done();
+
+        return docRef;
+    }
+}
@@ -0,0 +1,114 @@
+package db.migration;
+
+import org.flywaydb.core.api.migration.jdbc.JdbcMigration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Widens annotation_history.id from INT to BIGINT UNSIGNED without blocking the writers of history for the length
+ * of a table copy, which is what a plain ALTER of the column would do.
+ *
+ * The history is copied into a wide shadow table a chunk at a time, each chunk in its own transaction. Triggers on
+ * the history keep the shadow up to date with the rows written and coalesced away while the copy runs. Once it has
+ * caught up, the two tables are swapped by an atomic rename. Writers are only held up while the triggers are created
+ * and while the tables are renamed.
+ *
+ * Anything left over from an earlier attempt that did not finish is dropped first, so the migration can be retried.
+ */
+public class V9__Widen_history_id implements JdbcMigration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(V9__Widen_history_id.class);
+
+    private static final int CHUNK_SIZE = 10000;
+
+    private static final String[] COLUMNS = {
+            "dataSourceUuid",
+            "id",
+            "operation",
+            "annotationId",
+            "status",
+            "assignTo",
+            "content",
+            "updateUser",
+            "updateTime",
+            "createUser",
+            "createTime"
+    };
+
+    private final String history;
+    private final String wide;
+    private final String narrow;
+    private final String insertTrigger;
+    private final String deleteTrigger;
+    private final String outbox;
+
+    public V9__Widen_history_id() {
+        this("annotation_history", "annotation_outbox");
+    }
+
+    /**
+     * @param history The history table to widen
+     * @param outbox The outbox table whose references to the history are widened with it
+     */
+    V9__Widen_history_id(final String history,
+                          final String outbox) {
+        this.history = history;
+        this.wide = history + "_wide";
+        this.narrow = history + "_narrow";
+        this.insertTrigger = history + "_widen_insert";
+        this.deleteTrigger = history + "_widen_delete";
+        this.outbox = outbox;
+    }
+
+    @Override
+    public void migrate(final Connection connection) throws Exception {
+        final String columns = String.join(", ", COLUMNS);
+        final String newValues = "NEW." + String.join(", NEW.", COLUMNS);
+
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(String.format("DROP TRIGGER IF EXISTS %s", insertTrigger));
+            statement.execute(String.format("DROP TRIGGER IF EXISTS %s", deleteTrigger));
+            statement.execute(String.format("DROP TABLE IF EXISTS %s", wide));
+
+            statement.execute(String.format("CREATE TABLE %s LIKE %s", wide, history));
+            statement.execute(String.format("ALTER TABLE %s MODIFY id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT", wide));
+
+            statement.execute(String.format("CREATE TRIGGER %s AFTER INSERT ON %s FOR EACH ROW REPLACE INTO %s (%s) VALUES (%s)",
+                    insertTrigger, history, wide, columns, newValues));
+            statement.execute(String.format("CREATE TRIGGER %s AFTER DELETE ON %s FOR EACH ROW DELETE FROM %s WHERE id = OLD.id",
+                    deleteTrigger, history, wide));
+
+            // Everything written from here on is copied by the triggers, so the copy only has to reach this far
+            final long maxId = fetchLong(statement, String.format("SELECT COALESCE(MAX(id), 0) FROM %s", history));
+
+            for (long from = 0; from < maxId; from += CHUNK_SIZE) {
+                statement.execute(String.format("INSERT IGNORE INTO %s (%s) SELECT %s FROM %s WHERE id > %d AND id <= %d",
+                        wide, columns, columns, history, from, from + CHUNK_SIZE));
+                connection.commit();
+            }
+            LOGGER.info("Copied annotation history up to {} into {}", maxId, wide);
+
+            // Carry on numbering where the old table left off, so that no ID is ever handed out twice
+            final long nextId = fetchLong(statement, String.format(
+                    "SELECT COALESCE(AUTO_INCREMENT, 1) FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '%s'",
+                    history));
+            statement.execute(String.format("ALTER TABLE %s AUTO_INCREMENT = %d", wide, nextId));
+
+            statement.execute(String.format("RENAME TABLE %s TO %s, %s TO %s", history, narrow, wide, history));
+            statement.execute(String.format("DROP TABLE %s", narrow));
+
+            statement.execute(String.format("ALTER TABLE %s MODIFY historyId BIGINT UNSIGNED NOT NULL", outbox));
+        }
+    }
+
+    private static long fetchLong(final Statement statement, final String sql) throws Exception {
+        try (final ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
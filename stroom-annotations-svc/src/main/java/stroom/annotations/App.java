@@ -1,9 +1,20 @@
 package stroom.annotations;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
+import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.name.Names;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
 import com.google.inject.util.Modules;
 import io.dropwizard.Application;
 import io.dropwizard.configuration.EnvironmentVariableSubstitutor;
@@ -11,14 +22,40 @@ import io.dropwizard.configuration.SubstitutingSourceProvider;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+import stroom.annotations.config.BloomFilterConfig;
+import stroom.annotations.config.ChangeFeedConfig;
 import stroom.annotations.config.Config;
+import stroom.annotations.config.HistoryCoalescingConfig;
+import stroom.annotations.config.HistoryCompressionConfig;
+import stroom.annotations.config.PurgeConfig;
+import stroom.annotations.config.KafkaIngestConfig;
+import stroom.annotations.config.KafkaPublisherConfig;
+import stroom.annotations.config.ReadRoutingConfig;
+import stroom.annotations.config.RequestTimingConfig;
+import stroom.annotations.config.SearchResultCacheConfig;
+import stroom.annotations.config.SqlMetricsConfig;
+import stroom.annotations.kafka.AnnotationsKafkaIngester;
+import stroom.annotations.kafka.AnnotationsKafkaPublisher;
+import stroom.annotations.metrics.ConnectionPoolHealthCheck;
+import stroom.annotations.metrics.SqlMetricsListener;
+import stroom.annotations.metrics.TimedConnectionProvider;
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationsDocRefEntity;
 import stroom.annotations.resources.AuditedAnnotationsResourceImpl;
+import stroom.annotations.security.AuthenticationBundle;
+import stroom.annotations.service.AnnotationBloomFilters;
+import stroom.annotations.service.AnnotationPurger;
+import stroom.annotations.service.AnnotationChangeBus;
 import stroom.annotations.service.AnnotationsDocRefServiceImpl;
+import stroom.annotations.service.AnnotationsQueryServiceImpl;
 import stroom.annotations.service.AnnotationsService;
 import stroom.annotations.service.AnnotationsServiceImpl;
+import stroom.annotations.service.DatabaseRouter;
 import stroom.query.audit.service.DocRefService;
+import stroom.query.audit.service.QueryService;
 import stroom.query.jooq.AuditedJooqQueryBundle;
 
 import javax.servlet.DispatcherType;
@@ -29,6 +66,8 @@ public class App extends Application<Config> {
 
     private Injector injector;
 
+    private MetricRegistry metricRegistry;
+
     private AuditedJooqQueryBundle<Config,
                     AnnotationsDocRefServiceImpl,
                     AnnotationsDocRefEntity,
@@ -40,37 +79,149 @@ public class App extends Application<Config> {
 
     @Override
     public void run(final Config configuration,
-                    final Environment environment) {
+                    final Environment environment) throws Exception {
         // And we want to configure authentication before the resources
         configureCors(environment);
 
+        final DSLContext database = injector.getInstance(DSLContext.class);
+        injector.getInstance(SqlMetricsListener.class).install(database);
+        registerConnectionPool(configuration, environment, database, "database", "connectionPool");
+
+        if (null != configuration.getReadDataSourceFactory()) {
+            final DSLContext readDatabase = DSL.using(configuration.getJooqFactory()
+                    .build(environment, configuration.getReadDataSourceFactory(), "readDatabase"));
+            injector.getInstance(SqlMetricsListener.class).install(readDatabase);
+            registerConnectionPool(configuration, environment, readDatabase, "readDatabase", "readConnectionPool");
+            injector.getInstance(DatabaseRouter.class).setReplica(readDatabase);
+        }
+
+        environment.lifecycle().manage(injector.getInstance(AnnotationChangeBus.class));
+        environment.lifecycle().manage(injector.getInstance(AnnotationBloomFilters.class));
+        environment.lifecycle().manage(injector.getInstance(AnnotationPurger.class));
+        environment.lifecycle().manage(injector.getInstance(AnnotationsKafkaPublisher.class));
+        environment.lifecycle().manage(injector.getInstance(AnnotationsKafkaIngester.class));
+
+        environment.jersey().register(SseFeature.class);
         environment.jersey().register(injector.getInstance(AuditedAnnotationsResourceImpl.class));
     }
 
+    /**
+     * Measure the connection pool of a database, and fail a health check of its own when the pool is saturated
+     */
+    private static void registerConnectionPool(final Config configuration,
+                                               final Environment environment,
+                                               final DSLContext database,
+                                               final String name,
+                                               final String healthCheckName) {
+        final TimedConnectionProvider connectionProvider = TimedConnectionProvider.install(database,
+                name,
+                configuration.getSqlMetricsConfig().getPoolWaitWindow(),
+                environment.metrics());
+        environment.healthChecks().register(healthCheckName, new ConnectionPoolHealthCheck(
+                connectionProvider.getAcquireTimer(),
+                configuration.getSqlMetricsConfig().getPoolWaitThreshold(),
+                configuration.getSqlMetricsConfig().getPoolWaitWindow()));
+    }
+
     private static void configureCors(final Environment environment) {
         FilterRegistration.Dynamic cors = environment.servlets().addFilter("CORS", CrossOriginFilter.class);
         cors.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType.class), true, new String[]{"/*"});
         cors.setInitParameter("allowedMethods", "GET,PUT,POST,DELETE,OPTIONS");
         cors.setInitParameter("allowedOrigins", "*");
         cors.setInitParameter("Access-Control-Allow-Origin", "*");
-        cors.setInitParameter("allowedHeaders", "Content-Type,Authorization,X-Requested-With,Content-Length,Accept,Origin");
+        cors.setInitParameter("allowedHeaders", "Content-Type,Authorization,X-Requested-With,Content-Length,Accept,Origin,Last-Event-ID");
         cors.setInitParameter("allowCredentials", "true");
     }
 
 
     private Module getGuiceModule(final Config config) {
-        return Modules.combine(new AbstractModule() {
+        final Module bundleModule = auditedQueryBundle.getGuiceModule(config);
+        final Module module = Modules.combine(new AbstractModule() {
             @Override
             protected void configure() {
                 bind(AnnotationsService.class).to(AnnotationsServiceImpl.class);
+                bind(MetricRegistry.class).toInstance(metricRegistry);
+                bind(RequestTimingConfig.class).toInstance(config.getRequestTimingConfig());
+                bind(SqlMetricsConfig.class).toInstance(config.getSqlMetricsConfig());
+                bind(ReadRoutingConfig.class).toInstance(config.getReadRoutingConfig());
+                bind(SearchResultCacheConfig.class).toInstance(config.getSearchResultCacheConfig());
+                bind(BloomFilterConfig.class).toInstance(config.getBloomFilterConfig());
+                bind(HistoryCoalescingConfig.class).toInstance(config.getHistoryCoalescingConfig());
+                bind(HistoryCompressionConfig.class).toInstance(config.getHistoryCompressionConfig());
+                bind(ChangeFeedConfig.class).toInstance(config.getChangeFeedConfig());
+                bind(PurgeConfig.class).toInstance(config.getPurgeConfig());
+                bind(KafkaPublisherConfig.class).toInstance(config.getKafkaPublisherConfig());
+                bind(KafkaIngestConfig.class).toInstance(config.getKafkaIngestConfig());
             }
-        }, auditedQueryBundle.getGuiceModule(config));
+        }, bundleModule);
+
+        // Replaces the generic query service of the bundle with one that pushes the whole query down to SQL,
+        // keeping the generic one under another name for the searches that SQL cannot express
+        final Binding<QueryService> bundleQueryService = getBinding(bundleModule, Key.get(QueryService.class));
+        return Modules.override(module).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(QueryService.class).to(AnnotationsQueryServiceImpl.class);
+                rebind(bundleQueryService, bind(QueryService.class)
+                        .annotatedWith(Names.named(AnnotationsQueryServiceImpl.BUNDLE_QUERY_SERVICE)));
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Binding<T> getBinding(final Module module,
+                                             final Key<T> key) {
+        return Elements.getElements(module).stream()
+                .filter(element -> element instanceof Binding)
+                .map(element -> (Binding<T>) element)
+                .filter(binding -> key.equals(binding.getKey()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("The query bundle does not bind " + key));
+    }
+
+    /**
+     * Bind another key to whatever the given binding is bound to
+     */
+    private static <T> void rebind(final Binding<T> binding,
+                                   final LinkedBindingBuilder<T> builder) {
+        binding.acceptTargetVisitor(new DefaultBindingTargetVisitor<T, Void>() {
+            @Override
+            public Void visit(final LinkedKeyBinding<? extends T> linkedKeyBinding) {
+                builder.to(linkedKeyBinding.getLinkedKey());
+                return null;
+            }
+
+            @Override
+            public Void visit(final InstanceBinding<? extends T> instanceBinding) {
+                builder.toInstance(instanceBinding.getInstance());
+                return null;
+            }
+
+            @Override
+            public Void visit(final ProviderInstanceBinding<? extends T> providerInstanceBinding) {
+                builder.toProvider(providerInstanceBinding.getUserSuppliedProvider());
+                return null;
+            }
+
+            @Override
+            public Void visit(final ProviderKeyBinding<? extends T> providerKeyBinding) {
+                builder.toProvider(providerKeyBinding.getProviderKey());
+                return null;
+            }
+
+            @Override
+            protected Void visitOther(final Binding<? extends T> other) {
+                throw new IllegalStateException("Cannot bind another key to " + other);
+            }
+        });
     }
 
     @Override
     public void initialize(final Bootstrap<Config> bootstrap) {
         super.initialize(bootstrap);
 
+        metricRegistry = bootstrap.getMetricRegistry();
+
         auditedQueryBundle =
                 new AuditedJooqQueryBundle<>((c) -> {
                     injector = Guice.createInjector(getGuiceModule(c));
@@ -85,6 +236,8 @@ public class App extends Application<Config> {
                 bootstrap.getConfigurationSourceProvider(),
                 new EnvironmentVariableSubstitutor(false)));
 
+        // Must come first, so its authentication filter is the one in place of the query bundle's
+        bootstrap.addBundle(new AuthenticationBundle());
         bootstrap.addBundle(this.auditedQueryBundle);
     }
 }
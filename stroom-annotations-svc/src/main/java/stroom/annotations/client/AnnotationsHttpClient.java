@@ -2,7 +2,12 @@ package stroom.annotations.client;
 
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
 import stroom.annotations.model.Annotation;
+import stroom.annotations.model.BulkUpdateDTO;
 import stroom.annotations.resources.AnnotationsResource;
 import stroom.query.audit.security.ServiceUser;
 
@@ -12,6 +17,7 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Response;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -22,6 +28,11 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
     private final Function<String, String> searchUrl;
     private final BiFunction<String, String, String> singleUrl;
     private final BiFunction<String, String, String> getHistoryUrl;
+    private final Function<String, String> existsUrl;
+    private final BiFunction<String, String, String> upsertUrl;
+    private final Function<String, String> bulkUrl;
+    private final Function<String, String> feedUrl;
+    private final Function<String, String> changesUrl;
     private final Client httpClient;
 
     public AnnotationsHttpClient(final String baseUrl) {
@@ -36,11 +47,34 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
                 index,
                 id);
 
+        this.existsUrl = (index) -> String.format("%s/annotations/v1/exists/%s",
+                this.baseUrl,
+                index);
+        this.upsertUrl = (index, id) -> String.format("%s/annotations/v1/upsert/%s/%s",
+                this.baseUrl,
+                index,
+                id);
+        this.bulkUrl = (index) -> String.format("%s/annotations/v1/bulk/%s",
+                this.baseUrl,
+                index);
+        this.feedUrl = (index) -> String.format("%s/annotations/v1/feed/%s",
+                this.baseUrl,
+                index);
+        this.changesUrl = (index) -> String.format("%s/annotations/v1/changes/%s",
+                this.baseUrl,
+                index);
+
         this.singleUrl = (index, id) -> String.format("%s/annotations/v1/single/%s/%s",
                 this.baseUrl,
                 index,
                 id);
-        httpClient = ClientBuilder.newClient(new ClientConfig().register(ClientResponse.class));
+        // The encoders and filter ask the server for compressed responses and decode them transparently
+        httpClient = ClientBuilder.newClient(new ClientConfig()
+                .register(ClientResponse.class)
+                .register(EncodingFilter.class)
+                .register(GZipEncoder.class)
+                .register(DeflateEncoder.class)
+                .register(SseFeature.class));
     }
 
     @Override
@@ -84,6 +118,17 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
                 .get();
     }
 
+    @Override
+    public Response exists(final ServiceUser authenticatedServiceUser,
+                           final String index,
+                           final List<String> ids) {
+        return httpClient
+                .target(this.existsUrl.apply(index))
+                .request()
+                .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
+                .post(Entity.json(ids));
+    }
+
     @Override
     public Response getHistory(final ServiceUser authenticatedServiceUser,
                                final String index,
@@ -95,15 +140,37 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
                 .get();
     }
 
-    @Override
+    /**
+     * Create an annotation with the default content, assignee and status
+     */
     public Response create(final ServiceUser authenticatedServiceUser,
                            final String index,
                            final String id) {
+        return create(authenticatedServiceUser, index, id, null);
+    }
+
+    @Override
+    public Response create(final ServiceUser authenticatedServiceUser,
+                           final String index,
+                           final String id,
+                           final Annotation annotation) {
         return httpClient
                 .target(this.singleUrl.apply(index, id))
                 .request()
                 .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
-                .post(Entity.json(""));
+                .post(null != annotation ? Entity.json(annotation) : Entity.json(""));
+    }
+
+    @Override
+    public Response upsert(final ServiceUser authenticatedServiceUser,
+                           final String index,
+                           final String id,
+                           final Annotation annotation) {
+        return httpClient
+                .target(this.upsertUrl.apply(index, id))
+                .request()
+                .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
+                .put(Entity.json(annotation));
     }
 
     @Override
@@ -118,6 +185,17 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
                 .put(Entity.json(annotation));
     }
 
+    @Override
+    public Response updateAll(final ServiceUser authenticatedServiceUser,
+                              final String index,
+                              final BulkUpdateDTO update) {
+        return httpClient
+                .target(this.bulkUrl.apply(index))
+                .request()
+                .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
+                .post(Entity.json(update));
+    }
+
     @Override
     public Response remove(final ServiceUser authenticatedServiceUser,
                            final String index,
@@ -129,6 +207,32 @@ public class AnnotationsHttpClient implements AnnotationsResource, Closeable {
                 .delete();
     }
 
+    @Override
+    public Response feed(final ServiceUser authenticatedServiceUser,
+                         final String index,
+                         final Long fromId,
+                         final Integer limit) {
+        return httpClient
+                .target(this.feedUrl.apply(index))
+                .queryParam("fromId", fromId)
+                .queryParam("limit", limit)
+                .request()
+                .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
+                .get();
+    }
+
+    @Override
+    public Response changes(final ServiceUser authenticatedServiceUser,
+                            final String index,
+                            final Long lastEventId) {
+        return httpClient
+                .target(this.changesUrl.apply(index))
+                .request(SseFeature.SERVER_SENT_EVENTS_TYPE)
+                .header("Authorization", "Bearer " + authenticatedServiceUser.getJwt())
+                .header(SseFeature.LAST_EVENT_ID_HEADER, lastEventId)
+                .get();
+    }
+
     @Override
     public void close() throws IOException {
         httpClient.close();
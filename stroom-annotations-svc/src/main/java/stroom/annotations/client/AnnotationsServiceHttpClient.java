@@ -3,7 +3,9 @@ package stroom.annotations.client;
 import org.eclipse.jetty.http.HttpStatus;
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.BulkUpdateDTO;
 import stroom.annotations.model.ResponseMsgDTO;
+import stroom.annotations.model.Status;
 import stroom.annotations.service.AnnotationsService;
 import stroom.query.audit.client.QueryApiExceptionMapper;
 import stroom.query.audit.security.ServiceUser;
@@ -13,7 +15,10 @@ import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -51,6 +56,19 @@ public class AnnotationsServiceHttpClient implements AnnotationsService, Closeab
         }
     }
 
+    @Override
+    public Map<String, Status> getStatuses(final ServiceUser user,
+                                           final String index,
+                                           final Collection<String> ids) throws QueryApiException {
+        final Response response = httpClient.exists(user, index, new ArrayList<>(ids));
+
+        if (response.getStatus() == HttpStatus.OK_200) {
+            return response.readEntity(new GenericType<Map<String, Status>>(){});
+        } else {
+            throw QueryApiExceptionMapper.create(response);
+        }
+    }
+
     @Override
     public Optional<List<AnnotationHistory>> getHistory(final ServiceUser user,
                                                         final String index,
@@ -67,11 +85,40 @@ public class AnnotationsServiceHttpClient implements AnnotationsService, Closeab
         }
     }
 
+    @Override
+    public List<AnnotationHistory> getChanges(final ServiceUser user,
+                                              final String index,
+                                              final Long fromId,
+                                              final Integer limit) throws QueryApiException {
+        final Response response = httpClient.feed(user, index, fromId, limit);
+
+        if (response.getStatus() == HttpStatus.OK_200) {
+            return response.readEntity(new GenericType<List<AnnotationHistory>>(){});
+        } else {
+            throw QueryApiExceptionMapper.create(response);
+        }
+    }
+
     @Override
     public Optional<Annotation> create(final ServiceUser user,
                                        final String index,
-                                       final String id) throws QueryApiException {
-        final Response response = httpClient.create(user, index, id);
+                                       final String id,
+                                       final Annotation initialState) throws QueryApiException {
+        final Response response = httpClient.create(user, index, id, initialState);
+
+        if (response.getStatus() == HttpStatus.OK_200) {
+            return Optional.of(response.readEntity(Annotation.class));
+        } else {
+            throw QueryApiExceptionMapper.create(response);
+        }
+    }
+
+    @Override
+    public Optional<Annotation> upsert(final ServiceUser user,
+                                       final String index,
+                                       final String id,
+                                       final Annotation annotation) throws QueryApiException {
+        final Response response = httpClient.upsert(user, index, id, annotation);
 
         if (response.getStatus() == HttpStatus.OK_200) {
             return Optional.of(response.readEntity(Annotation.class));
@@ -94,6 +141,19 @@ public class AnnotationsServiceHttpClient implements AnnotationsService, Closeab
         }
     }
 
+    @Override
+    public int updateAll(final ServiceUser user,
+                         final String index,
+                         final BulkUpdateDTO update) throws QueryApiException {
+        final Response response = httpClient.updateAll(user, index, update);
+
+        if (response.getStatus() == HttpStatus.OK_200) {
+            return response.readEntity(ResponseMsgDTO.class).getRecordsUpdated();
+        } else {
+            throw QueryApiExceptionMapper.create(response);
+        }
+    }
+
     @Override
     public Optional<Boolean> remove(final ServiceUser user,
                                     final String index,
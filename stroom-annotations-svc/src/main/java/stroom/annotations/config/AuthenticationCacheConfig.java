@@ -0,0 +1,50 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class AuthenticationCacheConfig {
+    /**
+     * How long a verified token is trusted without verifying it again, never beyond the expiry of the token itself
+     */
+    @NotNull
+    @JsonProperty("timeToLive")
+    private Duration timeToLive = Duration.minutes(5);
+
+    @Min(0)
+    @JsonProperty("maximumSize")
+    private long maximumSize = 10000;
+
+    /**
+     * How often the public keys are fetched again in the background, so rotated keys are picked up
+     */
+    @NotNull
+    @JsonProperty("keyRefreshInterval")
+    private Duration keyRefreshInterval = Duration.minutes(5);
+
+    /**
+     * A token signed by an unknown key fetches the keys straight away, but no more often than this
+     */
+    @NotNull
+    @JsonProperty("minimumKeyRefreshInterval")
+    private Duration minimumKeyRefreshInterval = Duration.seconds(10);
+
+    public Duration getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Duration getKeyRefreshInterval() {
+        return keyRefreshInterval;
+    }
+
+    public Duration getMinimumKeyRefreshInterval() {
+        return minimumKeyRefreshInterval;
+    }
+}
@@ -0,0 +1,60 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class BloomFilterConfig {
+    /**
+     * Off by default, annotations created by other instances can be reported missing until they are refreshed
+     */
+    @JsonProperty("enabled")
+    private boolean enabled = false;
+
+    /**
+     * The number of annotations each index is sized for, a full filter is extended with another of twice the size
+     */
+    @Min(1)
+    @JsonProperty("expectedInsertions")
+    private long expectedInsertions = 100000;
+
+    @DecimalMin("0.0001")
+    @DecimalMax("0.5")
+    @JsonProperty("falsePositiveRate")
+    private double falsePositiveRate = 0.01;
+
+    /**
+     * How often annotations created by other instances of the service are added to the filters
+     */
+    @NotNull
+    @JsonProperty("refreshInterval")
+    private Duration refreshInterval = Duration.seconds(1);
+
+    @Min(1)
+    @JsonProperty("batchSize")
+    private int batchSize = 10000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public Duration getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
@@ -0,0 +1,44 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+
+public class ChangeFeedConfig {
+    /**
+     * History points are only read past once they were inserted at least this long ago, by when the transaction of
+     * any lower history ID is assumed to have committed or rolled back. Must be longer than any transaction that
+     * writes history takes to commit after writing it.
+     */
+    @NotNull
+    @JsonProperty("settleTime")
+    private Duration settleTime = Duration.seconds(2);
+
+    /**
+     * How often each change stream polls the history, so it also sees the changes made by other instances
+     */
+    @NotNull
+    @JsonProperty("pollInterval")
+    private Duration pollInterval = Duration.seconds(1);
+
+    /**
+     * A change stream that has sent nothing for this long sends a heartbeat, to keep proxies from closing it and
+     * to find out whether its client is still there
+     */
+    @NotNull
+    @JsonProperty("heartbeatInterval")
+    private Duration heartbeatInterval = Duration.seconds(15);
+
+    public Duration getSettleTime() {
+        return settleTime;
+    }
+
+    public Duration getPollInterval() {
+        return pollInterval;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+}
@@ -23,6 +23,46 @@ public class Config extends Configuration implements HasAuthorisationConfig, Has
     @JsonProperty("database")
     private DataSourceFactory dataSourceFactory = new DataSourceFactory();
 
+    @Valid
+    @Nullable
+    @JsonProperty("readDatabase")
+    private DataSourceFactory readDataSourceFactory;
+
+    @Valid
+    @NotNull
+    @JsonProperty("readRouting")
+    private ReadRoutingConfig readRoutingConfig = new ReadRoutingConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("searchResultCache")
+    private SearchResultCacheConfig searchResultCacheConfig = new SearchResultCacheConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("bloomFilter")
+    private BloomFilterConfig bloomFilterConfig = new BloomFilterConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("historyCoalescing")
+    private HistoryCoalescingConfig historyCoalescingConfig = new HistoryCoalescingConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("historyCompression")
+    private HistoryCompressionConfig historyCompressionConfig = new HistoryCompressionConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("changeFeed")
+    private ChangeFeedConfig changeFeedConfig = new ChangeFeedConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("purge")
+    private PurgeConfig purgeConfig = new PurgeConfig();
+
     @Valid
     @NotNull
     @JsonProperty("jooq")
@@ -41,10 +81,70 @@ public class Config extends Configuration implements HasAuthorisationConfig, Has
     @JsonProperty("authorisationService")
     private AuthorisationServiceConfig authorisationServiceConfig;
 
+    @Valid
+    @NotNull
+    @JsonProperty("authenticationCache")
+    private AuthenticationCacheConfig authenticationCacheConfig = new AuthenticationCacheConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("requestTiming")
+    private RequestTimingConfig requestTimingConfig = new RequestTimingConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("sqlMetrics")
+    private SqlMetricsConfig sqlMetricsConfig = new SqlMetricsConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("kafkaPublisher")
+    private KafkaPublisherConfig kafkaPublisherConfig = new KafkaPublisherConfig();
+
+    @Valid
+    @NotNull
+    @JsonProperty("kafkaIngest")
+    private KafkaIngestConfig kafkaIngestConfig = new KafkaIngestConfig();
+
     public final DataSourceFactory getDataSourceFactory() {
         return this.dataSourceFactory;
     }
 
+    /**
+     * @return The read replica to route annotation reads to, null if reads should go to the primary
+     */
+    public DataSourceFactory getReadDataSourceFactory() {
+        return readDataSourceFactory;
+    }
+
+    public ReadRoutingConfig getReadRoutingConfig() {
+        return readRoutingConfig;
+    }
+
+    public SearchResultCacheConfig getSearchResultCacheConfig() {
+        return searchResultCacheConfig;
+    }
+
+    public BloomFilterConfig getBloomFilterConfig() {
+        return bloomFilterConfig;
+    }
+
+    public HistoryCoalescingConfig getHistoryCoalescingConfig() {
+        return historyCoalescingConfig;
+    }
+
+    public HistoryCompressionConfig getHistoryCompressionConfig() {
+        return historyCompressionConfig;
+    }
+
+    public ChangeFeedConfig getChangeFeedConfig() {
+        return changeFeedConfig;
+    }
+
+    public PurgeConfig getPurgeConfig() {
+        return purgeConfig;
+    }
+
     public final JooqFactory getJooqFactory() {
         return jooqFactory;
     }
@@ -60,4 +160,24 @@ public class Config extends Configuration implements HasAuthorisationConfig, Has
     public AuthorisationServiceConfig getAuthorisationServiceConfig() {
         return authorisationServiceConfig;
     }
+
+    public AuthenticationCacheConfig getAuthenticationCacheConfig() {
+        return authenticationCacheConfig;
+    }
+
+    public RequestTimingConfig getRequestTimingConfig() {
+        return requestTimingConfig;
+    }
+
+    public SqlMetricsConfig getSqlMetricsConfig() {
+        return sqlMetricsConfig;
+    }
+
+    public KafkaPublisherConfig getKafkaPublisherConfig() {
+        return kafkaPublisherConfig;
+    }
+
+    public KafkaIngestConfig getKafkaIngestConfig() {
+        return kafkaIngestConfig;
+    }
 }
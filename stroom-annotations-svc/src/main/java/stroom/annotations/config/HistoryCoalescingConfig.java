@@ -0,0 +1,41 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HistoryCoalescingConfig {
+    /**
+     * Successive updates to an annotation by the same user within this window replace the history point of the
+     * previous update rather than adding another, zero to keep every update
+     */
+    @NotNull
+    @JsonProperty("window")
+    private Duration window = Duration.seconds(0);
+
+    /**
+     * Windows for specific indexes, by index UUID, overriding the default window
+     */
+    @NotNull
+    @JsonProperty("indexWindows")
+    private Map<String, Duration> indexWindows = new HashMap<>();
+
+    public Duration getWindow() {
+        return window;
+    }
+
+    public Map<String, Duration> getIndexWindows() {
+        return indexWindows;
+    }
+
+    /**
+     * @param index The UUID of the index
+     * @return The window in milliseconds for the index, zero if updates are not coalesced
+     */
+    public long getWindowMillis(final String index) {
+        return indexWindows.getOrDefault(index, window).toMilliseconds();
+    }
+}
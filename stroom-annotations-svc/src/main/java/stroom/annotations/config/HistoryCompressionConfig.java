@@ -0,0 +1,25 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class HistoryCompressionConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = true;
+
+    /**
+     * History content shorter than this is stored as it is, as compressing it saves little or nothing
+     */
+    @Min(0)
+    @JsonProperty("minimumLength")
+    private int minimumLength = 256;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMinimumLength() {
+        return minimumLength;
+    }
+}
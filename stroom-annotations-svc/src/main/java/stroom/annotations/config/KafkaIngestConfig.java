@@ -0,0 +1,107 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+
+public class KafkaIngestConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = false;
+
+    @JsonProperty("bootstrapServers")
+    private String bootstrapServers;
+
+    @NotNull
+    @JsonProperty("topic")
+    private String topic = "stroom-annotations-ingest";
+
+    @NotNull
+    @JsonProperty("groupId")
+    private String groupId = "stroom-annotations-ingest";
+
+    /**
+     * The number of consumers to run, each is assigned its own share of the partitions,
+     * so more consumers than partitions leaves some idle.
+     */
+    @Min(1)
+    @JsonProperty("consumerThreads")
+    private int consumerThreads = 1;
+
+    @Min(1)
+    @JsonProperty("maxPollRecords")
+    private int maxPollRecords = 5000;
+
+    /**
+     * The most annotations of one index written in one transaction, each poll is written in as many as it needs
+     */
+    @Min(1)
+    @JsonProperty("batchSize")
+    private int batchSize = 500;
+
+    @NotNull
+    @JsonProperty("pollTimeout")
+    private Duration pollTimeout = Duration.seconds(1);
+
+    @NotNull
+    @JsonProperty("retryBackoff")
+    private Duration retryBackoff = Duration.seconds(5);
+
+    /**
+     * Recorded as the create and update user of the ingested annotations
+     */
+    @NotNull
+    @JsonProperty("user")
+    private String user = "kafka-ingest";
+
+    @NotNull
+    @JsonProperty("consumerProperties")
+    private Map<String, String> consumerProperties = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getBootstrapServers() {
+        return bootstrapServers;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public int getConsumerThreads() {
+        return consumerThreads;
+    }
+
+    public int getMaxPollRecords() {
+        return maxPollRecords;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Duration getPollTimeout() {
+        return pollTimeout;
+    }
+
+    public Duration getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Map<String, String> getConsumerProperties() {
+        return consumerProperties;
+    }
+}
@@ -0,0 +1,57 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+
+public class KafkaPublisherConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = false;
+
+    @JsonProperty("bootstrapServers")
+    private String bootstrapServers;
+
+    @NotNull
+    @JsonProperty("topic")
+    private String topic = "stroom-annotations";
+
+    @Min(1)
+    @JsonProperty("batchSize")
+    private int batchSize = 500;
+
+    @NotNull
+    @JsonProperty("relayInterval")
+    private Duration relayInterval = Duration.seconds(1);
+
+    @NotNull
+    @JsonProperty("producerProperties")
+    private Map<String, String> producerProperties = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getBootstrapServers() {
+        return bootstrapServers;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Duration getRelayInterval() {
+        return relayInterval;
+    }
+
+    public Map<String, String> getProducerProperties() {
+        return producerProperties;
+    }
+}
@@ -0,0 +1,49 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class PurgeConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = true;
+
+    /**
+     * How often to look for deleted indexes to purge
+     */
+    @NotNull
+    @JsonProperty("interval")
+    private Duration interval = Duration.seconds(10);
+
+    /**
+     * The number of rows deleted by each statement, bounding how long any locks are held
+     */
+    @Min(1)
+    @JsonProperty("chunkSize")
+    private int chunkSize = 1000;
+
+    /**
+     * The pause between chunks, so a large purge does not crowd out the rest of the work on the database
+     */
+    @NotNull
+    @JsonProperty("chunkDelay")
+    private Duration chunkDelay = Duration.milliseconds(200);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public Duration getChunkDelay() {
+        return chunkDelay;
+    }
+}
@@ -0,0 +1,28 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class ReadRoutingConfig {
+    /**
+     * After a user writes, their reads go to the primary for this long, so they do not see a stale replica
+     */
+    @NotNull
+    @JsonProperty("primaryPinWindow")
+    private Duration primaryPinWindow = Duration.seconds(5);
+
+    @Min(1)
+    @JsonProperty("maximumPinnedUsers")
+    private long maximumPinnedUsers = 10000;
+
+    public Duration getPrimaryPinWindow() {
+        return primaryPinWindow;
+    }
+
+    public long getMaximumPinnedUsers() {
+        return maximumPinnedUsers;
+    }
+}
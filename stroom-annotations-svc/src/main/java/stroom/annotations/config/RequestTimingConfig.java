@@ -0,0 +1,25 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class RequestTimingConfig {
+    /**
+     * Adds a Server-Timing header to each response, breaking down where the time went
+     */
+    @JsonProperty("serverTimingHeader")
+    private boolean serverTimingHeader = false;
+
+    /**
+     * Records a timer per index and operation as well as per operation
+     */
+    @JsonProperty("perIndexMetrics")
+    private boolean perIndexMetrics = true;
+
+    public boolean isServerTimingHeader() {
+        return serverTimingHeader;
+    }
+
+    public boolean isPerIndexMetrics() {
+        return perIndexMetrics;
+    }
+}
@@ -0,0 +1,36 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class SearchResultCacheConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = true;
+
+    @Min(0)
+    @JsonProperty("maximumSize")
+    private long maximumSize = 1000;
+
+    /**
+     * Changes made through this instance invalidate the results straight away, this bounds how long
+     * changes made through other instances can go unseen
+     */
+    @NotNull
+    @JsonProperty("timeToLive")
+    private Duration timeToLive = Duration.minutes(1);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Duration getTimeToLive() {
+        return timeToLive;
+    }
+}
@@ -0,0 +1,49 @@
+package stroom.annotations.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+
+public class SqlMetricsConfig {
+    @JsonProperty("enabled")
+    private boolean enabled = true;
+
+    /**
+     * Statements that take longer than this are logged, with their bind values redacted
+     */
+    @NotNull
+    @JsonProperty("slowQueryThreshold")
+    private Duration slowQueryThreshold = Duration.milliseconds(500);
+
+    /**
+     * The connection pool health check fails when the 99th percentile wait for a connection exceeds this
+     */
+    @NotNull
+    @JsonProperty("poolWaitThreshold")
+    private Duration poolWaitThreshold = Duration.milliseconds(250);
+
+    /**
+     * The percentile is taken over the connections acquired in this window, so a saturated pool that has since
+     * recovered stops failing the health check once the window has passed
+     */
+    @NotNull
+    @JsonProperty("poolWaitWindow")
+    private Duration poolWaitWindow = Duration.minutes(1);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public Duration getPoolWaitThreshold() {
+        return poolWaitThreshold;
+    }
+
+    public Duration getPoolWaitWindow() {
+        return poolWaitWindow;
+    }
+}
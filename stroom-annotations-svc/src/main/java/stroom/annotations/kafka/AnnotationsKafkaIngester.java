@@ -0,0 +1,493 @@
+package stroom.annotations.kafka;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.InsertValuesStepN;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.ChangeFeedConfig;
+import stroom.annotations.config.KafkaIngestConfig;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.service.AnnotationBloomFilters;
+import stroom.annotations.service.AnnotationChangeBus;
+import stroom.annotations.service.SearchResultCache;
+import stroom.annotations.service.AnnotationCounts;
+import stroom.annotations.service.HistoryContentCompressor;
+import stroom.annotations.service.SettledHistory;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.jooq.JooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk creates annotations from a Kafka topic.
+ *
+ * Each record is the JSON of an {@link Annotation}, which must include the dataSourceUuid of its index and its ID.
+ * Each poll is grouped by index and written in batches of up to the configured batch size, each batch with
+ * multi-row inserts into the annotation and history tables in a transaction of its own. Offsets are only committed
+ * once every batch of the poll has committed, so a failure re-reads the poll from Kafka rather than losing it.
+ * Annotations that already exist are left as they are, which makes re-reading a poll harmless. After a failure
+ * the partitions are paused rather than the consumer sleeping, so it keeps polling and stays in its group.
+ *
+ * Readers of the settled history skip any history that commits more than the settle time after it was inserted,
+ * see {@link SettledHistory}. So the history of a batch is inserted after the rest of its writes, which are the
+ * ones that can wait on locks, and a batch that has taken longer than half the settle time by the time it would
+ * commit is rolled back and retried instead.
+ *
+ * A record that could never be written, because it is malformed or does not fit the tables, is logged, counted
+ * and skipped, so it cannot hold up the rest of its partition. Records are checked before the batch insert, and
+ * if the database still rejects the batch, its annotations are written one at a time to find the ones it rejects.
+ */
+@Singleton
+public class AnnotationsKafkaIngester implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationsKafkaIngester.class);
+
+    private final KafkaIngestConfig config;
+
+    private final DSLContext database;
+
+    private final AnnotationChangeBus changeBus;
+
+    private final AnnotationsKafkaPublisher kafkaPublisher;
+
+    private final SearchResultCache searchResultCache;
+
+    private final AnnotationBloomFilters bloomFilters;
+
+    private final HistoryContentCompressor historyContentCompressor;
+
+    private final Table<Record> annotationTable;
+    private final Table<Record> historyTable;
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+    private final List<KafkaConsumer<String, String>> consumers = new CopyOnWriteArrayList<>();
+
+    private ExecutorService consumerExecutor;
+
+    /**
+     * The longest a batch can take to commit, kept well inside the settle time of the history
+     */
+    private final long maxTransactionMillis;
+
+    private volatile boolean running;
+
+    private final Meter rejected;
+    private final Meter slowTransactions;
+
+    @Inject
+    public AnnotationsKafkaIngester(final KafkaIngestConfig config,
+                                    final ChangeFeedConfig changeFeedConfig,
+                                    final DSLContext database,
+                                    final AnnotationChangeBus changeBus,
+                                    final AnnotationsKafkaPublisher kafkaPublisher,
+                                    final SearchResultCache searchResultCache,
+                                    final AnnotationBloomFilters bloomFilters,
+                                    final HistoryContentCompressor historyContentCompressor,
+                                    final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.database = database;
+        this.changeBus = changeBus;
+        this.kafkaPublisher = kafkaPublisher;
+        this.searchResultCache = searchResultCache;
+        this.bloomFilters = bloomFilters;
+        this.historyContentCompressor = historyContentCompressor;
+        this.annotationTable = Optional.ofNullable(Annotation.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation Class must be annotated with JooqEntity"));
+        this.historyTable = Optional.ofNullable(AnnotationHistory.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation History Class must be annotated with JooqEntity"));
+
+        this.maxTransactionMillis = changeFeedConfig.getSettleTime().toMilliseconds() / 2;
+
+        this.rejected = metricRegistry.meter(MetricRegistry.name(AnnotationsKafkaIngester.class, "rejected"));
+        this.slowTransactions = metricRegistry.meter(MetricRegistry.name(AnnotationsKafkaIngester.class, "slowTransactions"));
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        running = true;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        consumerExecutor = Executors.newFixedThreadPool(config.getConsumerThreads(), r -> {
+            final Thread thread = new Thread(r, "annotation-ingest-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < config.getConsumerThreads(); i++) {
+            consumerExecutor.execute(this::consume);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (null == consumerExecutor) {
+            return;
+        }
+
+        running = false;
+        consumers.forEach(KafkaConsumer::wakeup);
+
+        consumerExecutor.shutdown();
+        consumerExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void consume() {
+        final Properties properties = new Properties();
+        properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getBootstrapServers());
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG, config.getGroupId());
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        properties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Integer.toString(config.getMaxPollRecords()));
+        properties.putAll(config.getConsumerProperties());
+
+        try (final KafkaConsumer<String, String> consumer =
+                     new KafkaConsumer<>(properties, new StringDeserializer(), new StringDeserializer())) {
+            consumers.add(consumer);
+            consumer.subscribe(Collections.singletonList(config.getTopic()));
+
+            long resumeTime = 0;
+            while (running) {
+                if (!consumer.paused().isEmpty() && System.currentTimeMillis() >= resumeTime) {
+                    consumer.resume(consumer.paused());
+                }
+
+                final ConsumerRecords<String, String> records = consumer.poll(config.getPollTimeout().toMilliseconds());
+                if (records.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    ingest(records);
+                    consumer.commitSync();
+                } catch (final WakeupException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    LOGGER.warn("Failed to ingest {} annotations, will retry", records.count(), e);
+                    rewind(consumer, records);
+
+                    // Polling carries on while paused, so the consumer is not dropped from its group
+                    consumer.pause(consumer.assignment());
+                    resumeTime = System.currentTimeMillis() + config.getRetryBackoff().toMilliseconds();
+                }
+            }
+        } catch (final WakeupException e) {
+            // Expected when stopping
+        } catch (final Exception e) {
+            LOGGER.error("Annotation ingest consumer stopped", e);
+        }
+    }
+
+    /**
+     * Move the consumer back to the start of a poll that could not be written, so it is read again.
+     * Partitions lost to a rebalance in the meantime restart from their last committed offset on their new consumer.
+     */
+    private void rewind(final KafkaConsumer<String, String> consumer,
+                        final ConsumerRecords<String, String> records) {
+        final Set<TopicPartition> assigned = consumer.assignment();
+        for (final TopicPartition partition : records.partitions()) {
+            if (assigned.contains(partition)) {
+                consumer.seek(partition, records.records(partition).get(0).offset());
+            }
+        }
+    }
+
+    private void ingest(final ConsumerRecords<String, String> records) {
+        final Map<String, Map<String, Annotation>> annotationsByIndex = new LinkedHashMap<>();
+        for (final ConsumerRecord<String, String> record : records) {
+            parse(record).ifPresent(annotation -> annotationsByIndex
+                    .computeIfAbsent(annotation.getDataSourceUuid(), index -> new LinkedHashMap<>())
+                    .put(annotation.getId(), annotation));
+        }
+
+        int ingested = 0;
+        for (final Map.Entry<String, Map<String, Annotation>> index : annotationsByIndex.entrySet()) {
+            final List<Annotation> annotations = new ArrayList<>(index.getValue().values());
+            for (int from = 0; from < annotations.size(); from += config.getBatchSize()) {
+                final List<Annotation> batch = annotations.subList(from,
+                        Math.min(from + config.getBatchSize(), annotations.size()));
+
+                final List<AnnotationHistory> changes = writeBatch(index.getKey(), batch);
+                searchResultCache.invalidate(index.getKey());
+                changes.forEach(changeBus::publish);
+                ingested += changes.size();
+            }
+        }
+
+        LOGGER.debug("Ingested {} annotations from {} records", ingested, records.count());
+    }
+
+    /**
+     * Create a batch of annotations, writing them one at a time if the database rejects the batch, to find the
+     * ones it rejects
+     * @return The history points written
+     */
+    private List<AnnotationHistory> writeBatch(final String index,
+                                               final List<Annotation> batch) {
+        try {
+            return write(index, batch);
+        } catch (final DataAccessException e) {
+            if (!isRejection(e)) {
+                throw e;
+            }
+            LOGGER.warn("The database rejected a batch of {} annotations of index {}, writing them one at a time",
+                    batch.size(), index, e);
+
+            final List<AnnotationHistory> changes = new ArrayList<>();
+            for (final Annotation annotation : batch) {
+                try {
+                    changes.addAll(write(index, Collections.singletonList(annotation)));
+                } catch (final DataAccessException singleException) {
+                    if (!isRejection(singleException)) {
+                        throw singleException;
+                    }
+                    LOGGER.warn("Skipping annotation {} of index {} rejected by the database",
+                            annotation.getId(), index, singleException);
+                    rejected.mark();
+                }
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * Create annotations of one index in a single transaction, which is rolled back if it has taken too long
+     * @return The history points written
+     */
+    private List<AnnotationHistory> write(final String index,
+                                          final List<Annotation> annotations) {
+        final long startTime = System.currentTimeMillis();
+
+        return database.transactionResult(configuration -> {
+            final List<AnnotationHistory> created = createAll(configuration, index, annotations);
+            kafkaPublisher.addAllToOutbox(configuration, created);
+
+            final long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed > maxTransactionMillis) {
+                slowTransactions.mark();
+                throw new IllegalStateException(String.format(
+                        "Rolled back %d annotations of index %s after %dms, their history could have settled before it committed",
+                        annotations.size(), index, elapsed));
+            }
+
+            return created;
+        });
+    }
+
+    /**
+     * @return True if the database refused the data itself (SQL state class 22 or 23), so writing it again will
+     * fail again, rather than failing for a reason that a retry may get past
+     */
+    private static boolean isRejection(final DataAccessException e) {
+        for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                final String sqlState = ((SQLException) cause).getSQLState();
+                return null != sqlState && (sqlState.startsWith("22") || sqlState.startsWith("23"));
+            }
+        }
+        return false;
+    }
+
+    private Optional<Annotation> parse(final ConsumerRecord<String, String> record) {
+        try {
+            final Annotation annotation = objectMapper.readValue(record.value(), Annotation.class);
+            final Optional<String> invalid = validate(annotation);
+            if (invalid.isPresent()) {
+                LOGGER.warn("Skipping invalid annotation at {}:{}, {}", record.partition(), record.offset(), invalid.get());
+                rejected.mark();
+                return Optional.empty();
+            }
+            return Optional.of(annotation);
+        } catch (final Exception e) {
+            LOGGER.warn("Skipping malformed annotation at {}:{}", record.partition(), record.offset(), e);
+            rejected.mark();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Check an annotation fits the annotation and history tables, which are latin1
+     * @return Why the annotation cannot be written, empty if it can
+     */
+    private static Optional<String> validate(final Annotation annotation) {
+        if (null == annotation.getDataSourceUuid() || null == annotation.getId()) {
+            return Optional.of("it has no index or ID");
+        }
+        if (annotation.getDataSourceUuid().length() > Annotation.MAX_ID_LENGTH) {
+            return Optional.of("its index is too long");
+        }
+        if (annotation.getId().length() < Annotation.MIN_ID_LENGTH
+                || annotation.getId().length() > Annotation.MAX_ID_LENGTH) {
+            return Optional.of(String.format("its ID must be between %d and %d characters",
+                    Annotation.MIN_ID_LENGTH, Annotation.MAX_ID_LENGTH));
+        }
+        if (null != annotation.getAssignTo() && annotation.getAssignTo().length() > Annotation.MAX_ID_LENGTH) {
+            return Optional.of("its assignee is too long");
+        }
+        if (null != annotation.getContent() && annotation.getContent().length() > Annotation.MAX_CONTENT_LENGTH) {
+            return Optional.of(String.format("its content is longer than %d characters", Annotation.MAX_CONTENT_LENGTH));
+        }
+
+        final CharsetEncoder latin1 = StandardCharsets.ISO_8859_1.newEncoder();
+        for (final String value : Arrays.asList(annotation.getDataSourceUuid(),
+                annotation.getId(),
+                annotation.getAssignTo(),
+                annotation.getContent())) {
+            if (null != value && !latin1.canEncode(value)) {
+                return Optional.of("it has characters that cannot be stored");
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Insert the annotations for one index that do not already exist, along with their CREATE history points.
+     * The history is inserted last, so that the wait for any locks comes before it.
+     * @return The history points written
+     */
+    private List<AnnotationHistory> createAll(final Configuration jooqConfiguration,
+                                              final String index,
+                                              final List<Annotation> annotations) {
+        final DSLContext context = DSL.using(jooqConfiguration);
+
+        final Set<String> ids = annotations.stream()
+                .map(Annotation::getId)
+                .collect(Collectors.toSet());
+
+        final Set<String> existing = context.select(Annotation.ID_FIELD)
+                .from(annotationTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(Annotation.ID_FIELD.in(ids))
+                .fetchSet(Annotation.ID_FIELD);
+
+        final List<Annotation> toCreate = annotations.stream()
+                .filter(annotation -> !existing.contains(annotation.getId()))
+                .collect(Collectors.toList());
+        if (toCreate.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final ULong now = ULong.valueOf(System.currentTimeMillis());
+
+        final Map<List<String>, Long> counts = new HashMap<>();
+
+        final InsertValuesStepN<Record> annotationInsert =
+                context.insertInto(annotationTable, Arrays.asList(
+                                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                                DocRefJooqEntity.CREATE_USER_FIELD,
+                                DocRefJooqEntity.CREATE_TIME_FIELD,
+                                DocRefJooqEntity.UPDATE_USER_FIELD,
+                                DocRefJooqEntity.UPDATE_TIME_FIELD,
+                                Annotation.ID_FIELD,
+                                Annotation.CONTENT_FIELD,
+                                Annotation.ASSIGN_TO_FIELD,
+                                Annotation.STATUS_FIELD));
+        final InsertValuesStepN<Record> historyInsert =
+                context.insertInto(historyTable, Arrays.asList(
+                                QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                                DocRefJooqEntity.CREATE_USER_FIELD,
+                                DocRefJooqEntity.CREATE_TIME_FIELD,
+                                DocRefJooqEntity.UPDATE_USER_FIELD,
+                                DocRefJooqEntity.UPDATE_TIME_FIELD,
+                                AnnotationHistory.OPERATION_FIELD,
+                                AnnotationHistory.ANNOTATION_ID_FIELD,
+                                Annotation.CONTENT_FIELD,
+                                AnnotationHistory.COMPRESSED_CONTENT_FIELD,
+                                Annotation.ASSIGN_TO_FIELD,
+                                Annotation.STATUS_FIELD));
+
+        for (final Annotation annotation : toCreate) {
+            final String content = Optional.ofNullable(annotation.getContent()).orElse(Annotation.DEFAULT_CONTENT);
+            final String assignTo = Optional.ofNullable(annotation.getAssignTo()).orElse(Annotation.DEFAULT_ASSIGNEE);
+            final String status = Optional.ofNullable(annotation.getStatus()).orElse(Annotation.DEFAULT_STATUS).toString();
+
+            annotationInsert.values(index,
+                    config.getUser(),
+                    now,
+                    config.getUser(),
+                    now,
+                    annotation.getId(),
+                    content,
+                    assignTo,
+                    status);
+            counts.merge(Arrays.asList(status, assignTo), 1L, Long::sum);
+            historyInsert.values(index,
+                    config.getUser(),
+                    now,
+                    config.getUser(),
+                    now,
+                    HistoryOperation.CREATE.toString(),
+                    annotation.getId(),
+                    historyContentCompressor.content(content),
+                    historyContentCompressor.compressedContent(content),
+                    assignTo,
+                    status);
+        }
+
+        annotationInsert.execute();
+        toCreate.forEach(annotation -> bloomFilters.add(index, annotation.getId()));
+        AnnotationCounts.addAll(jooqConfiguration, index, counts);
+        historyInsert.execute();
+
+        // The first ID generated by the multi-row insert, read back so the changes can be published
+        final long firstHistoryId = context.lastID().longValue();
+
+        return context.select()
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.ID_FIELD.greaterOrEqual(firstHistoryId))
+                .and(AnnotationHistory.OPERATION_FIELD.equal(HistoryOperation.CREATE.toString()))
+                .and(AnnotationHistory.ANNOTATION_ID_FIELD.in(ids))
+                .orderBy(AnnotationHistory.ID_FIELD)
+                .fetch(HistoryContentCompressor::toHistory);
+    }
+}
@@ -0,0 +1,251 @@
+package stroom.annotations.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep1;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.KafkaPublisherConfig;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.service.HistoryContentCompressor;
+import stroom.query.jooq.JooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * Publishes every annotation mutation to Kafka using a transactional outbox.
+ *
+ * The annotation service adds the ID of each history point to the outbox table in the same transaction that
+ * writes it. A background relay then reads the outbox in batches, sends the history points to Kafka and only
+ * removes them from the outbox once Kafka has acknowledged them, so publishing is never on the request path
+ * and a failure to publish is retried rather than lost.
+ */
+@Singleton
+public class AnnotationsKafkaPublisher implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationsKafkaPublisher.class);
+
+    public static final Table<?> OUTBOX_TABLE = table("annotation_outbox");
+    public static final Field<Long> HISTORY_ID_FIELD = field("historyId", Long.class);
+
+    /**
+     * Only one instance of the service relays at a time, so that batches are published in order
+     */
+    private static final String RELAY_LOCK_NAME = "annotation_outbox_relay";
+
+    private final KafkaPublisherConfig config;
+
+    private final DSLContext database;
+
+    private final Table<?> historyTable;
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+    private ScheduledExecutorService relayExecutor;
+
+    private Producer<String, String> producer;
+
+    @Inject
+    public AnnotationsKafkaPublisher(final KafkaPublisherConfig config,
+                                     final DSLContext database) {
+        this.config = config;
+        this.database = database;
+        this.historyTable = Optional.ofNullable(AnnotationHistory.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation History Class must be annotated with JooqEntity"));
+    }
+
+    /**
+     * Queue a history point for publishing, does nothing if publishing to Kafka is disabled.
+     * @param jooqConfiguration The transaction that wrote the history point
+     * @param change The history point to publish
+     */
+    public void addToOutbox(final Configuration jooqConfiguration,
+                            final AnnotationHistory change) {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        DSL.using(jooqConfiguration)
+                .insertInto(OUTBOX_TABLE)
+                .columns(HISTORY_ID_FIELD)
+                .values(change.getId())
+                .execute();
+    }
+
+    /**
+     * Queue a batch of history points for publishing with a single insert, does nothing if publishing is disabled.
+     * @param jooqConfiguration The transaction that wrote the history points
+     * @param changes The history points to publish
+     */
+    public void addAllToOutbox(final Configuration jooqConfiguration,
+                               final List<AnnotationHistory> changes) {
+        if (!config.isEnabled() || changes.isEmpty()) {
+            return;
+        }
+
+        final InsertValuesStep1<?, Long> insert = DSL.using(jooqConfiguration)
+                .insertInto(OUTBOX_TABLE)
+                .columns(HISTORY_ID_FIELD);
+        changes.forEach(change -> insert.values(change.getId()));
+        insert.execute();
+    }
+
+    /**
+     * Withdraw a history point that has not been published yet, for when the history point itself is removed.
+     * One that has already been published stays published.
+     * @param jooqConfiguration The transaction that removed the history point
+     * @param historyId The ID of the history point
+     */
+    public void removeFromOutbox(final Configuration jooqConfiguration,
+                                 final long historyId) {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        DSL.using(jooqConfiguration)
+                .deleteFrom(OUTBOX_TABLE)
+                .where(HISTORY_ID_FIELD.equal(historyId))
+                .execute();
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getBootstrapServers());
+        properties.put(ProducerConfig.ACKS_CONFIG, "all");
+        properties.put(ProducerConfig.RETRIES_CONFIG, Integer.toString(Integer.MAX_VALUE));
+        // Keeps the changes to an annotation in order when the producer has to retry
+        properties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "1");
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, "5");
+        properties.putAll(config.getProducerProperties());
+
+        producer = new KafkaProducer<>(properties, new StringSerializer(), new StringSerializer());
+
+        relayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "annotation-outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        relayExecutor.scheduleWithFixedDelay(this::relay,
+                config.getRelayInterval().toMilliseconds(),
+                config.getRelayInterval().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (null != relayExecutor) {
+            relayExecutor.shutdown();
+            relayExecutor.awaitTermination(config.getRelayInterval().toMilliseconds() * 2, TimeUnit.MILLISECONDS);
+        }
+        if (null != producer) {
+            producer.close();
+        }
+    }
+
+    /**
+     * Drain the outbox, a batch at a time. Any failure leaves the rest of the outbox for the next run.
+     */
+    private void relay() {
+        try {
+            int published;
+            do {
+                published = database.transactionResult(this::relayBatch);
+            } while (published == config.getBatchSize());
+        } catch (final Exception e) {
+            LOGGER.warn("Failed to publish annotation changes to Kafka, will retry", e);
+        }
+    }
+
+    private int relayBatch(final Configuration jooqConfiguration) throws Exception {
+        final DSLContext context = DSL.using(jooqConfiguration);
+
+        final Integer locked = context.select(field("get_lock({0}, 0)", Integer.class, DSL.val(RELAY_LOCK_NAME)))
+                .fetchOne(0, Integer.class);
+        if (!Integer.valueOf(1).equals(locked)) {
+            LOGGER.debug("Another instance is relaying the annotation outbox");
+            return 0;
+        }
+
+        try {
+            final List<Long> historyIds = context.select(HISTORY_ID_FIELD)
+                    .from(OUTBOX_TABLE)
+                    .orderBy(HISTORY_ID_FIELD)
+                    .limit(config.getBatchSize())
+                    .fetch(HISTORY_ID_FIELD);
+            if (historyIds.isEmpty()) {
+                return 0;
+            }
+
+            final List<AnnotationHistory> changes = context.select()
+                    .from(historyTable)
+                    .where(AnnotationHistory.ID_FIELD.in(historyIds))
+                    .orderBy(AnnotationHistory.ID_FIELD)
+                    .fetch(HistoryContentCompressor::toHistory);
+
+            final List<Future<RecordMetadata>> sent = new ArrayList<>();
+            for (final AnnotationHistory change : changes) {
+                sent.add(producer.send(new ProducerRecord<>(config.getTopic(),
+                        getKey(change),
+                        objectMapper.writeValueAsString(change))));
+            }
+            producer.flush();
+
+            // Throws if Kafka did not accept any of them, so they stay in the outbox
+            for (final Future<RecordMetadata> future : sent) {
+                future.get();
+            }
+
+            context.deleteFrom(OUTBOX_TABLE)
+                    .where(HISTORY_ID_FIELD.in(historyIds))
+                    .execute();
+
+            LOGGER.debug("Published {} annotation changes to Kafka, up to history {}",
+                    changes.size(),
+                    historyIds.get(historyIds.size() - 1));
+
+            return historyIds.size();
+        } finally {
+            context.select(field("release_lock({0})", Integer.class, DSL.val(RELAY_LOCK_NAME)))
+                    .fetchOne();
+        }
+    }
+
+    /**
+     * @param change The change being published
+     * @return The Kafka key, which keeps all the changes to a single annotation on the same partition
+     */
+    public static String getKey(final AnnotationHistory change) {
+        return String.format("%s:%s", change.getDataSourceUuid(), change.getAnnotationId());
+    }
+}
@@ -0,0 +1,49 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.util.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports unhealthy when callers have recently had to wait too long for a database connection,
+ * which means the pool is saturated.
+ *
+ * The acquire timer must only hold recent waits, see {@link TimedConnectionProvider}, so that neither an old
+ * spike nor an idle pool decides the result.
+ */
+public class ConnectionPoolHealthCheck extends HealthCheck {
+
+    private final Timer acquireTimer;
+
+    private final Duration threshold;
+
+    private final Duration window;
+
+    public ConnectionPoolHealthCheck(final Timer acquireTimer,
+                                     final Duration threshold,
+                                     final Duration window) {
+        this.acquireTimer = acquireTimer;
+        this.threshold = threshold;
+        this.window = window;
+    }
+
+    @Override
+    protected Result check() {
+        final Snapshot snapshot = acquireTimer.getSnapshot();
+        if (0 == snapshot.size()) {
+            return Result.healthy("No connections acquired in the last %s", window);
+        }
+
+        final long p99Millis = TimeUnit.NANOSECONDS.toMillis((long) snapshot.get99thPercentile());
+
+        if (p99Millis > threshold.toMilliseconds()) {
+            return Result.unhealthy("99th percentile connection pool wait of %dms exceeds %dms",
+                    p99Millis, threshold.toMilliseconds());
+        }
+
+        return Result.healthy("99th percentile connection pool wait is %dms", p99Millis);
+    }
+}
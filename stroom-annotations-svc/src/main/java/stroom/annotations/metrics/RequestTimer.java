@@ -0,0 +1,104 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import stroom.annotations.config.RequestTimingConfig;
+import stroom.annotations.resources.AnnotationsResource;
+
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Times the stages of a single request as it passes through the DocRefAuditWrapper.
+ *
+ * Each stage is recorded to a timer named after the operation and stage. Whatever time is not accounted for
+ * by the named stages is recorded as the audit stage, as writing the audit event is the remaining work the
+ * wrapper does.
+ */
+public class RequestTimer {
+    public static final String DOC_REF = "docRef";
+    public static final String AUTHORISATION = "authorisation";
+    public static final String SERVICE = "service";
+    public static final String AUDIT = "audit";
+
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    @FunctionalInterface
+    public interface Stage<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private final MetricRegistry metricRegistry;
+    private final RequestTimingConfig config;
+    private final String operation;
+    private final String index;
+    private final long started;
+
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+
+    RequestTimer(final MetricRegistry metricRegistry,
+                 final RequestTimingConfig config,
+                 final String operation,
+                 final String index) {
+        this.metricRegistry = metricRegistry;
+        this.config = config;
+        this.operation = operation;
+        this.index = index;
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * Time a stage of the request
+     * @param stage The name of the stage
+     * @param call The work done in the stage
+     * @return The result of the call
+     * @throws E If the call throws
+     */
+    public <T, E extends Exception> T time(final String stage,
+                                           final Stage<T, E> call) throws E {
+        final long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            stageNanos.merge(stage, System.nanoTime() - start, Long::sum);
+        }
+    }
+
+    /**
+     * Record the timings of the request, and add the Server-Timing header to the response if enabled.
+     * @param response The response produced by the wrapper
+     * @return The response to send
+     */
+    public Response finish(final Response response) {
+        final long total = System.nanoTime() - started;
+        final long staged = stageNanos.values().stream().mapToLong(Long::longValue).sum();
+        stageNanos.put(AUDIT, Math.max(0, total - staged));
+
+        stageNanos.forEach((stage, nanos) ->
+                metricRegistry.timer(MetricRegistry.name(AnnotationsResource.class, operation, stage))
+                        .update(nanos, TimeUnit.NANOSECONDS));
+
+        // Only successful requests are tagged, so that requests for made up indexes cannot create timers
+        if (config.isPerIndexMetrics()
+                && null != index
+                && response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL) {
+            metricRegistry.timer(MetricRegistry.name(AnnotationsResource.class, "index", index, operation))
+                    .update(total, TimeUnit.NANOSECONDS);
+        }
+
+        if (!config.isServerTimingHeader()) {
+            return response;
+        }
+
+        final String serverTiming = stageNanos.entrySet().stream()
+                .map(e -> String.format(Locale.ROOT, "%s;dur=%.3f", e.getKey(), e.getValue() / 1_000_000.0))
+                .collect(Collectors.joining(", "));
+
+        return Response.fromResponse(response)
+                .header(SERVER_TIMING_HEADER, serverTiming)
+                .build();
+    }
+}
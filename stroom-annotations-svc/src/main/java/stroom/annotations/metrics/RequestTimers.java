@@ -0,0 +1,34 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import stroom.annotations.config.RequestTimingConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Creates a {@link RequestTimer} for each request handled by the annotations resource.
+ */
+@Singleton
+public class RequestTimers {
+    private final MetricRegistry metricRegistry;
+
+    private final RequestTimingConfig config;
+
+    @Inject
+    public RequestTimers(final MetricRegistry metricRegistry,
+                         final RequestTimingConfig config) {
+        this.metricRegistry = metricRegistry;
+        this.config = config;
+    }
+
+    /**
+     * @param operation The operation being performed, used to name the timers
+     * @param index The UUID of the index the request is for
+     * @return A timer for the stages of a single request
+     */
+    public RequestTimer start(final String operation,
+                             final String index) {
+        return new RequestTimer(metricRegistry, config, operation, index);
+    }
+}
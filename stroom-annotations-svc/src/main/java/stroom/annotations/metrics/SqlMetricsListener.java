@@ -0,0 +1,290 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import org.jooq.AggregateFunction;
+import org.jooq.Clause;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteListenerProvider;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.QueryPart;
+import org.jooq.Table;
+import org.jooq.VisitContext;
+import org.jooq.VisitListenerProvider;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.jooq.impl.DefaultVisitListener;
+import org.jooq.impl.DefaultVisitListenerProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.SqlMetricsConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Records a timer and a row count histogram for every SQL statement run through jOOQ, grouped by the shape of
+ * the statement. The shape is its verb and the table it reads or writes, for example insert.annotation_history.
+ * Selects, updates and deletes also have the structure of the statement added to their shape: whether it counts,
+ * the columns its WHERE clause constrains, and whether it groups or limits. So a get of one annotation is
+ * select.annotation.where_datasourceuuid_id, and a page of a search on its status is
+ * select.annotation.where_datasourceuuid_status.limit, rather than both being select.annotation.
+ * The metrics are named SqlMetricsListener.[shape] and appear on the admin port.
+ *
+ * The shape is read from the query itself, by a visit listener that sees each part of the statement as jOOQ renders
+ * it. Only the outer statement is described, so the tables and columns of a subquery do not change the shape.
+ * Statements jOOQ cannot see into, such as plain SQL queries, are recorded by their execute type, for example read.
+ *
+ * Statements slower than the configured threshold are logged. Bind values are never logged, and any literals
+ * inlined into the SQL are replaced with ? before it is logged.
+ */
+@Singleton
+public class SqlMetricsListener extends DefaultExecuteListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqlMetricsListener.class);
+
+    private static final String START_KEY = SqlMetricsListener.class.getName() + ".start";
+    private static final String ROWS_KEY = SqlMetricsListener.class.getName() + ".rows";
+    private static final String SHAPE_KEY = SqlMetricsListener.class.getName() + ".shape";
+
+    private static final Set<Clause> STATEMENTS = EnumSet.of(Clause.SELECT, Clause.INSERT, Clause.UPDATE, Clause.DELETE);
+    private static final Set<Clause> TABLES = EnumSet.of(Clause.TABLE, Clause.TABLE_REFERENCE);
+
+    /**
+     * The sections of a statement that constrain its rows. jOOQ marks the WHERE of a select, but renders the
+     * conditions of an update or delete straight under the statement.
+     */
+    private static final Set<Clause> WHERE = EnumSet.range(Clause.CONDITION, Clause.CONDITION_NOT_EXISTS);
+    static {
+        WHERE.addAll(EnumSet.of(Clause.SELECT_WHERE, Clause.UPDATE_WHERE, Clause.DELETE_WHERE));
+    }
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    /**
+     * The shape of the statement being rendered by each thread, which the visit listener adds to
+     */
+    private final ThreadLocal<Shape> rendering = new ThreadLocal<>();
+
+    private final MetricRegistry metricRegistry;
+
+    private final SqlMetricsConfig config;
+
+    @Inject
+    public SqlMetricsListener(final MetricRegistry metricRegistry,
+                              final SqlMetricsConfig config) {
+        this.metricRegistry = metricRegistry;
+        this.config = config;
+    }
+
+    /**
+     * Add this listener to those already configured on the context, if SQL metrics are enabled
+     * @param database The context used to run all the SQL
+     */
+    public void install(final DSLContext database) {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        final ExecuteListenerProvider[] existing = database.configuration().executeListenerProviders();
+        final ExecuteListenerProvider[] providers = Arrays.copyOf(existing, existing.length + 1);
+        providers[existing.length] = new DefaultExecuteListenerProvider(this);
+        database.configuration().set(providers);
+
+        final VisitListenerProvider[] existingVisitors = database.configuration().visitListenerProviders();
+        final VisitListenerProvider[] visitors = Arrays.copyOf(existingVisitors, existingVisitors.length + 1);
+        visitors[existingVisitors.length] = new DefaultVisitListenerProvider(new ShapeVisitListener());
+        database.configuration().set(visitors);
+    }
+
+    @Override
+    public void start(final ExecuteContext ctx) {
+        ctx.data(START_KEY, System.nanoTime());
+    }
+
+    @Override
+    public void renderStart(final ExecuteContext ctx) {
+        final Shape shape = new Shape();
+        ctx.data(SHAPE_KEY, shape);
+        rendering.set(shape);
+    }
+
+    @Override
+    public void renderEnd(final ExecuteContext ctx) {
+        rendering.remove();
+    }
+
+    @Override
+    public void recordEnd(final ExecuteContext ctx) {
+        ctx.data(ROWS_KEY, getRows(ctx) + 1);
+    }
+
+    @Override
+    public void end(final ExecuteContext ctx) {
+        final Object start = ctx.data(START_KEY);
+        if (!(start instanceof Long)) {
+            return;
+        }
+
+        final long nanos = System.nanoTime() - (Long) start;
+        final String sql = Optional.ofNullable(ctx.sql()).orElse("");
+        final String shape = getShape(ctx);
+        final long rows = (null != ctx.data(ROWS_KEY)) ? getRows(ctx) : Math.max(0, ctx.rows());
+
+        metricRegistry.timer(MetricRegistry.name(SqlMetricsListener.class, shape))
+                .update(nanos, TimeUnit.NANOSECONDS);
+        metricRegistry.histogram(MetricRegistry.name(SqlMetricsListener.class, shape, "rows"))
+                .update(rows);
+
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= config.getSlowQueryThreshold().toMilliseconds()) {
+            LOGGER.warn("Slow SQL {} took {}ms for {} rows: {}", shape, millis, rows, redact(sql));
+        }
+    }
+
+    private static long getRows(final ExecuteContext ctx) {
+        final Object rows = ctx.data(ROWS_KEY);
+        return (rows instanceof Long) ? (Long) rows : 0L;
+    }
+
+    private static String getShape(final ExecuteContext ctx) {
+        final Object shape = ctx.data(SHAPE_KEY);
+        if (shape instanceof Shape && ((Shape) shape).hasVerb()) {
+            return shape.toString();
+        }
+
+        return ctx.type().name().toLowerCase(Locale.ROOT);
+    }
+
+    static String redact(final String sql) {
+        final String noStrings = STRING_LITERAL.matcher(sql).replaceAll("?");
+        return NUMBER_LITERAL.matcher(noStrings).replaceAll("?");
+    }
+
+    /**
+     * Adds each part of a statement to the shape of the statement its thread is rendering, if any
+     */
+    private class ShapeVisitListener extends DefaultVisitListener {
+        @Override
+        public void visitStart(final VisitContext context) {
+            Optional.ofNullable(rendering.get()).ifPresent(shape -> shape.visitStart(context));
+        }
+
+        @Override
+        public void visitEnd(final VisitContext context) {
+            Optional.ofNullable(rendering.get()).ifPresent(shape -> shape.visitEnd(context));
+        }
+    }
+
+    /**
+     * The structure of one statement, built up from the parts jOOQ visits while rendering it
+     */
+    private static class Shape {
+        private String verb;
+        private String table;
+        private boolean count;
+        private final Set<String> columns = new TreeSet<>();
+        private boolean grouped;
+        private boolean limited;
+
+        /**
+         * How many statements deep the part being visited is, 1 within the outer statement
+         */
+        private int depth;
+
+        private void visitStart(final VisitContext context) {
+            final Clause clause = context.clause();
+            final QueryPart part = context.queryPart();
+
+            if (isStatement(clause, part)) {
+                if (depth++ == 0 && null == verb) {
+                    verb = clause.name().toLowerCase(Locale.ROOT);
+                }
+                return;
+            }
+            if (1 != depth) {
+                return;
+            }
+
+            // jOOQ renders the LIMIT of a select as the only part under its SELECT clause that is not a query
+            if (Clause.SELECT == clause) {
+                limited = true;
+                return;
+            }
+
+            final Clause section = getSection(context.clauses());
+            if (TABLES.contains(clause) && part instanceof Table && null == table) {
+                table = ((Table<?>) part).getName().toLowerCase(Locale.ROOT);
+            } else if (Clause.SELECT_SELECT == section && part instanceof AggregateFunction) {
+                count |= "count".equalsIgnoreCase(((AggregateFunction<?>) part).getName());
+            } else if (Clause.FIELD == clause && part instanceof Field && WHERE.contains(section)) {
+                columns.add(((Field<?>) part).getName().toLowerCase(Locale.ROOT));
+            } else if (Clause.SELECT_GROUP_BY == section) {
+                grouped = true;
+            }
+        }
+
+        private void visitEnd(final VisitContext context) {
+            if (isStatement(context.clause(), context.queryPart())) {
+                depth--;
+            }
+        }
+
+        private boolean hasVerb() {
+            return null != verb;
+        }
+
+        private static boolean isStatement(final Clause clause,
+                                           final QueryPart part) {
+            return STATEMENTS.contains(clause) && part instanceof Query;
+        }
+
+        /**
+         * @return The clause directly under the outer statement that the part being visited is within
+         */
+        private static Clause getSection(final Clause[] clauses) {
+            for (int i = 0; i < clauses.length - 1; i++) {
+                if (STATEMENTS.contains(clauses[i])) {
+                    return clauses[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder shape = new StringBuilder(verb);
+            if (null != table) {
+                shape.append('.').append(table);
+            }
+            if (Clause.INSERT.name().equalsIgnoreCase(verb)) {
+                return shape.toString();
+            }
+
+            if (count) {
+                shape.append(".count");
+            }
+            if (!columns.isEmpty()) {
+                shape.append(".where_").append(String.join("_", columns));
+            }
+            if (grouped) {
+                shape.append(".grouped");
+            }
+            if (limited) {
+                shape.append(".limit");
+            }
+
+            return shape.toString();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package stroom.annotations.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import io.dropwizard.util.Duration;
+import org.apache.tomcat.jdbc.pool.DataSourceProxy;
+import org.jooq.ConnectionProvider;
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DataSourceConnectionProvider;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps the connection provider of the jOOQ context to measure the connection pool.
+ *
+ * jOOQ holds a single connection for the whole of a transaction, so the time a connection is held for is the
+ * duration of the transaction, or of the statement when no transaction is used. Metrics are named
+ * TimedConnectionProvider.[pool].[metric], where the pool is the name of the data source:
+ * <ul>
+ *     <li>acquire - timer of how long callers waited for a connection, over a sliding time window</li>
+ *     <li>held - histogram of how long each connection was held in milliseconds</li>
+ *     <li>active, waiting - gauges of the connections in use, and the callers waiting for one</li>
+ *     <li>idle - gauge of the idle connections in the pool, when the pool exposes it</li>
+ * </ul>
+ */
+public class TimedConnectionProvider implements ConnectionProvider {
+
+    private final ConnectionProvider delegate;
+
+    private final Timer acquireTimer;
+
+    private final MetricRegistry metricRegistry;
+
+    private final String name;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Map<Connection, Long> acquiredAt = new ConcurrentHashMap<>();
+
+    private TimedConnectionProvider(final ConnectionProvider delegate,
+                                    final String name,
+                                    final Duration acquireWindow,
+                                    final MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.metricRegistry = metricRegistry;
+        this.name = name;
+        this.acquireTimer = metricRegistry.timer(MetricRegistry.name(TimedConnectionProvider.class, name, "acquire"),
+                () -> new Timer(new SlidingTimeWindowReservoir(acquireWindow.toMilliseconds(), TimeUnit.MILLISECONDS)));
+
+        metricRegistry.register(MetricRegistry.name(TimedConnectionProvider.class, name, "active"),
+                (Gauge<Integer>) active::get);
+        metricRegistry.register(MetricRegistry.name(TimedConnectionProvider.class, name, "waiting"),
+                (Gauge<Integer>) waiting::get);
+
+        if (delegate instanceof DataSourceConnectionProvider
+                && ((DataSourceConnectionProvider) delegate).dataSource() instanceof DataSourceProxy) {
+            final DataSourceProxy pool = (DataSourceProxy) ((DataSourceConnectionProvider) delegate).dataSource();
+            metricRegistry.register(MetricRegistry.name(TimedConnectionProvider.class, name, "idle"),
+                    (Gauge<Integer>) pool::getIdle);
+        }
+    }
+
+    /**
+     * Wrap the connection provider of the given context
+     * @param database The context whose connections are measured
+     * @param name The name of its data source, which the metrics are named after
+     * @param acquireWindow How long the waits for a connection are kept for
+     * @param metricRegistry Where to register the metrics
+     * @return The installed provider, whose acquire timer backs the connection pool health check
+     */
+    public static TimedConnectionProvider install(final DSLContext database,
+                                                  final String name,
+                                                  final Duration acquireWindow,
+                                                  final MetricRegistry metricRegistry) {
+        final TimedConnectionProvider provider = new TimedConnectionProvider(
+                database.configuration().connectionProvider(), name, acquireWindow, metricRegistry);
+        database.configuration().set(provider);
+        return provider;
+    }
+
+    public Timer getAcquireTimer() {
+        return acquireTimer;
+    }
+
+    @Override
+    public Connection acquire() throws DataAccessException {
+        waiting.incrementAndGet();
+        final Connection connection;
+        try (final Timer.Context ignored = acquireTimer.time()) {
+            connection = delegate.acquire();
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        active.incrementAndGet();
+        acquiredAt.put(connection, System.nanoTime());
+        return connection;
+    }
+
+    @Override
+    public void release(final Connection connection) throws DataAccessException {
+        final Long acquired = acquiredAt.remove(connection);
+        if (null != acquired) {
+            active.decrementAndGet();
+            metricRegistry.histogram(MetricRegistry.name(TimedConnectionProvider.class, name, "held"))
+                    .update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquired));
+        }
+
+        delegate.release(connection);
+    }
+}
@@ -26,6 +26,8 @@ public class Annotation extends QueryableJooqEntity {
     public static final Field<String> STATUS_FIELD = field(STATUS, String.class);
 
     public static final int MIN_ID_LENGTH = 3;
+    public static final int MAX_ID_LENGTH = 255;
+    public static final int MAX_CONTENT_LENGTH = 8092;
     public static final Status DEFAULT_STATUS = Status.QUEUED;
     public static final String DEFAULT_CONTENT = "";
     public static final String DEFAULT_ASSIGNEE = "";
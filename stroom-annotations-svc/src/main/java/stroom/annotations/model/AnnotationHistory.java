@@ -1,22 +1,27 @@
 package stroom.annotations.model;
 
-
 import org.jooq.Field;
 import stroom.query.audit.model.QueryableEntity;
 import stroom.query.jooq.JooqEntity;
 import stroom.query.jooq.QueryableJooqEntity;
 
+import java.sql.Timestamp;
+
 import static org.jooq.impl.DSL.field;
 
 @JooqEntity(tableName="annotation_history")
 public class AnnotationHistory extends QueryableJooqEntity {
+    public static final String ID = "id";
     public static final String ANNOTATION_ID = "annotationId";
     public static final String OPERATION = "operation";
 
+    public static final Field<Long> ID_FIELD = field(ID, Long.class);
     public static final Field<String> ANNOTATION_ID_FIELD = field(ANNOTATION_ID, String.class);
     public static final Field<String> OPERATION_FIELD = field(OPERATION, String.class);
+    public static final Field<byte[]> COMPRESSED_CONTENT_FIELD = field("compressedContent", byte[].class);
+    public static final Field<Timestamp> INSERT_TIME_FIELD = field("insertTime", Timestamp.class);
 
-    private int id;
+    private long id;
 
     private HistoryOperation operation;
 
@@ -28,11 +33,11 @@ public class AnnotationHistory extends QueryableJooqEntity {
 
     private String content;
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
@@ -96,7 +101,7 @@ public class AnnotationHistory extends QueryableJooqEntity {
             super(new AnnotationHistory());
         }
 
-        public Builder id(final int value) {
+        public Builder id(final long value) {
             this.instance.setId(value);
             return self();
         }
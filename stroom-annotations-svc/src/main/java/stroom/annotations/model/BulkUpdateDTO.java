@@ -0,0 +1,83 @@
+package stroom.annotations.model;
+
+import stroom.query.api.v2.ExpressionOperator;
+
+import java.util.List;
+
+/**
+ * Selects a set of annotations, by expression, by ID or both, and gives the status and assignee to move them to.
+ * A status or assignee left null is not changed.
+ */
+public class BulkUpdateDTO {
+    private ExpressionOperator expression;
+    private List<String> ids;
+    private Status status;
+    private String assignTo;
+
+    public BulkUpdateDTO() {
+    }
+
+    public ExpressionOperator getExpression() {
+        return expression;
+    }
+
+    public void setExpression(ExpressionOperator expression) {
+        this.expression = expression;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getAssignTo() {
+        return assignTo;
+    }
+
+    public void setAssignTo(String assignTo) {
+        this.assignTo = assignTo;
+    }
+
+    public static class Builder {
+        private final BulkUpdateDTO instance;
+
+        public Builder() {
+            this.instance = new BulkUpdateDTO();
+        }
+
+        public Builder expression(final ExpressionOperator expression) {
+            this.instance.expression = expression;
+            return this;
+        }
+
+        public Builder ids(final List<String> ids) {
+            this.instance.ids = ids;
+            return this;
+        }
+
+        public Builder status(final Status status) {
+            this.instance.status = status;
+            return this;
+        }
+
+        public Builder assignTo(final String assignTo) {
+            this.instance.assignTo = assignTo;
+            return this;
+        }
+
+        public BulkUpdateDTO build() {
+            return instance;
+        }
+    }
+}
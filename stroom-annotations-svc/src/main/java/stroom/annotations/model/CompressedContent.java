@@ -0,0 +1,75 @@
+package stroom.annotations.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses content in the format of the MariaDB COMPRESS() function, the length of the content as four bytes
+ * low byte first, followed by the zlib stream, so that content compressed here and by the database can be read by
+ * either. The tables are latin1, so that is the character set that is compressed.
+ */
+public final class CompressedContent {
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int LENGTH_BYTES = 4;
+
+    private CompressedContent() {
+    }
+
+    public static byte[] compress(final String content) {
+        final byte[] input = content.getBytes(CHARSET);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(LENGTH_BYTES + input.length / 2);
+        output.write(ByteBuffer.allocate(LENGTH_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(input.length).array(),
+                0, LENGTH_BYTES);
+
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+
+    public static String decompress(final byte[] compressed) {
+        if (compressed.length == 0) {
+            return "";
+        }
+
+        final int length = ByteBuffer.wrap(compressed, 0, LENGTH_BYTES).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        final byte[] output = new byte[length];
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, LENGTH_BYTES, compressed.length - LENGTH_BYTES);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                final int count = inflater.inflate(output, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException(String.format("Compressed content was %d bytes, expected %d", inflated, length));
+            }
+        } catch (final DataFormatException e) {
+            throw new IllegalStateException("Compressed content is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+
+        return new String(output, CHARSET);
+    }
+}
@@ -1,5 +1,10 @@
 package stroom.annotations.model;
 
+/**
+ * The status of an annotation. The database stores the status as an ENUM with one code per value, in the order
+ * they are declared here, so new values must only be appended, along with a migration that appends them to the
+ * ENUM columns.
+ */
 public enum Status {
     QUEUED("Queued"),
     CLOSED_DATA_ERROR("Closed - Data Error"),
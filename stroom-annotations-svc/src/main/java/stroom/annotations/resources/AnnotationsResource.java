@@ -3,14 +3,20 @@ package stroom.annotations.resources;
 import com.codahale.metrics.annotation.Timed;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.validation.Validated;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.hibernate.validator.constraints.Length;
 import stroom.annotations.model.Annotation;
+import stroom.annotations.model.BulkUpdateDTO;
+import stroom.annotations.service.AnnotationsServiceImpl;
 import stroom.query.audit.security.ServiceUser;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -19,6 +25,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.List;
 
 @Path("/annotations/v1")
 @Produces(MediaType.APPLICATION_JSON)
@@ -59,6 +66,22 @@ public interface AnnotationsResource {
                  @NotNull
                  @Length(min=Annotation.MIN_ID_LENGTH) String id);
 
+    /**
+     * Find which of a set of annotation IDs exist, and their statuses, without fetching the annotations
+     * @return A map of ID to status, with an entry for each ID that exists
+     */
+    @POST
+    @Path("/exists/{index}")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Timed
+    Response exists(@Auth @NotNull ServiceUser authenticatedServiceUser,
+                    @Validated
+                    @PathParam("index")
+                    @NotNull
+                    @Length(min=Annotation.MIN_ID_LENGTH) String index,
+                    @NotNull
+                    @Size(max=AnnotationsServiceImpl.MAX_EXISTS_IDS) List<String> ids);
+
     @GET
     @Path("/single/{index}/{id}/history")
     @Timed
@@ -72,8 +95,12 @@ public interface AnnotationsResource {
                         @NotNull
                         @Length(min=Annotation.MIN_ID_LENGTH) String id);
 
+    /**
+     * Create an annotation, with the content, assignee and status of the body, or the defaults if there is no body
+     */
     @POST
     @Path("/single/{index}/{id}")
+    @Consumes({MediaType.APPLICATION_JSON})
     @Timed
     Response create(@Auth @NotNull ServiceUser authenticatedServiceUser,
                     @Validated
@@ -83,7 +110,8 @@ public interface AnnotationsResource {
                     @Validated
                     @PathParam("id")
                     @NotNull
-                    @Length(min=Annotation.MIN_ID_LENGTH) String id);
+                    @Length(min=Annotation.MIN_ID_LENGTH) String id,
+                    Annotation annotation);
 
     @PUT
     @Path("/single/{index}/{id}")
@@ -100,6 +128,39 @@ public interface AnnotationsResource {
                     @Length(min=Annotation.MIN_ID_LENGTH) String id,
                     Annotation annotation);
 
+    /**
+     * Create the annotation with the state in the body, or update it to that state if it already exists
+     */
+    @PUT
+    @Path("/upsert/{index}/{id}")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Timed
+    Response upsert(@Auth @NotNull ServiceUser authenticatedServiceUser,
+                    @Validated
+                    @PathParam("index")
+                    @NotNull
+                    @Length(min=Annotation.MIN_ID_LENGTH) String index,
+                    @Validated
+                    @PathParam("id")
+                    @NotNull
+                    @Length(min=Annotation.MIN_ID_LENGTH) String id,
+                    @NotNull Annotation annotation);
+
+    /**
+     * Move every annotation selected by expression or ID to a status and assignee, in a few set based statements
+     * @return The number of annotations changed, as the records updated of the message
+     */
+    @POST
+    @Path("/bulk/{index}")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Timed
+    Response updateAll(@Auth @NotNull ServiceUser authenticatedServiceUser,
+                       @Validated
+                       @PathParam("index")
+                       @NotNull
+                       @Length(min=Annotation.MIN_ID_LENGTH) String index,
+                       @NotNull BulkUpdateDTO update);
+
     @DELETE
     @Path("/single/{index}/{id}")
     @Timed
@@ -112,4 +173,26 @@ public interface AnnotationsResource {
                     @PathParam("id")
                     @NotNull
                     @Length(min=Annotation.MIN_ID_LENGTH) String id);
+
+    @GET
+    @Path("/feed/{index}")
+    @Timed
+    Response feed(@Auth @NotNull ServiceUser authenticatedServiceUser,
+                  @Validated
+                  @PathParam("index")
+                  @NotNull
+                  @Length(min=Annotation.MIN_ID_LENGTH) String index,
+                  @QueryParam("fromId") Long fromId,
+                  @QueryParam("limit") @Min(1) Integer limit);
+
+    @GET
+    @Path("/changes/{index}")
+    @Produces({SseFeature.SERVER_SENT_EVENTS})
+    @Timed
+    Response changes(@Auth @NotNull ServiceUser authenticatedServiceUser,
+                     @Validated
+                     @PathParam("index")
+                     @NotNull
+                     @Length(min=Annotation.MIN_ID_LENGTH) String index,
+                     @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) Long lastEventId);
 }
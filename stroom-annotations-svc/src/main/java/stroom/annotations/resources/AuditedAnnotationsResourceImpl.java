@@ -10,10 +10,17 @@ import event.logging.Search;
 import event.logging.Term;
 import event.logging.TermCondition;
 import org.eclipse.jetty.http.HttpStatus;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import stroom.annotations.metrics.RequestTimer;
+import stroom.annotations.metrics.RequestTimers;
+import stroom.annotations.model.AnnotationHistory;
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.annotations.model.BulkUpdateDTO;
 import stroom.annotations.model.Status;
 import stroom.annotations.model.ResponseMsgDTO;
+import stroom.annotations.service.AnnotationChangeBus;
 import stroom.annotations.service.AnnotationsService;
 import stroom.query.api.v2.DocRef;
 import stroom.query.audit.DocRefAuditWrapper;
@@ -23,6 +30,7 @@ import stroom.query.audit.security.ServiceUser;
 import stroom.query.audit.service.DocRefService;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.Arrays;
 import java.util.List;
@@ -41,12 +49,20 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
 
     private final DocRefService<AnnotationsDocRefEntity> docRefService;
 
+    private final AnnotationChangeBus changeBus;
+
+    private final RequestTimers requestTimers;
+
     @Inject
     public AuditedAnnotationsResourceImpl(final AnnotationsService service,
                                           final AuthorisationService authorisationService,
                                           final EventLoggingService eventLoggingService,
-                                          final DocRefService docRefService) {
+                                          final DocRefService docRefService,
+                                          final AnnotationChangeBus changeBus,
+                                          final RequestTimers requestTimers) {
         this.service = service;
+        this.changeBus = changeBus;
+        this.requestTimers = requestTimers;
         this.eventLoggingService = eventLoggingService;
         this.authorisationService = authorisationService;
         this.docRefService = (DocRefService<AnnotationsDocRefEntity>) docRefService;
@@ -74,19 +90,21 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
                            final String indexDocRefUuid,
                            final String q,
                            final Integer seekPosition) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+        final RequestTimer timer = requestTimers.start(SEARCH_ANNOTATIONS, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity((docRef) -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier((docRef) -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.READ))
-                .withResponse(docRefEntity ->  {
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE, () -> {
                     final List<Annotation> as = service.search(user, docRefEntity.getUuid(), q, seekPosition);
                     return Response.ok(as).build();
-                })
+                }))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(SEARCH_ANNOTATIONS);
                     eventDetail.setDescription("Freetext search through Annotations");
@@ -117,7 +135,7 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
                         seekIdTerm.setValue(Integer.toString(seekPosition));
                         seekIdTerm.setCondition(TermCondition.GREATER_THAN);
                     }
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
     }
 
     public static String GET_ANNOTATION = "GET_ANNOTATION";
@@ -126,25 +144,68 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
     public Response get(final ServiceUser user,
                         final String indexDocRefUuid,
                         final String id) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+        final RequestTimer timer = requestTimers.start(GET_ANNOTATION, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity(docRef -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier((docRef) -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.READ))
-                .withResponse(docRefEntity -> service.get(user, docRefEntity.getUuid(), id)
-                        .map(d -> Response.ok(d).build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404).build()))
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.get(user, docRefEntity.getUuid(), id)
+                                .map(d -> Response.ok(d).build())
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(GET_ANNOTATION);
                     eventDetail.setDescription("Get a specific Annotation by ID");
 
                     eventDetail.setView(getOutcomeForId(id));
                     eventDetail.getView().getOutcome().setSuccess(null != exception);
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
+    }
+
+    public static String CHECK_ANNOTATIONS_EXIST = "CHECK_ANNOTATIONS_EXIST";
+
+    @Override
+    public Response exists(final ServiceUser user,
+                           final String indexDocRefUuid,
+                           final List<String> ids) {
+        final RequestTimer timer = requestTimers.start(CHECK_ANNOTATIONS_EXIST, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                .withDocRef(new DocRef.Builder()
+                        .type(AnnotationsDocRefEntity.TYPE)
+                        .uuid(indexDocRefUuid)
+                        .build())
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> Response.ok(service.getStatuses(user, docRefEntity.getUuid(), ids)).build()))
+                .withPopulateAudit((eventDetail, response, exception) -> {
+                    eventDetail.setTypeId(CHECK_ANNOTATIONS_EXIST);
+                    eventDetail.setDescription("Check which of a set of Annotations exist");
+
+                    final ObjectOutcome view = new ObjectOutcome();
+                    eventDetail.setView(view);
+
+                    final Outcome outcome = new Outcome();
+                    view.setOutcome(outcome);
+
+                    outcome.setSuccess(null != exception);
+
+                    outcome.getData().add(getDataFor("index", indexDocRefUuid));
+                    outcome.getData().add(getDataFor("idsChecked", Integer.toString(ids.size())));
+                    if (null != response && response.getEntity() instanceof Map) {
+                        outcome.getData().add(getDataFor("idsFound",
+                                Integer.toString(((Map<?, ?>) response.getEntity()).size())));
+                    }
+                }).callAndAudit(eventLoggingService));
     }
 
     public static String GET_ANNOTATION_HISTORY = "GET_ANNOTATION_HISTORY";
@@ -153,25 +214,28 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
     public Response getHistory(final ServiceUser user,
                                final String indexDocRefUuid,
                                final String id) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+        final RequestTimer timer = requestTimers.start(GET_ANNOTATION_HISTORY, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity(docRef -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier(docRef -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.READ))
-                .withResponse(docRefEntity -> service.getHistory(user, docRefEntity.getUuid(), id)
-                        .map(d -> Response.ok(d).build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404).build()))
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.getHistory(user, docRefEntity.getUuid(), id)
+                                .map(d -> Response.ok(d).build())
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(GET_ANNOTATION_HISTORY);
                     eventDetail.setDescription("Get the history of a specific Annotation by ID");
 
                     eventDetail.setView(getOutcomeForId(id));
                     eventDetail.getView().getOutcome().setSuccess(null != exception);
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
     }
 
     public static String CREATE_ANNOTATION = "CREATE_ANNOTATION";
@@ -179,26 +243,124 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
     @Override
     public Response create(final ServiceUser user,
                            final String indexDocRefUuid,
-                           final String id) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                           final String id,
+                           final Annotation annotation) {
+        final RequestTimer timer = requestTimers.start(CREATE_ANNOTATION, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity(docRef -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier(docRef -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.UPDATE))
-                .withResponse(docRefEntity ->  service.create(user, indexDocRefUuid, id)
-                        .map(d -> Response.ok(d).build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404).build()))
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.UPDATE)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.create(user, indexDocRefUuid, id, annotation)
+                                .map(d -> Response.ok(d).build())
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(CREATE_ANNOTATION);
                     eventDetail.setDescription("Create a new Annotation by a specific ID");
 
                     eventDetail.setCreate(getOutcomeForId(id));
                     eventDetail.getCreate().getOutcome().setSuccess(null != exception);
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
+    }
+
+    public static String UPSERT_ANNOTATION = "UPSERT_ANNOTATION";
+
+    @Override
+    public Response upsert(final ServiceUser user,
+                           final String indexDocRefUuid,
+                           final String id,
+                           final Annotation annotation) {
+        final RequestTimer timer = requestTimers.start(UPSERT_ANNOTATION, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                .withDocRef(new DocRef.Builder()
+                        .type(AnnotationsDocRefEntity.TYPE)
+                        .uuid(indexDocRefUuid)
+                        .build())
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.UPDATE)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.upsert(user, indexDocRefUuid, id, annotation)
+                                .map(d -> Response.ok(d).build())
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
+                .withPopulateAudit((eventDetail, response, exception) -> {
+                    eventDetail.setTypeId(UPSERT_ANNOTATION);
+                    eventDetail.setDescription("Create or update an Annotation with a specific ID");
+
+                    final Event.EventDetail.Update update = new Event.EventDetail.Update();
+                    eventDetail.setUpdate(update);
+
+                    final Outcome outcome = new Outcome();
+                    update.setOutcome(outcome);
+
+                    outcome.setSuccess(null != exception);
+
+                    update.getData().add(getDataForId(id));
+                }).callAndAudit(eventLoggingService));
+    }
+
+    public static String BULK_UPDATE_ANNOTATIONS = "BULK_UPDATE_ANNOTATIONS";
+
+    @Override
+    public Response updateAll(final ServiceUser user,
+                              final String indexDocRefUuid,
+                              final BulkUpdateDTO bulkUpdate) {
+        final RequestTimer timer = requestTimers.start(BULK_UPDATE_ANNOTATIONS, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                .withDocRef(new DocRef.Builder()
+                        .type(AnnotationsDocRefEntity.TYPE)
+                        .uuid(indexDocRefUuid)
+                        .build())
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.UPDATE)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE, () -> {
+                    try {
+                        final int recordsUpdated = service.updateAll(user, indexDocRefUuid, bulkUpdate);
+                        return Response.ok(ResponseMsgDTO.msg("Annotations updated")
+                                .recordsUpdated(recordsUpdated)
+                                .build())
+                                .build();
+                    } catch (final IllegalArgumentException e) {
+                        return Response.status(HttpStatus.BAD_REQUEST_400)
+                                .entity(ResponseMsgDTO.msg(e.getMessage()).build())
+                                .build();
+                    }
+                }))
+                .withPopulateAudit((eventDetail, response, exception) -> {
+                    eventDetail.setTypeId(BULK_UPDATE_ANNOTATIONS);
+                    eventDetail.setDescription("Update the status or assignee of a set of Annotations");
+
+                    final Event.EventDetail.Update update = new Event.EventDetail.Update();
+                    eventDetail.setUpdate(update);
+
+                    final Outcome outcome = new Outcome();
+                    update.setOutcome(outcome);
+
+                    outcome.setSuccess(null != exception);
+
+                    update.getData().add(getDataFor("index", indexDocRefUuid));
+                    if (null != bulkUpdate.getStatus()) {
+                        update.getData().add(getDataFor("status", bulkUpdate.getStatus().toString()));
+                    }
+                    if (null != bulkUpdate.getAssignTo()) {
+                        update.getData().add(getDataFor("assignTo", bulkUpdate.getAssignTo()));
+                    }
+                    if (null != response && response.getEntity() instanceof ResponseMsgDTO) {
+                        update.getData().add(getDataFor("recordsUpdated",
+                                Integer.toString(((ResponseMsgDTO) response.getEntity()).getRecordsUpdated())));
+                    }
+                }).callAndAudit(eventLoggingService));
     }
 
     public static String UPDATE_ANNOTATION = "UPDATE_ANNOTATION";
@@ -208,18 +370,21 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
                            final String indexDocRefUuid,
                            final String id,
                            final Annotation annotation) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+        final RequestTimer timer = requestTimers.start(UPDATE_ANNOTATION, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity(docRef -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier(docRef -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.UPDATE))
-                .withResponse(docRefEntity -> service.update(user, indexDocRefUuid, id, annotation)
-                        .map(d -> Response.ok(d).build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404).build()))
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.UPDATE)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.update(user, indexDocRefUuid, id, annotation)
+                                .map(d -> Response.ok(d).build())
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(UPDATE_ANNOTATION);
                     eventDetail.setDescription("Update an new Annotation with a specific ID");
@@ -233,7 +398,7 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
                     outcome.setSuccess(null != exception);
 
                     update.getData().add(getDataForId(id));
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
     }
 
     public static String REMOVE_ANNOTATION = "REMOVE_ANNOTATION";
@@ -242,29 +407,135 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
     public Response remove(final ServiceUser user,
                            final String indexDocRefUuid,
                            final String id) {
-        return DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+        final RequestTimer timer = requestTimers.start(REMOVE_ANNOTATION, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
                 .withDocRef(new DocRef.Builder()
                         .type(AnnotationsDocRefEntity.TYPE)
                         .uuid(indexDocRefUuid)
                         .build())
-                .withDocRefEntity(docRef -> docRefService.get(user, docRef.getUuid()))
-                .withAuthSupplier(docRef -> authorisationService.isAuthorised(user,
-                        docRef,
-                        DocumentPermission.DELETE))
-                .withResponse(docRefEntity -> service.remove(user, indexDocRefUuid, id)
-                        .map(d -> Response
-                                .ok(ResponseMsgDTO.msg("Annotation deleted")
-                                        .recordsUpdated(d ? 1 : 0)
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.DELETE)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE,
+                        () -> service.remove(user, indexDocRefUuid, id)
+                                .map(d -> Response
+                                        .ok(ResponseMsgDTO.msg("Annotation deleted")
+                                                .recordsUpdated(d ? 1 : 0)
+                                                .build())
                                         .build())
-                                .build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404).build()))
+                                .orElse(Response.status(HttpStatus.NOT_FOUND_404).build())))
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(REMOVE_ANNOTATION);
                     eventDetail.setDescription("Remove an new Annotation with a specific ID");
 
                     eventDetail.setDelete(getOutcomeForId(id));
                     eventDetail.getDelete().getOutcome().setSuccess(null != exception);
-                }).callAndAudit(eventLoggingService);
+                }).callAndAudit(eventLoggingService));
+    }
+
+    public static String GET_ANNOTATION_FEED = "GET_ANNOTATION_FEED";
+
+    @Override
+    public Response feed(final ServiceUser user,
+                         final String indexDocRefUuid,
+                         final Long fromId,
+                         final Integer limit) {
+        final RequestTimer timer = requestTimers.start(GET_ANNOTATION_FEED, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                .withDocRef(new DocRef.Builder()
+                        .type(AnnotationsDocRefEntity.TYPE)
+                        .uuid(indexDocRefUuid)
+                        .build())
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE, () -> {
+                    final List<AnnotationHistory> changes = service.getChanges(user, docRefEntity.getUuid(), fromId, limit);
+                    return Response.ok(changes).build();
+                }))
+                .withPopulateAudit((eventDetail, response, exception) -> {
+                    eventDetail.setTypeId(GET_ANNOTATION_FEED);
+                    eventDetail.setDescription("Page through the changes made to Annotations in an index");
+
+                    eventDetail.setView(getOutcomeForId(indexDocRefUuid));
+                    eventDetail.getView().getOutcome().setSuccess(null != exception);
+
+                    if (null != fromId) {
+                        eventDetail.getView().getOutcome().getData().add(getDataFor("fromId", Long.toString(fromId)));
+                    }
+                }).callAndAudit(eventLoggingService));
+    }
+
+    public static String WATCH_ANNOTATIONS = "WATCH_ANNOTATIONS";
+
+    @Override
+    public Response changes(final ServiceUser user,
+                            final String indexDocRefUuid,
+                            final Long lastEventId) {
+        final RequestTimer timer = requestTimers.start(WATCH_ANNOTATIONS, indexDocRefUuid);
+
+        return timer.finish(DocRefAuditWrapper.<AnnotationsDocRefEntity>withUser(user)
+                .withDocRef(new DocRef.Builder()
+                        .type(AnnotationsDocRefEntity.TYPE)
+                        .uuid(indexDocRefUuid)
+                        .build())
+                .withDocRefEntity(docRef -> timer.time(RequestTimer.DOC_REF,
+                        () -> docRefService.get(user, docRef.getUuid())))
+                .withAuthSupplier(docRef -> timer.time(RequestTimer.AUTHORISATION,
+                        () -> authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)))
+                .withResponse(docRefEntity -> timer.time(RequestTimer.SERVICE, () -> {
+                    final EventOutput eventOutput = new EventOutput();
+
+                    // Writing to a closed stream throws, and heartbeats are written while it is quiet,
+                    // so a stream whose client has gone away is dropped from the bus within the heartbeat interval
+                    changeBus.subscribe(docRefEntity.getUuid(), lastEventId,
+                            fromId -> service.getChanges(user, docRefEntity.getUuid(), fromId, null),
+                            new AnnotationChangeBus.Listener() {
+                                @Override
+                                public void onChange(final AnnotationHistory change) throws Exception {
+                                    eventOutput.write(getEventForChange(change));
+                                }
+
+                                @Override
+                                public void onHeartbeat() throws Exception {
+                                    eventOutput.write(HEARTBEAT_EVENT);
+                                }
+
+                                @Override
+                                public boolean isClosed() {
+                                    return eventOutput.isClosed();
+                                }
+                            });
+
+                    return Response.ok(eventOutput).build();
+                }))
+                .withPopulateAudit((eventDetail, response, exception) -> {
+                    eventDetail.setTypeId(WATCH_ANNOTATIONS);
+                    eventDetail.setDescription("Stream the changes made to Annotations in an index");
+
+                    eventDetail.setView(getOutcomeForId(indexDocRefUuid));
+                    eventDetail.getView().getOutcome().setSuccess(null != exception);
+                }).callAndAudit(eventLoggingService));
+    }
+
+    /**
+     * A comment, which clients ignore
+     */
+    private static final OutboundEvent HEARTBEAT_EVENT = new OutboundEvent.Builder()
+            .comment("heartbeat")
+            .build();
+
+    private OutboundEvent getEventForChange(final AnnotationHistory change) {
+        return new OutboundEvent.Builder()
+                .id(Long.toString(change.getId()))
+                .name(change.getOperation().toString())
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(AnnotationHistory.class, change)
+                .build();
     }
 
     private ObjectOutcome getOutcomeForId(final String id) {
@@ -279,11 +550,15 @@ public class AuditedAnnotationsResourceImpl implements AnnotationsResource {
     }
 
     private Data getDataForId(final String id) {
-        final Data idData = new Data();
+        return getDataFor("id", id);
+    }
+
+    private Data getDataFor(final String name, final String value) {
+        final Data data = new Data();
 
-        idData.setName("id");
-        idData.setValue(id);
+        data.setName(name);
+        data.setValue(value);
 
-        return idData;
+        return data;
     }
 }
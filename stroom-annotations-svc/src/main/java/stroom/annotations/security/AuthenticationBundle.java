@@ -0,0 +1,54 @@
+package stroom.annotations.security;
+
+import io.dropwizard.ConfiguredBundle;
+import io.dropwizard.auth.AuthDynamicFeature;
+import io.dropwizard.auth.AuthValueFactoryProvider;
+import io.dropwizard.auth.oauth.OAuthCredentialAuthFilter;
+import io.dropwizard.setup.Bootstrap;
+import io.dropwizard.setup.Environment;
+import stroom.annotations.config.AuthenticationCacheConfig;
+import stroom.annotations.config.Config;
+import stroom.query.audit.security.ServiceUser;
+import stroom.query.audit.security.TokenConfig;
+
+/**
+ * Authenticates every request by its bearer token, through the {@link CachingJwtAuthenticator}.
+ *
+ * Must be added before the query bundle. Jersey only keeps the first authentication feature registered, so this
+ * one takes the place of the filter the query bundle would install, which verifies every token from scratch.
+ * When authentication is skipped this does nothing, and the query bundle supplies its stand-in user.
+ */
+public class AuthenticationBundle implements ConfiguredBundle<Config> {
+
+    private static final String BEARER_PREFIX = "Bearer";
+
+    @Override
+    public void initialize(final Bootstrap<?> bootstrap) {
+
+    }
+
+    @Override
+    public void run(final Config configuration,
+                    final Environment environment) {
+        final TokenConfig tokenConfig = configuration.getTokenConfig();
+        if (null == tokenConfig || Boolean.TRUE.equals(tokenConfig.getSkipAuth())) {
+            return;
+        }
+
+        final AuthenticationCacheConfig config = configuration.getAuthenticationCacheConfig();
+
+        final JsonWebKeyCache keys = new JsonWebKeyCache(tokenConfig.getPublicKeyUrl(), config, environment.metrics());
+        environment.lifecycle().manage(keys);
+
+        final CachingJwtAuthenticator authenticator = new CachingJwtAuthenticator(
+                new JwtVerifier(tokenConfig, keys, environment.metrics()),
+                config,
+                environment.metrics());
+
+        environment.jersey().register(new AuthDynamicFeature(new OAuthCredentialAuthFilter.Builder<ServiceUser>()
+                .setAuthenticator(authenticator)
+                .setPrefix(BEARER_PREFIX)
+                .buildAuthFilter()));
+        environment.jersey().register(new AuthValueFactoryProvider.Binder<>(ServiceUser.class));
+    }
+}
@@ -0,0 +1,96 @@
+package stroom.annotations.security;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.dropwizard.auth.Authenticator;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.NumericDate;
+import stroom.annotations.config.AuthenticationCacheConfig;
+import stroom.query.audit.security.ServiceUser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticates callers by their bearer token, remembering the tokens that have already been verified so that a
+ * busy client does not pay for the signature check on every request.
+ *
+ * Verified tokens are keyed by a hash of the token, so the cache never holds a usable credential, and are trusted
+ * for at most the configured time to live and never past the expiry of the token itself. Rejected tokens are never
+ * remembered, so a token that failed while its key was unknown is accepted once the key has been fetched.
+ */
+public class CachingJwtAuthenticator implements Authenticator<String, ServiceUser> {
+
+    private final JwtVerifier verifier;
+
+    private final Cache<String, VerifiedToken> verified;
+
+    private final Meter hits;
+    private final Meter misses;
+
+    public CachingJwtAuthenticator(final JwtVerifier verifier,
+                                   final AuthenticationCacheConfig config,
+                                   final MetricRegistry metricRegistry) {
+        this.verifier = verifier;
+        this.verified = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getTimeToLive().toMilliseconds(), TimeUnit.MILLISECONDS)
+                .maximumSize(config.getMaximumSize())
+                .build();
+        this.hits = metricRegistry.meter(MetricRegistry.name(CachingJwtAuthenticator.class, "hits"));
+        this.misses = metricRegistry.meter(MetricRegistry.name(CachingJwtAuthenticator.class, "misses"));
+    }
+
+    @Override
+    public Optional<ServiceUser> authenticate(final String jwt) {
+        final String key = Hashing.sha256().hashString(jwt, StandardCharsets.UTF_8).toString();
+        final long now = System.currentTimeMillis();
+
+        final VerifiedToken cached = verified.getIfPresent(key);
+        if (null != cached && cached.validUntil > now) {
+            hits.mark();
+            return Optional.of(new ServiceUser(cached.name, jwt));
+        }
+        misses.mark();
+
+        final Optional<JwtClaims> claims = verifier.verify(jwt);
+        if (!claims.isPresent()) {
+            return Optional.empty();
+        }
+
+        final VerifiedToken token;
+        try {
+            token = new VerifiedToken(claims.get().getSubject(),
+                    Optional.ofNullable(claims.get().getExpirationTime())
+                            .map(NumericDate::getValueInMillis)
+                            .orElse(Long.MAX_VALUE));
+        } catch (final MalformedClaimException e) {
+            return Optional.empty();
+        }
+
+        if (token.validUntil > now) {
+            verified.put(key, token);
+        }
+
+        return Optional.of(new ServiceUser(token.name, jwt));
+    }
+
+    private static class VerifiedToken {
+        private final String name;
+
+        /**
+         * The expiry of the token, it is verified again after this even if the cache still holds it
+         */
+        private final long validUntil;
+
+        private VerifiedToken(final String name,
+                              final long validUntil) {
+            this.name = name;
+            this.validUntil = validUntil;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package stroom.annotations.security;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.VerificationJwkSelector;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwx.JsonWebStructure;
+import org.jose4j.keys.resolvers.VerificationKeyResolver;
+import org.jose4j.lang.JoseException;
+import org.jose4j.lang.UnresolvableKeyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.AuthenticationCacheConfig;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.security.Key;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Holds the public keys that tokens are signed with, fetched from the token service when the service starts and
+ * again in the background at a fixed interval, so that verifying a token never waits on a remote call.
+ *
+ * The token service can publish a single key, or a key set while it rotates keys. A token signed by a key that is
+ * not known yet fetches the keys again straight away, but no more often than the minimum refresh interval, so a
+ * stream of bad tokens cannot flood the token service. If a fetch fails the keys already held are kept.
+ */
+public class JsonWebKeyCache implements VerificationKeyResolver, Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonWebKeyCache.class);
+
+    private final String publicKeyUrl;
+
+    private final AuthenticationCacheConfig config;
+
+    private final Client client;
+
+    private final VerificationJwkSelector selector = new VerificationJwkSelector();
+
+    private volatile List<JsonWebKey> keys = Collections.emptyList();
+
+    private long lastRefresh;
+
+    private ScheduledExecutorService refreshExecutor;
+
+    private final Timer refreshTimer;
+    private final Meter refreshFailures;
+    private final Meter unknownKeys;
+
+    public JsonWebKeyCache(final String publicKeyUrl,
+                           final AuthenticationCacheConfig config,
+                           final MetricRegistry metricRegistry) {
+        this.publicKeyUrl = publicKeyUrl;
+        this.config = config;
+        this.client = ClientBuilder.newClient();
+
+        this.refreshTimer = metricRegistry.timer(MetricRegistry.name(JsonWebKeyCache.class, "refresh"));
+        this.refreshFailures = metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "refreshFailures"));
+        this.unknownKeys = metricRegistry.meter(MetricRegistry.name(JsonWebKeyCache.class, "unknownKeys"));
+        metricRegistry.register(MetricRegistry.name(JsonWebKeyCache.class, "keys"),
+                (Gauge<Integer>) () -> keys.size());
+    }
+
+    @Override
+    public void start() {
+        refresh();
+
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "json-web-key-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(this::refresh,
+                config.getKeyRefreshInterval().toMilliseconds(),
+                config.getKeyRefreshInterval().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (null != refreshExecutor) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        client.close();
+    }
+
+    @Override
+    public Key resolveKey(final JsonWebSignature jws,
+                          final List<JsonWebStructure> nestingContext) throws UnresolvableKeyException {
+        JsonWebKey key = select(jws, keys);
+
+        if (null == key) {
+            unknownKeys.mark();
+            if (refreshUnknownKey()) {
+                key = select(jws, keys);
+            }
+        }
+
+        if (null == key) {
+            throw new UnresolvableKeyException(String.format("None of the %d public keys match the token, key ID %s",
+                    keys.size(), jws.getKeyIdHeaderValue()));
+        }
+
+        return key.getKey();
+    }
+
+    /**
+     * Fetch the keys again, unless they were fetched less than the minimum refresh interval ago
+     * @return True if the keys were fetched
+     */
+    private synchronized boolean refreshUnknownKey() {
+        if (System.currentTimeMillis() - lastRefresh < config.getMinimumKeyRefreshInterval().toMilliseconds()) {
+            return false;
+        }
+
+        return refresh();
+    }
+
+    /**
+     * Fetch the keys, keeping the ones already held if the fetch fails
+     * @return True if the keys were fetched
+     */
+    private synchronized boolean refresh() {
+        lastRefresh = System.currentTimeMillis();
+
+        try (final Timer.Context ignored = refreshTimer.time()) {
+            final List<JsonWebKey> fetched = parse(client.target(publicKeyUrl)
+                    .request()
+                    .get(String.class));
+
+            if (!getKeyIds(fetched).equals(getKeyIds(keys))) {
+                LOGGER.info("Fetched public keys {} from {}", getKeyIds(fetched), publicKeyUrl);
+            }
+            keys = fetched;
+            return true;
+        } catch (final Exception e) {
+            refreshFailures.mark();
+            LOGGER.warn("Could not fetch the public keys from {}, keeping the {} already held",
+                    publicKeyUrl, keys.size(), e);
+            return false;
+        }
+    }
+
+    private JsonWebKey select(final JsonWebSignature jws,
+                              final List<JsonWebKey> candidates) {
+        try {
+            return selector.select(jws, candidates);
+        } catch (final JoseException e) {
+            LOGGER.debug("Could not select a public key for a token", e);
+            return null;
+        }
+    }
+
+    private static List<String> getKeyIds(final List<JsonWebKey> keys) {
+        return keys.stream()
+                .map(JsonWebKey::getKeyId)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param json Either a single key, or a key set
+     */
+    private static List<JsonWebKey> parse(final String json) throws JoseException {
+        final Map<String, Object> members = JsonUtil.parseJson(json);
+
+        if (members.containsKey(JsonWebKeySet.JWK_SET_MEMBER_NAME)) {
+            return Collections.unmodifiableList(new JsonWebKeySet(json).getJsonWebKeys());
+        }
+
+        return Collections.singletonList(JsonWebKey.Factory.newJwk(members));
+    }
+}
@@ -0,0 +1,57 @@
+package stroom.annotations.security;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.keys.resolvers.VerificationKeyResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.audit.security.TokenConfig;
+
+import java.util.Optional;
+
+/**
+ * Checks the signature of a token against the published public keys, and checks its issuer and expiry
+ */
+public class JwtVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JwtVerifier.class);
+
+    private static final int ALLOWED_CLOCK_SKEW_SECONDS = 30;
+
+    private final JwtConsumer consumer;
+
+    private final Timer verificationTimer;
+
+    public JwtVerifier(final TokenConfig tokenConfig,
+                       final VerificationKeyResolver keys,
+                       final MetricRegistry metricRegistry) {
+        this.consumer = new JwtConsumerBuilder()
+                .setAllowedClockSkewInSeconds(ALLOWED_CLOCK_SKEW_SECONDS)
+                .setRequireSubject()
+                .setExpectedIssuer(tokenConfig.getJwsIssuer())
+                .setSkipDefaultAudienceValidation()
+                .setVerificationKeyResolver(keys)
+                .setJwsAlgorithmConstraints(new AlgorithmConstraints(AlgorithmConstraints.ConstraintType.WHITELIST,
+                        tokenConfig.getAlgorithm()))
+                .build();
+        this.verificationTimer = metricRegistry.timer(MetricRegistry.name(JwtVerifier.class, "verification"));
+    }
+
+    /**
+     * @param jwt The token presented by the caller
+     * @return The claims of the token, empty if it is not valid
+     */
+    public Optional<JwtClaims> verify(final String jwt) {
+        try (final Timer.Context ignored = verificationTimer.time()) {
+            return Optional.of(consumer.processToClaims(jwt));
+        } catch (final InvalidJwtException e) {
+            LOGGER.debug("Rejected a token", e);
+            return Optional.empty();
+        }
+    }
+}
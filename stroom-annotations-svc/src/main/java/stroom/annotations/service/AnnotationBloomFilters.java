@@ -0,0 +1,306 @@
+package stroom.annotations.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import io.dropwizard.lifecycle.Managed;
+import org.jooq.DSLContext;
+import org.jooq.Record2;
+import org.jooq.Record4;
+import org.jooq.Result;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.BloomFilterConfig;
+import stroom.annotations.config.ChangeFeedConfig;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.HistoryOperation;
+import stroom.query.jooq.JooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Bloom filter of the annotation IDs in each index, so that looking up an annotation that does not exist, which
+ * is what happens for most events shown on a dashboard, can be answered without going to the database.
+ *
+ * The filters are loaded from the annotation table at startup, and until that has finished every ID might exist.
+ * Creates made through this instance are added before their transaction commits, so there is never a window in
+ * which a committed annotation is reported missing. Creates made by other instances are picked up by tailing the
+ * settled annotation history (see {@link SettledHistory}), so can be reported missing here for up to the refresh
+ * interval plus the settle time. The filters are therefore off by default, and should only be turned on when a
+ * single instance of the service writes annotations, or when such a window of false negatives is acceptable.
+ *
+ * Removed IDs cannot be taken out of a Bloom filter, they remain as false positives until the next restart, or until
+ * the whole index is purged.
+ */
+@Singleton
+public class AnnotationBloomFilters implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationBloomFilters.class);
+
+    /**
+     * The filters for a single index. Once a filter holds the number of IDs it was sized for, another of twice
+     * the size is added, so the false positive rate stays close to the configured one as the index grows.
+     */
+    private static class IndexFilter {
+        private final double falsePositiveRate;
+        private final List<BloomFilter<CharSequence>> filters = new ArrayList<>();
+        private long capacity;
+
+        private IndexFilter(final long expectedInsertions,
+                            final double falsePositiveRate) {
+            this.falsePositiveRate = falsePositiveRate;
+            this.capacity = expectedInsertions;
+            this.filters.add(newFilter());
+        }
+
+        private BloomFilter<CharSequence> newFilter() {
+            return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, falsePositiveRate);
+        }
+
+        private synchronized void put(final String id) {
+            BloomFilter<CharSequence> current = filters.get(filters.size() - 1);
+            if (current.approximateElementCount() >= capacity) {
+                capacity *= 2;
+                current = newFilter();
+                filters.add(current);
+            }
+            current.put(id);
+        }
+
+        private synchronized boolean mightContain(final String id) {
+            for (final BloomFilter<CharSequence> filter : filters) {
+                if (filter.mightContain(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final BloomFilterConfig config;
+
+    private final ChangeFeedConfig changeFeedConfig;
+
+    private final DSLContext database;
+
+    private final Table<?> annotationTable;
+    private final Table<?> historyTable;
+
+    private final ConcurrentMap<String, IndexFilter> filters = new ConcurrentHashMap<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * The history ID up to which every create has been added, never past a point that has not settled.
+     * Only touched by the refresh thread.
+     */
+    private long refreshedUpTo;
+
+    private ScheduledExecutorService refreshExecutor;
+
+    private final Meter skipped;
+    private final Meter passed;
+    private final Meter falsePositives;
+
+    @Inject
+    public AnnotationBloomFilters(final BloomFilterConfig config,
+                                  final ChangeFeedConfig changeFeedConfig,
+                                  final DSLContext database,
+                                  final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.changeFeedConfig = changeFeedConfig;
+        this.database = database;
+        this.annotationTable = Optional.ofNullable(Annotation.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation Class must be annotated with JooqEntity"));
+        this.historyTable = Optional.ofNullable(AnnotationHistory.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation History Class must be annotated with JooqEntity"));
+
+        this.skipped = metricRegistry.meter(MetricRegistry.name(AnnotationBloomFilters.class, "skipped"));
+        this.passed = metricRegistry.meter(MetricRegistry.name(AnnotationBloomFilters.class, "passed"));
+        this.falsePositives = metricRegistry.meter(MetricRegistry.name(AnnotationBloomFilters.class, "falsePositives"));
+        metricRegistry.register(MetricRegistry.name(AnnotationBloomFilters.class, "indexes"),
+                (Gauge<Integer>) filters::size);
+        metricRegistry.register(MetricRegistry.name(AnnotationBloomFilters.class, "loaded"),
+                (Gauge<Boolean>) () -> loaded);
+    }
+
+    /**
+     * @param index The index to look in
+     * @param id The ID of the annotation
+     * @return False if the annotation definitely does not exist, true if it might
+     */
+    public boolean mightContain(final String index, final String id) {
+        if (!config.isEnabled() || !loaded) {
+            return true;
+        }
+
+        final IndexFilter filter = filters.get(index);
+        final boolean mightContain = null != filter && filter.mightContain(id);
+        if (mightContain) {
+            passed.mark();
+        } else {
+            skipped.mark();
+        }
+        return mightContain;
+    }
+
+    /**
+     * Record that an ID that might have existed was not found, to measure the real false positive rate
+     */
+    public void falsePositive() {
+        falsePositives.mark();
+    }
+
+    /**
+     * Add an annotation to the filter of its index, must be called before the transaction creating it commits
+     * @param index The index the annotation was created in
+     * @param id The ID of the annotation
+     */
+    public void add(final String index, final String id) {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        filters.computeIfAbsent(index, i -> new IndexFilter(config.getExpectedInsertions(), config.getFalsePositiveRate()))
+                .put(id);
+    }
+
+    /**
+     * Drop the filter of an index whose annotations have all been purged
+     * @param index The purged index
+     */
+    public void forget(final String index) {
+        filters.remove(index);
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "annotation-bloom-filters");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(this::refresh,
+                0,
+                config.getRefreshInterval().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (null != refreshExecutor) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void refresh() {
+        try {
+            if (!loaded) {
+                load();
+            } else {
+                addCreatedSince(refreshedUpTo);
+            }
+        } catch (final Exception e) {
+            LOGGER.warn("Failed to refresh the annotation Bloom filters, will retry", e);
+        }
+    }
+
+    /**
+     * Add every existing annotation, a page at a time in primary key order
+     */
+    private void load() {
+        // Taken first, so anything created while the annotations are read is picked up by the next refresh.
+        // Only settled history counts, a create with a lower ID than an unsettled point may not have committed yet.
+        final Timestamp cutoff = SettledHistory.getCutoff(database, changeFeedConfig.getSettleTime().toMilliseconds());
+        refreshedUpTo = Optional.ofNullable(database.select(AnnotationHistory.ID_FIELD)
+                .from(historyTable)
+                .where(AnnotationHistory.INSERT_TIME_FIELD.lessOrEqual(cutoff))
+                .orderBy(AnnotationHistory.ID_FIELD.desc())
+                .limit(1)
+                .fetchOne(AnnotationHistory.ID_FIELD))
+                .orElse(0L);
+
+        long count = 0;
+        Result<Record2<String, String>> page = null;
+        do {
+            final Record2<String, String> last = null != page ? page.get(page.size() - 1) : null;
+            page = database.select(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, Annotation.ID_FIELD)
+                    .from(annotationTable)
+                    .where(null != last
+                            ? DSL.row(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, Annotation.ID_FIELD).gt(last.value1(), last.value2())
+                            : DSL.trueCondition())
+                    .orderBy(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, Annotation.ID_FIELD)
+                    .limit(config.getBatchSize())
+                    .fetch();
+            page.forEach(r -> add(r.value1(), r.value2()));
+            count += page.size();
+        } while (page.size() == config.getBatchSize());
+
+        loaded = true;
+        LOGGER.info("Loaded the Bloom filters of {} indexes with {} annotations", filters.size(), count);
+    }
+
+    /**
+     * Add the annotations created since the given history ID, by this or any other instance of the service.
+     * Everything read is added, but the watermark only moves up to the first create that has not settled, so
+     * a create with a lower ID that commits later is still picked up by the next refresh.
+     * @param fromId The history ID to read from
+     */
+    private void addCreatedSince(final long fromId) {
+        final Timestamp cutoff = SettledHistory.getCutoff(database, changeFeedConfig.getSettleTime().toMilliseconds());
+
+        Result<Record4<Long, String, String, Timestamp>> page;
+        long from = fromId;
+        long settledUpTo = fromId;
+        boolean settled = true;
+        do {
+            page = database.select(AnnotationHistory.ID_FIELD,
+                    QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                    AnnotationHistory.ANNOTATION_ID_FIELD,
+                    AnnotationHistory.INSERT_TIME_FIELD)
+                    .from(historyTable)
+                    .where(AnnotationHistory.ID_FIELD.greaterThan(from))
+                    .and(AnnotationHistory.OPERATION_FIELD.equal(HistoryOperation.CREATE.toString()))
+                    .orderBy(AnnotationHistory.ID_FIELD)
+                    .limit(config.getBatchSize())
+                    .fetch();
+            for (final Record4<Long, String, String, Timestamp> created : page) {
+                add(created.value2(), created.value3());
+                from = created.value1();
+
+                settled = settled && !created.value4().after(cutoff);
+                if (settled) {
+                    settledUpTo = from;
+                }
+            }
+        } while (page.size() == config.getBatchSize());
+
+        refreshedUpTo = Math.max(refreshedUpTo, settledUpTo);
+    }
+}
@@ -0,0 +1,263 @@
+package stroom.annotations.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.ChangeFeedConfig;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.query.jooq.JooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the changes made to an index to its listeners.
+ *
+ * Each subscription follows the settled history of its index from a cursor, the same way a reader of the feed
+ * does, so a change that commits after one with a higher ID is still delivered, as are the changes made by other
+ * instances of the service. Subscriptions are polled every poll interval, and soon after this instance publishes
+ * a change to their index.
+ *
+ * Every subscription is delivered to on a pooled thread, one poll at a time, so a slow listener only holds up
+ * itself. A listener that has nothing delivered to it for the heartbeat interval is sent a heartbeat, which is
+ * also how a listener whose client has gone away is found and dropped.
+ */
+@Singleton
+public class AnnotationChangeBus implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationChangeBus.class);
+
+    /**
+     * Receives changes from the bus. Throwing from any method unsubscribes the listener.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onChange(AnnotationHistory change) throws Exception;
+
+        default void onHeartbeat() throws Exception {
+        }
+
+        /**
+         * @return True once the listener no longer wants changes, it is then unsubscribed
+         */
+        default boolean isClosed() {
+            return false;
+        }
+    }
+
+    /**
+     * Supplies pages of settled history, in ID order, starting after the given history ID.
+     */
+    @FunctionalInterface
+    public interface ChangeSource {
+        List<AnnotationHistory> getChanges(long fromId) throws Exception;
+    }
+
+    private class Subscription {
+        private final String index;
+        private final ChangeSource changeSource;
+        private final Listener listener;
+        private final AtomicBoolean polling = new AtomicBoolean();
+        private long cursor;
+        private long lastDeliveryMillis = System.currentTimeMillis();
+
+        private Subscription(final String index,
+                             final ChangeSource changeSource,
+                             final Listener listener,
+                             final long cursor) {
+            this.index = index;
+            this.changeSource = changeSource;
+            this.listener = listener;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Deliver everything that has settled since the last poll, unless a poll is already running
+         */
+        private void poll() {
+            if (!polling.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                deliveryExecutor.execute(() -> {
+                    try {
+                        deliver();
+                    } catch (final Exception e) {
+                        LOGGER.debug("Annotation change listener for {} failed, unsubscribing it", index, e);
+                        unsubscribe(listener);
+                    } finally {
+                        polling.set(false);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                // Rejected as the bus is stopping
+                polling.set(false);
+            }
+        }
+
+        private void deliver() throws Exception {
+            if (listener.isClosed()) {
+                unsubscribe(listener);
+                return;
+            }
+
+            List<AnnotationHistory> page;
+            do {
+                page = changeSource.getChanges(cursor);
+                for (final AnnotationHistory change : page) {
+                    listener.onChange(change);
+                    cursor = change.getId();
+                    lastDeliveryMillis = System.currentTimeMillis();
+                }
+            } while (!page.isEmpty());
+
+            if (System.currentTimeMillis() - lastDeliveryMillis >= config.getHeartbeatInterval().toMilliseconds()) {
+                listener.onHeartbeat();
+                lastDeliveryMillis = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private final ChangeFeedConfig config;
+
+    private final DSLContext database;
+
+    private final Table<Record> historyTable;
+
+    private final Map<Listener, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * The indexes with a poll already scheduled for a published change
+     */
+    private final Set<String> pendingIndexes = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "annotation-change-poll");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutorService deliveryExecutor;
+
+    @Inject
+    public AnnotationChangeBus(final ChangeFeedConfig config,
+                               final DSLContext database,
+                               final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.database = database;
+        this.historyTable = Optional.ofNullable(AnnotationHistory.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation History Class must be annotated with JooqEntity"));
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.deliveryExecutor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "annotation-change-delivery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        metricRegistry.register(MetricRegistry.name(AnnotationChangeBus.class, "subscriptions"),
+                (Gauge<Integer>) subscriptions::size);
+    }
+
+    /**
+     * Subscribe to the changes made to a single index, starting with any history after the given ID.
+     *
+     * @param index The index to receive changes for
+     * @param lastEventId The ID of the last history point the listener has seen, null to only receive the changes
+     *                    that have not settled yet and those made from now on
+     * @param changeSource Where to read the settled history of the index from
+     * @param listener The listener to call with each change
+     */
+    public void subscribe(final String index,
+                          final Long lastEventId,
+                          final ChangeSource changeSource,
+                          final Listener listener) {
+        final long cursor = Optional.ofNullable(lastEventId).orElseGet(() -> getLatestSettledId(index));
+        final Subscription subscription = new Subscription(index, changeSource, listener, cursor);
+
+        subscriptions.put(listener, subscription);
+        subscription.poll();
+    }
+
+    public void unsubscribe(final Listener listener) {
+        subscriptions.remove(listener);
+    }
+
+    /**
+     * Tell the bus about a change, so the subscriptions to its index are polled once it has settled.
+     * Should only be called once the change has been committed.
+     * @param change The history point that was written for the change
+     */
+    public void publish(final AnnotationHistory change) {
+        final String index = change.getDataSourceUuid();
+        if (!pendingIndexes.add(index)) {
+            return;
+        }
+
+        try {
+            pollExecutor.schedule(() -> {
+                pendingIndexes.remove(index);
+                subscriptions.values().stream()
+                        .filter(subscription -> subscription.index.equals(index))
+                        .forEach(Subscription::poll);
+            }, config.getSettleTime().toMilliseconds(), TimeUnit.MILLISECONDS);
+        } catch (final RuntimeException e) {
+            // Rejected as the bus is stopping
+            pendingIndexes.remove(index);
+        }
+    }
+
+    /**
+     * @return The ID of the latest settled history point of the index. Starting after the latest of all would skip
+     * any lower ID that commits later.
+     */
+    private long getLatestSettledId(final String index) {
+        final Timestamp cutoff = SettledHistory.getCutoff(database, config.getSettleTime().toMilliseconds());
+        return Optional.ofNullable(database.select(AnnotationHistory.ID_FIELD)
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.INSERT_TIME_FIELD.lessOrEqual(cutoff))
+                .orderBy(AnnotationHistory.ID_FIELD.desc())
+                .limit(1)
+                .fetchOne(AnnotationHistory.ID_FIELD))
+                .orElse(0L);
+    }
+
+    @Override
+    public void start() {
+        pollExecutor.scheduleWithFixedDelay(() -> subscriptions.values().forEach(Subscription::poll),
+                config.getPollInterval().toMilliseconds(),
+                config.getPollInterval().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        pollExecutor.shutdown();
+        deliveryExecutor.shutdown();
+        pollExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        deliveryExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
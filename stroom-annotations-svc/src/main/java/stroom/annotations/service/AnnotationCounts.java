@@ -0,0 +1,121 @@
+package stroom.annotations.service;
+
+import org.jooq.Configuration;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import stroom.annotations.model.Annotation;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * Maintains the count of annotations in each index by status and assignee.
+ *
+ * Every change to the annotation table must be matched by a change to the counts in the same transaction.
+ * The counts then answer grouped count queries with one row per group, rather than a scan of the index.
+ *
+ * A transaction that changes more than one group always locks their rows in the same order, by status and then by
+ * assignee, so two transactions moving annotations between the same groups in opposite directions cannot deadlock.
+ * The assignee is compared without case, as the table's collation does.
+ */
+public final class AnnotationCounts {
+    public static final Table<Record> COUNT_TABLE = table("annotation_count");
+    public static final Field<Long> COUNT_FIELD = field("annotationCount", Long.class);
+
+    /**
+     * The order the rows of a transaction are locked in, groups are lists of status then assignee
+     */
+    private static final Comparator<List<String>> GROUP_ORDER = Comparator
+            .<List<String>, String>comparing(group -> group.get(0))
+            .thenComparing(group -> group.get(1), String.CASE_INSENSITIVE_ORDER);
+
+    private AnnotationCounts() {
+    }
+
+    /**
+     * Adjust the count of one group of annotations
+     * @param jooqConfiguration The transaction that changed the annotations
+     * @param index The index the annotations belong to
+     * @param status The status of the annotations
+     * @param assignTo The assignee of the annotations, may be null
+     * @param delta The number of annotations added to the group, negative if they were removed
+     */
+    public static void add(final Configuration jooqConfiguration,
+                           final String index,
+                           final String status,
+                           final String assignTo,
+                           final long delta) {
+        DSL.using(jooqConfiguration)
+                .insertInto(COUNT_TABLE)
+                .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                        Annotation.STATUS_FIELD,
+                        Annotation.ASSIGN_TO_FIELD,
+                        COUNT_FIELD)
+                .values(index, status, getAssignToKey(assignTo), delta)
+                .onDuplicateKeyUpdate()
+                .set(COUNT_FIELD, COUNT_FIELD.plus(delta))
+                .execute();
+    }
+
+    /**
+     * Move an annotation from one group to another, does nothing if the group has not changed
+     */
+    public static void move(final Configuration jooqConfiguration,
+                            final String index,
+                            final String fromStatus,
+                            final String fromAssignTo,
+                            final String toStatus,
+                            final String toAssignTo) {
+        move(jooqConfiguration, index, fromStatus, fromAssignTo, toStatus, toAssignTo, 1);
+    }
+
+    /**
+     * Move a number of annotations from one group to another, does nothing if the group has not changed
+     */
+    public static void move(final Configuration jooqConfiguration,
+                            final String index,
+                            final String fromStatus,
+                            final String fromAssignTo,
+                            final String toStatus,
+                            final String toAssignTo,
+                            final long count) {
+        final Map<List<String>, Long> deltas = new TreeMap<>(GROUP_ORDER);
+        deltas.merge(Arrays.asList(fromStatus, getAssignToKey(fromAssignTo)), -count, Long::sum);
+        deltas.merge(Arrays.asList(toStatus, getAssignToKey(toAssignTo)), count, Long::sum);
+        addAll(jooqConfiguration, index, deltas);
+    }
+
+    /**
+     * Adjust the counts of several groups of annotations, locking their rows in order
+     * @param jooqConfiguration The transaction that changed the annotations
+     * @param index The index the annotations belong to
+     * @param deltas The change to the count of each group, keyed by status then assignee, which may be null
+     */
+    public static void addAll(final Configuration jooqConfiguration,
+                              final String index,
+                              final Map<List<String>, Long> deltas) {
+        final Map<List<String>, Long> ordered = new TreeMap<>(GROUP_ORDER);
+        deltas.forEach((group, delta) ->
+                ordered.merge(Arrays.asList(group.get(0), getAssignToKey(group.get(1))), delta, Long::sum));
+
+        ordered.forEach((group, delta) -> {
+            if (delta != 0) {
+                add(jooqConfiguration, index, group.get(0), group.get(1), delta);
+            }
+        });
+    }
+
+    private static String getAssignToKey(final String assignTo) {
+        return Optional.ofNullable(assignTo).orElse("");
+    }
+}
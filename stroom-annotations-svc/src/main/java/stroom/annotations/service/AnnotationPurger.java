@@ -0,0 +1,267 @@
+package stroom.annotations.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.config.PurgeConfig;
+import stroom.annotations.kafka.AnnotationsKafkaPublisher;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.jooq.JooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * Deletes the annotations, history and counts of indexes whose document has been deleted.
+ *
+ * Deleting the document only queues the index in the purge table, so it returns straight away. A background
+ * job then works through the queue, deleting a bounded chunk of rows per transaction with a pause between
+ * chunks, so no statement holds its locks for long. As the queue is in the database, a purge that is cut short
+ * by a restart carries on where it left off.
+ *
+ * An index is queued before its document is deleted, so only the indexes whose document no longer exists are
+ * purged. One whose delete did not go through stays queued until its document is deleted, or the queued purge is
+ * cancelled.
+ */
+@Singleton
+public class AnnotationPurger implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationPurger.class);
+
+    public static final Table<Record> PURGE_TABLE = table("annotation_purge");
+    public static final Field<ULong> REQUEST_TIME_FIELD = field("requestTime", ULong.class);
+
+    /**
+     * The index of a queued purge, qualified so it can be compared with the columns of the doc ref table
+     */
+    private static final Field<String> PURGE_INDEX_FIELD =
+            field(DSL.name("annotation_purge", QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.getName()), String.class);
+
+    /**
+     * Only one instance of the service purges at a time
+     */
+    private static final String PURGE_LOCK_NAME = "annotation_purge";
+
+    private final PurgeConfig config;
+
+    private final DSLContext database;
+
+    private final AnnotationBloomFilters bloomFilters;
+
+    private final SearchResultCache searchResultCache;
+
+    private final Table<Record> annotationTable;
+    private final Table<Record> historyTable;
+    private final Table<Record> docRefTable;
+
+    private ScheduledExecutorService purgeExecutor;
+
+    private volatile boolean running;
+
+    private volatile int pendingIndexes;
+
+    private final Meter annotationsPurged;
+    private final Meter historyPurged;
+    private final Meter indexesPurged;
+
+    @Inject
+    public AnnotationPurger(final PurgeConfig config,
+                            final DSLContext database,
+                            final AnnotationBloomFilters bloomFilters,
+                            final SearchResultCache searchResultCache,
+                            final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.database = database;
+        this.bloomFilters = bloomFilters;
+        this.searchResultCache = searchResultCache;
+        this.annotationTable = Optional.ofNullable(Annotation.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation Class must be annotated with JooqEntity"));
+        this.historyTable = Optional.ofNullable(AnnotationHistory.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation History Class must be annotated with JooqEntity"));
+        this.docRefTable = Optional.ofNullable(AnnotationsDocRefEntity.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Doc Ref Class must be annotated with JooqEntity"));
+
+        this.annotationsPurged = metricRegistry.meter(MetricRegistry.name(AnnotationPurger.class, "annotations"));
+        this.historyPurged = metricRegistry.meter(MetricRegistry.name(AnnotationPurger.class, "history"));
+        this.indexesPurged = metricRegistry.meter(MetricRegistry.name(AnnotationPurger.class, "indexes"));
+        metricRegistry.register(MetricRegistry.name(AnnotationPurger.class, "pendingIndexes"),
+                (Gauge<Integer>) () -> pendingIndexes);
+    }
+
+    /**
+     * Queue the annotations of an index for purging, should be called before its document is deleted
+     * @param index The UUID of the index being deleted
+     */
+    public void schedule(final String index) {
+        database.insertInto(PURGE_TABLE)
+                .columns(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD, REQUEST_TIME_FIELD)
+                .values(index, ULong.valueOf(System.currentTimeMillis()))
+                .onDuplicateKeyIgnore()
+                .execute();
+
+        LOGGER.info("Queued the annotations of index {} for purging once its document is deleted", index);
+    }
+
+    /**
+     * Remove a queued purge, for an index whose document could not be deleted
+     * @param index The UUID of the index that is still in use
+     */
+    public void cancel(final String index) {
+        database.deleteFrom(PURGE_TABLE)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .execute();
+
+        LOGGER.info("Cancelled the purge of index {}, its document was not deleted", index);
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        running = true;
+        purgeExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "annotation-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purgeExecutor.scheduleWithFixedDelay(this::purge,
+                config.getInterval().toMilliseconds(),
+                config.getInterval().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        if (null != purgeExecutor) {
+            purgeExecutor.shutdown();
+            purgeExecutor.awaitTermination(config.getInterval().toMilliseconds() * 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Purge chunks until the queue is empty, another instance holds the lock or the service is stopping.
+     * Any failure leaves the rest of the queue for the next run.
+     */
+    private void purge() {
+        try {
+            pendingIndexes = database.fetchCount(PURGE_TABLE);
+
+            while (running && database.transactionResult(this::purgeChunk)) {
+                Thread.sleep(config.getChunkDelay().toMilliseconds());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+            LOGGER.warn("Failed to purge the annotations of deleted indexes, will retry", e);
+        }
+    }
+
+    /**
+     * @return True if a chunk was purged and there may be more to do
+     */
+    private boolean purgeChunk(final Configuration jooqConfiguration) {
+        final DSLContext context = DSL.using(jooqConfiguration);
+
+        final Integer locked = context.select(field("get_lock({0}, 0)", Integer.class, DSL.val(PURGE_LOCK_NAME)))
+                .fetchOne(0, Integer.class);
+        if (!Integer.valueOf(1).equals(locked)) {
+            LOGGER.debug("Another instance is purging deleted indexes");
+            return false;
+        }
+
+        try {
+            final String index = context.select(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD)
+                    .from(PURGE_TABLE)
+                    .whereNotExists(context.selectOne()
+                            .from(docRefTable)
+                            .where(DocRefJooqEntity.UUID_FIELD.equal(PURGE_INDEX_FIELD)))
+                    .orderBy(REQUEST_TIME_FIELD)
+                    .limit(1)
+                    .fetchOne(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD);
+            if (null == index) {
+                return false;
+            }
+
+            // The annotations go first, so that nothing half purged can be read
+            final List<String> annotationIds = context.select(Annotation.ID_FIELD)
+                    .from(annotationTable)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .limit(config.getChunkSize())
+                    .fetch(Annotation.ID_FIELD);
+            if (!annotationIds.isEmpty()) {
+                context.deleteFrom(annotationTable)
+                        .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                        .and(Annotation.ID_FIELD.in(annotationIds))
+                        .execute();
+                annotationsPurged.mark(annotationIds.size());
+                return true;
+            }
+
+            final List<Long> historyIds = context.select(AnnotationHistory.ID_FIELD)
+                    .from(historyTable)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .orderBy(AnnotationHistory.ID_FIELD)
+                    .limit(config.getChunkSize())
+                    .fetch(AnnotationHistory.ID_FIELD);
+            if (!historyIds.isEmpty()) {
+                context.deleteFrom(AnnotationsKafkaPublisher.OUTBOX_TABLE)
+                        .where(AnnotationsKafkaPublisher.HISTORY_ID_FIELD.in(historyIds))
+                        .execute();
+                context.deleteFrom(historyTable)
+                        .where(AnnotationHistory.ID_FIELD.in(historyIds))
+                        .execute();
+                historyPurged.mark(historyIds.size());
+                return true;
+            }
+
+            context.deleteFrom(AnnotationCounts.COUNT_TABLE)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .execute();
+            context.deleteFrom(PURGE_TABLE)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .execute();
+
+            bloomFilters.forget(index);
+            searchResultCache.invalidate(index);
+            indexesPurged.mark();
+            pendingIndexes = Math.max(0, pendingIndexes - 1);
+            LOGGER.info("Purged the annotations of deleted index {}", index);
+
+            return true;
+        } finally {
+            context.select(field("release_lock({0})", Integer.class, DSL.val(PURGE_LOCK_NAME)))
+                    .fetchOne();
+        }
+    }
+}
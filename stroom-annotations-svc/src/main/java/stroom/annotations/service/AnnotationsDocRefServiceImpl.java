@@ -1,20 +1,70 @@
 package stroom.annotations.service;
 
 import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
 import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.query.audit.security.ServiceUser;
+import stroom.query.audit.service.QueryApiException;
+import stroom.query.jooq.DocRefJooqEntity;
 import stroom.query.jooq.DocRefServiceJooqImpl;
+import stroom.query.jooq.JooqEntity;
 
 import javax.inject.Inject;
+import java.util.Optional;
 
 public class AnnotationsDocRefServiceImpl
         extends DocRefServiceJooqImpl<AnnotationsDocRefEntity> {
 
+    private final DSLContext database;
+
+    private final AnnotationPurger purger;
+
+    private final Table<Record> docRefTable;
+
     @Inject
-    public AnnotationsDocRefServiceImpl(final DSLContext jooqConfig) {
+    public AnnotationsDocRefServiceImpl(final DSLContext jooqConfig,
+                                        final AnnotationPurger purger) {
         super(AnnotationsDocRefEntity.TYPE,
                 dataMap -> new AnnotationsDocRefEntity.Builder(),
                 (docRefEntity, consumer) -> { /* nothing to see here */ },
                 AnnotationsDocRefEntity.class,
                 jooqConfig);
+        this.database = jooqConfig;
+        this.purger = purger;
+        this.docRefTable = Optional.ofNullable(AnnotationsDocRefEntity.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Doc Ref Class must be annotated with JooqEntity"));
+    }
+
+    /**
+     * The document is deleted as the bundle would, and its annotations are queued for the purger to delete in the
+     * background. The purge is queued first, so the annotations of a deleted document are never left behind without
+     * a purge to delete them, and the purger leaves queued indexes alone for as long as their document exists.
+     */
+    @Override
+    public Optional<Boolean> deleteDocument(final ServiceUser user,
+                                            final String uuid) throws QueryApiException {
+        if (!database.fetchExists(docRefTable, DocRefJooqEntity.UUID_FIELD.equal(uuid))) {
+            return Optional.empty();
+        }
+
+        purger.schedule(uuid);
+
+        final Optional<Boolean> deleted;
+        try {
+            deleted = super.deleteDocument(user, uuid);
+        } catch (final QueryApiException | RuntimeException e) {
+            purger.cancel(uuid);
+            throw e;
+        }
+
+        if (!deleted.orElse(Boolean.FALSE)) {
+            purger.cancel(uuid);
+        }
+
+        return deleted;
     }
 }
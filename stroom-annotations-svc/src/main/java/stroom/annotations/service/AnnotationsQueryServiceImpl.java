@@ -0,0 +1,533 @@
+package stroom.annotations.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.SelectQuery;
+import org.jooq.SortField;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.annotations.model.Annotation;
+import stroom.annotations.model.AnnotationsDocRefEntity;
+import stroom.datasource.api.v2.DataSource;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.FlatResult;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.QueryKey;
+import stroom.query.api.v2.Result;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableResult;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.audit.model.DocRefEntity;
+import stroom.query.audit.model.IsDataSourceField;
+import stroom.query.audit.security.ServiceUser;
+import stroom.query.audit.service.QueryApiException;
+import stroom.query.audit.service.QueryService;
+import stroom.query.jooq.DocRefJooqEntity;
+import stroom.query.jooq.JooqEntity;
+import stroom.query.jooq.QueryableJooqEntity;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Query API search over annotations that does all of its work in the database.
+ *
+ * Each result request becomes a single SELECT, with the expression as the WHERE clause, the sorted fields as the
+ * ORDER BY and the requested range as the LIMIT, so only the requested window of rows is ever read. The total
+ * number of matches is worked out from the window when it is the last one, and otherwise counted by a separate
+ * COUNT(*) on the same condition, which can be answered from an index without reading the rows.
+ *
+ * Queries that only count annotations grouped by status and assignee are answered from the pre-aggregated
+ * {@link AnnotationCounts}, in time proportional to the number of groups rather than the number of annotations.
+ *
+ * Results are kept in the {@link SearchResultCache}, keyed on everything in the request that affects them, so
+ * dashboards that poll the same search are only served from the database once per change to the index. Cached
+ * results are shared by every user allowed to search the index, so they are always read from the primary.
+ *
+ * Searches that cannot be expressed in SQL, such as dictionary terms or fields with no column, are passed on to the
+ * query service the bundle would otherwise have used, which also answers for the query keys of those searches.
+ *
+ * Searches are stateless, so the query key is only remembered for long enough to authorise its destruction.
+ */
+@Singleton
+public class AnnotationsQueryServiceImpl implements QueryService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationsQueryServiceImpl.class);
+
+    /**
+     * Names the binding of the query service of the bundle, which this one replaces
+     */
+    public static final String BUNDLE_QUERY_SERVICE = "bundleQueryService";
+
+    /**
+     * The number of rows returned when a result request does not give a range
+     */
+    public static final long DEFAULT_RESULT_LENGTH = 100;
+
+    private static final long QUERY_KEY_EXPIRY_MINUTES = 10;
+
+    private static final Pattern FIELD_EXPRESSION = Pattern.compile("^\\$\\{(.+)}$");
+
+    private static final String IN_DELIMITER = Pattern.quote(ExpressionTerm.Condition.IN_CONDITION_DELIMITER);
+
+    /**
+     * Escapes the wildcards of LIKE in values that are matched literally
+     */
+    private static final char LIKE_ESCAPE = '!';
+
+    /**
+     * The expression of a field that counts the annotations in each group
+     */
+    public static final String COUNT_EXPRESSION = "count()";
+
+    private static final Field<Long> COUNT_SUM_FIELD = DSL.sum(AnnotationCounts.COUNT_FIELD).cast(Long.class);
+
+    private static final Set<String> COUNTED_FIELDS = new HashSet<>(Arrays.asList(Annotation.STATUS, Annotation.ASSIGN_TO));
+
+    /**
+     * The internal columns that lead each row of a flat result
+     */
+    private static final List<stroom.query.api.v2.Field> FLAT_RESULT_KEY_FIELDS = Arrays.asList(
+            new stroom.query.api.v2.Field(":ParentKey", null, null, null, null, null),
+            new stroom.query.api.v2.Field(":Key", null, null, null, null, null),
+            new stroom.query.api.v2.Field(":Depth", null, null, null, null, null));
+
+    private static final Map<String, Field<?>> QUERYABLE_FIELDS = new HashMap<>();
+    static {
+        QUERYABLE_FIELDS.put(Annotation.ID, Annotation.ID_FIELD);
+        QUERYABLE_FIELDS.put(Annotation.STATUS, Annotation.STATUS_FIELD);
+        QUERYABLE_FIELDS.put(Annotation.ASSIGN_TO, Annotation.ASSIGN_TO_FIELD);
+        QUERYABLE_FIELDS.put(Annotation.CONTENT, Annotation.CONTENT_FIELD);
+        QUERYABLE_FIELDS.put(DocRefEntity.CREATE_USER, DocRefJooqEntity.CREATE_USER_FIELD);
+        QUERYABLE_FIELDS.put(DocRefEntity.CREATE_TIME, DocRefJooqEntity.CREATE_TIME_FIELD);
+        QUERYABLE_FIELDS.put(DocRefEntity.UPDATE_USER, DocRefJooqEntity.UPDATE_USER_FIELD);
+        QUERYABLE_FIELDS.put(DocRefEntity.UPDATE_TIME, DocRefJooqEntity.UPDATE_TIME_FIELD);
+    }
+
+    private final DatabaseRouter databaseRouter;
+
+    private final QueryService bundleQueryService;
+
+    private final SearchResultCache searchResultCache;
+
+    private final Table<Record> annotationTable;
+
+    private final DataSource dataSource;
+
+    private final Cache<String, DocRef> queryKeys = CacheBuilder.newBuilder()
+            .expireAfterAccess(QUERY_KEY_EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    @Inject
+    public AnnotationsQueryServiceImpl(final DatabaseRouter databaseRouter,
+                                       @Named(BUNDLE_QUERY_SERVICE) final QueryService bundleQueryService,
+                                       final SearchResultCache searchResultCache) {
+        this.databaseRouter = databaseRouter;
+        this.bundleQueryService = bundleQueryService;
+        this.searchResultCache = searchResultCache;
+        this.annotationTable = Optional.ofNullable(Annotation.class.getAnnotation(JooqEntity.class))
+                .map(JooqEntity::tableName)
+                .map(DSL::table)
+                .orElseThrow(() -> new IllegalArgumentException("The Annotation Class must be annotated with JooqEntity"));
+        this.dataSource = new DataSource(Arrays.stream(Annotation.class.getMethods())
+                .map(m -> m.getAnnotation(IsDataSourceField.class))
+                .filter(Objects::nonNull)
+                .map(AnnotationsQueryServiceImpl::getDataSourceField)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public String getType() {
+        return AnnotationsDocRefEntity.TYPE;
+    }
+
+    @Override
+    public Optional<DataSource> getDataSource(final ServiceUser user,
+                                              final DocRef docRef) throws QueryApiException {
+        return Optional.of(dataSource);
+    }
+
+    @Override
+    public Optional<SearchResponse> search(final ServiceUser user,
+                                           final SearchRequest request) throws QueryApiException {
+        final DocRef docRef = request.getQuery().getDataSource();
+        queryKeys.put(request.getKey().getUuid(), docRef);
+
+        try {
+            final ExpressionOperator expression = request.getQuery().getExpression();
+            final Condition condition = QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(docRef.getUuid())
+                    .and(getCondition(expression));
+
+            final DSLContext reader = searchResultCache.isEnabled()
+                    ? databaseRouter.forRead(null)
+                    : databaseRouter.forRead(user);
+
+            final List<Result> results = new ArrayList<>();
+            for (final ResultRequest resultRequest : request.getResultRequests()) {
+                for (final TableSettings tableSettings : resultRequest.getMappings()) {
+                    // The query ID of the table settings changes with every query key, so is left out
+                    final List<Object> cacheKey = Arrays.asList(expression,
+                            tableSettings.getFields(),
+                            resultRequest.getComponentId(),
+                            resultRequest.getResultStyle(),
+                            resultRequest.getRequestedRange());
+                    results.add(searchResultCache.get(docRef.getUuid(), cacheKey, () ->
+                            getResult(reader, condition, isCountQuery(expression, tableSettings), resultRequest, tableSettings)));
+                }
+            }
+
+            return Optional.of(new SearchResponse(null, results, null, true));
+        } catch (final UnsupportedQueryException e) {
+            LOGGER.debug("Passing a search on to the query service of the bundle", e);
+            queryKeys.invalidate(request.getKey().getUuid());
+            return bundleQueryService.search(user, request);
+        } catch (final IllegalArgumentException e) {
+            LOGGER.debug("Invalid annotations query", e);
+            return Optional.of(new SearchResponse(null, null, Collections.singletonList(e.getMessage()), true));
+        }
+    }
+
+    @Override
+    public Boolean destroy(final ServiceUser user,
+                           final QueryKey queryKey) throws QueryApiException {
+        if (null == queryKeys.getIfPresent(queryKey.getUuid())) {
+            return bundleQueryService.destroy(user, queryKey);
+        }
+
+        queryKeys.invalidate(queryKey.getUuid());
+        return true;
+    }
+
+    @Override
+    public Optional<DocRef> getDocRefFromQueryKey(final ServiceUser user,
+                                                  final QueryKey queryKey) throws QueryApiException {
+        final DocRef docRef = queryKeys.getIfPresent(queryKey.getUuid());
+        if (null == docRef) {
+            return bundleQueryService.getDocRefFromQueryKey(user, queryKey);
+        }
+
+        return Optional.of(docRef);
+    }
+
+    private Result getResult(final DSLContext reader,
+                             final Condition condition,
+                             final boolean fromCounts,
+                             final ResultRequest resultRequest,
+                             final TableSettings tableSettings) {
+        final List<stroom.query.api.v2.Field> requestedFields = tableSettings.getFields();
+        final Function<stroom.query.api.v2.Field, Field<?>> toColumn = fromCounts
+                ? AnnotationsQueryServiceImpl::getCountColumn
+                : AnnotationsQueryServiceImpl::getColumn;
+        final List<Field<?>> columns = requestedFields.stream()
+                .map(toColumn)
+                .collect(Collectors.toList());
+        final List<Field<?>> groupBy = requestedFields.stream()
+                .filter(f -> fromCounts && null != f.getGroup())
+                .map(toColumn)
+                .collect(Collectors.toList());
+
+        final List<SortField<?>> orderBy = new ArrayList<>();
+        requestedFields.stream()
+                .filter(f -> null != f.getSort())
+                .sorted(Comparator.comparing(f -> Optional.ofNullable(f.getSort().getOrder()).orElse(0)))
+                .forEach(f -> orderBy.add(Sort.SortDirection.DESCENDING.equals(f.getSort().getDirection())
+                        ? toColumn.apply(f).desc()
+                        : toColumn.apply(f).asc()));
+        // Keeps the pages stable when the sorted fields have equal values
+        if (fromCounts) {
+            groupBy.forEach(g -> orderBy.add(g.asc()));
+        } else {
+            orderBy.add(Annotation.ID_FIELD.asc());
+        }
+
+        final OffsetRange range = resultRequest.getRequestedRange();
+        final long offset = Optional.ofNullable(range).map(OffsetRange::getOffset).orElse(0L);
+        final long length = Optional.ofNullable(range).map(OffsetRange::getLength).orElse(DEFAULT_RESULT_LENGTH);
+
+        final SelectQuery<Record> query = reader.selectQuery();
+        query.addSelect(columns);
+        query.addFrom(fromCounts ? AnnotationCounts.COUNT_TABLE : annotationTable);
+        query.addConditions(condition);
+        if (fromCounts) {
+            if (!groupBy.isEmpty()) {
+                query.addGroupBy(groupBy);
+            }
+            // Groups that have been emptied keep a row with a count of zero
+            query.addHaving(COUNT_SUM_FIELD.greaterThan(0L));
+        }
+        query.addOrderBy(orderBy);
+        query.addLimit((int) offset, (int) length);
+
+        final List<Record> records = query.fetch();
+
+        // A window that is neither full nor past the end is the last one, so the total is known without counting
+        final long total = (records.size() < length && (offset == 0 || !records.isEmpty()))
+                ? offset + records.size()
+                : getTotal(reader, condition, fromCounts, groupBy);
+
+        if (ResultRequest.ResultStyle.TABLE.equals(resultRequest.getResultStyle())) {
+            final List<Row> rows = records.stream()
+                    .map(r -> new Row(null,
+                            columns.stream()
+                                    .map(c -> Optional.ofNullable(getValue(r, c)).map(Object::toString).orElse(null))
+                                    .collect(Collectors.toList()),
+                            0))
+                    .collect(Collectors.toList());
+            return new TableResult(resultRequest.getComponentId(),
+                    rows,
+                    new OffsetRange(offset, (long) rows.size()),
+                    (int) total,
+                    null);
+        }
+
+        final List<stroom.query.api.v2.Field> structure = new ArrayList<>(FLAT_RESULT_KEY_FIELDS);
+        structure.addAll(requestedFields);
+
+        final List<List<Object>> values = records.stream()
+                .map(r -> {
+                    final List<Object> row = new ArrayList<>(Arrays.asList(null, null, 0));
+                    columns.forEach(c -> row.add(getValue(r, c)));
+                    return row;
+                })
+                .collect(Collectors.toList());
+
+        return new FlatResult(resultRequest.getComponentId(), structure, values, total, null);
+    }
+
+    /**
+     * @return The number of rows the query matches across all windows
+     */
+    private long getTotal(final DSLContext reader,
+                          final Condition condition,
+                          final boolean fromCounts,
+                          final List<Field<?>> groupBy) {
+        if (!fromCounts) {
+            return reader.fetchCount(annotationTable, condition);
+        }
+
+        // One row per non-empty group, or a single row for the whole index if it is not grouped
+        final SelectQuery<Record> groups = reader.selectQuery();
+        groups.addSelect(groupBy.isEmpty() ? Collections.singletonList(COUNT_SUM_FIELD) : groupBy);
+        groups.addFrom(AnnotationCounts.COUNT_TABLE);
+        groups.addConditions(condition);
+        if (!groupBy.isEmpty()) {
+            groups.addGroupBy(groupBy);
+        }
+        groups.addHaving(COUNT_SUM_FIELD.greaterThan(0L));
+        return reader.fetchCount(groups);
+    }
+
+    private static Object getValue(final Record record, final Field<?> column) {
+        final Object value = record.get(column);
+        return (value instanceof ULong) ? ((ULong) value).longValue() : value;
+    }
+
+    private static Field<?> getColumn(final stroom.query.api.v2.Field field) {
+        return getQueryableField(getFieldName(field));
+    }
+
+    private static Field<?> getCountColumn(final stroom.query.api.v2.Field field) {
+        return isCountField(field) ? COUNT_SUM_FIELD : getQueryableField(getFieldName(field));
+    }
+
+    private static String getFieldName(final stroom.query.api.v2.Field field) {
+        return Optional.ofNullable(field.getExpression())
+                .map(FIELD_EXPRESSION::matcher)
+                .filter(Matcher::matches)
+                .map(m -> m.group(1))
+                .orElse(field.getName());
+    }
+
+    private static boolean isCountField(final stroom.query.api.v2.Field field) {
+        return COUNT_EXPRESSION.equalsIgnoreCase(Optional.ofNullable(field.getExpression()).orElse("").trim());
+    }
+
+    /**
+     * A query can be answered from the pre-aggregated counts if it only counts annotations, grouped by
+     * and filtered on the status and assignee.
+     */
+    private static boolean isCountQuery(final ExpressionOperator expression,
+                                        final TableSettings tableSettings) {
+        final List<stroom.query.api.v2.Field> fields = Optional.ofNullable(tableSettings.getFields())
+                .orElse(Collections.emptyList());
+
+        return fields.stream().anyMatch(AnnotationsQueryServiceImpl::isCountField)
+                && fields.stream().allMatch(f -> isCountField(f)
+                        || (null != f.getGroup() && COUNTED_FIELDS.contains(getFieldName(f))))
+                && COUNTED_FIELDS.containsAll(getTermFields(expression));
+    }
+
+    private static Set<String> getTermFields(final ExpressionItem item) {
+        final Set<String> termFields = new HashSet<>();
+        if (item instanceof ExpressionOperator) {
+            Optional.ofNullable(((ExpressionOperator) item).getChildren())
+                    .orElse(Collections.emptyList())
+                    .forEach(child -> termFields.addAll(getTermFields(child)));
+        } else if (item instanceof ExpressionTerm) {
+            termFields.add(((ExpressionTerm) item).getField());
+        }
+        return termFields;
+    }
+
+    private static Field<?> getQueryableField(final String name) {
+        return Optional.ofNullable(QUERYABLE_FIELDS.get(name))
+                .orElseThrow(() -> new UnsupportedQueryException("Unknown annotation field " + name));
+    }
+
+    /**
+     * @param item The expression to convert
+     * @return The condition on the annotation table that matches the expression, also used by bulk updates
+     * @throws UnsupportedQueryException If the expression uses an unknown field or unsupported condition
+     * @throws IllegalArgumentException If the expression has a value that is not valid for its field
+     */
+    static Condition getCondition(final ExpressionItem item) {
+        if (null == item || !item.enabled()) {
+            return DSL.trueCondition();
+        }
+
+        if (item instanceof ExpressionOperator) {
+            final ExpressionOperator operator = (ExpressionOperator) item;
+            final List<Condition> children = Optional.ofNullable(operator.getChildren())
+                    .orElse(Collections.emptyList())
+                    .stream()
+                    .filter(ExpressionItem::enabled)
+                    .map(AnnotationsQueryServiceImpl::getCondition)
+                    .collect(Collectors.toList());
+
+            if (children.isEmpty()) {
+                return DSL.trueCondition();
+            }
+
+            switch (operator.getOp()) {
+                case OR:
+                    return DSL.or(children);
+                case NOT:
+                    return DSL.not(DSL.and(children));
+                default:
+                    return DSL.and(children);
+            }
+        }
+
+        return getCondition((ExpressionTerm) item);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Condition getCondition(final ExpressionTerm term) {
+        final Field<Object> field = (Field<Object>) getQueryableField(term.getField());
+        final String value = Optional.ofNullable(term.getValue()).orElse("");
+
+        switch (term.getCondition()) {
+            case EQUALS:
+                if (value.contains("*")) {
+                    return field.cast(String.class).like(escapeLike(value).replace("*", "%"), LIKE_ESCAPE);
+                }
+                return field.equal(getValue(field, value));
+            case CONTAINS:
+                return field.cast(String.class).like("%" + escapeLike(value) + "%", LIKE_ESCAPE);
+            case GREATER_THAN:
+                return field.greaterThan(getValue(field, value));
+            case GREATER_THAN_OR_EQUAL_TO:
+                return field.greaterOrEqual(getValue(field, value));
+            case LESS_THAN:
+                return field.lessThan(getValue(field, value));
+            case LESS_THAN_OR_EQUAL_TO:
+                return field.lessOrEqual(getValue(field, value));
+            case BETWEEN: {
+                final String[] bounds = value.split(IN_DELIMITER);
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("Between needs two values for " + term.getField());
+                }
+                return field.between(getValue(field, bounds[0].trim()), getValue(field, bounds[1].trim()));
+            }
+            case IN:
+                return field.in(Arrays.stream(value.split(IN_DELIMITER))
+                        .map(String::trim)
+                        .map(v -> getValue(field, v))
+                        .collect(Collectors.toList()));
+            default:
+                throw new UnsupportedQueryException(String.format("Condition %s is not supported on annotations",
+                        term.getCondition()));
+        }
+    }
+
+    /**
+     * @return The value with the wildcards of LIKE escaped, so they only match themselves
+     */
+    private static String escapeLike(final String value) {
+        return value.replace(String.valueOf(LIKE_ESCAPE), LIKE_ESCAPE + String.valueOf(LIKE_ESCAPE))
+                .replace("%", LIKE_ESCAPE + "%")
+                .replace("_", LIKE_ESCAPE + "_");
+    }
+
+    /**
+     * Time fields are stored as epoch milliseconds, but may be queried with either milliseconds or an ISO-8601 date.
+     */
+    private static Object getValue(final Field<?> field, final String value) {
+        if (!ULong.class.equals(field.getType())) {
+            return value;
+        }
+
+        try {
+            return ULong.valueOf(Long.parseLong(value));
+        } catch (final NumberFormatException e) {
+            try {
+                return ULong.valueOf(Instant.parse(value).toEpochMilli());
+            } catch (final DateTimeParseException dateException) {
+                throw new IllegalArgumentException(String.format("%s is not a valid time for %s",
+                        value, field.getName()), dateException);
+            }
+        }
+    }
+
+    /**
+     * Thrown for a search that cannot be expressed in SQL, rather than one that is not valid. It is still an illegal
+     * argument to a bulk update, which has no other way of selecting annotations.
+     */
+    public static class UnsupportedQueryException extends IllegalArgumentException {
+        public UnsupportedQueryException(final String message) {
+            super(message);
+        }
+    }
+
+    private static DataSourceField getDataSourceField(final IsDataSourceField isDataSourceField) {
+        try {
+            return isDataSourceField.fieldSupplier().newInstance().get();
+        } catch (final InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Could not create the data source field", e);
+        }
+    }
+}
@@ -2,10 +2,14 @@ package stroom.annotations.service;
 
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.BulkUpdateDTO;
+import stroom.annotations.model.Status;
 import stroom.query.audit.security.ServiceUser;
 import stroom.query.audit.service.QueryApiException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface AnnotationsService {
@@ -19,18 +23,67 @@ public interface AnnotationsService {
                              String index,
                              String id) throws QueryApiException;
 
+    Map<String, Status> getStatuses(ServiceUser user,
+                                    String index,
+                                    Collection<String> ids) throws QueryApiException;
+
     Optional<List<AnnotationHistory>> getHistory(ServiceUser user,
                                                  String index,
                                                  String id) throws QueryApiException;
 
+    /**
+     * Reads a page of the history of an index in ID order, for a reader following it with the last ID seen as a cursor.
+     *
+     * IDs are taken when history is written but become visible when it commits, so a point may commit after one with
+     * a higher ID. To keep a cursor from passing over such a point, the page stops short of any point that was
+     * inserted within the change feed settle time. Changes therefore reach the feed up to that long after they commit.
+     *
+     * @param user The user reading the changes
+     * @param index The UUID of the index
+     * @param fromId The ID of the last change already seen, null to start from the beginning
+     * @param limit The most changes to return, at least 1, null for the default page size
+     * @return The settled changes after the cursor, in ID order
+     */
+    List<AnnotationHistory> getChanges(ServiceUser user,
+                                       String index,
+                                       Long fromId,
+                                       Integer limit) throws QueryApiException;
+
+    default Optional<Annotation> create(ServiceUser user,
+                                        String index,
+                                        String id) throws QueryApiException {
+        return create(user, index, id, null);
+    }
+
+    /**
+     * @param initialState The content, assignee and status to create the annotation with, null for the defaults
+     */
     Optional<Annotation> create(ServiceUser user,
                                 String index,
-                                String id) throws QueryApiException;
+                                String id,
+                                Annotation initialState) throws QueryApiException;
+
+    /**
+     * Create the annotation with the given state, or update it to that state if it already exists
+     */
+    Optional<Annotation> upsert(ServiceUser user,
+                                String index,
+                                String id,
+                                Annotation annotation) throws QueryApiException;
 
     Optional<Annotation> update(ServiceUser user,
                                 String index,
                                 String id, Annotation annotation) throws QueryApiException;
 
+    /**
+     * Move every annotation selected by the update to its status and assignee
+     * @return The number of annotations that were changed
+     * @throws IllegalArgumentException If the update selects nothing, changes nothing or has an invalid expression
+     */
+    int updateAll(ServiceUser user,
+                  String index,
+                  BulkUpdateDTO update) throws QueryApiException;
+
     Optional<Boolean> remove(ServiceUser user,
                              String index,
                              String id) throws QueryApiException;
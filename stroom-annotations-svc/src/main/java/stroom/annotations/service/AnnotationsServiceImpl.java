@@ -1,16 +1,23 @@
 package stroom.annotations.service;
 
+import org.jooq.Condition;
 import org.jooq.Configuration;
 import org.jooq.DSLContext;
 import org.jooq.Record;
 import org.jooq.Table;
+import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
 import org.jooq.types.ULong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import stroom.annotations.config.ChangeFeedConfig;
+import stroom.annotations.config.HistoryCoalescingConfig;
+import stroom.annotations.kafka.AnnotationsKafkaPublisher;
 import stroom.annotations.model.Annotation;
 import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.BulkUpdateDTO;
 import stroom.annotations.model.HistoryOperation;
+import stroom.annotations.model.Status;
 import stroom.query.audit.security.ServiceUser;
 import stroom.query.audit.service.QueryApiException;
 import stroom.query.jooq.DocRefJooqEntity;
@@ -18,26 +25,105 @@ import stroom.query.jooq.JooqEntity;
 import stroom.query.jooq.QueryableJooqEntity;
 
 import javax.inject.Inject;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static org.jooq.impl.DSL.or;
 
+/**
+ * Each read is a single SELECT, so reads run in auto-commit mode rather than opening a transaction, which
+ * saves the BEGIN and COMMIT round trips. Writes run in a transaction, as they write the history point and
+ * outbox entry along with the annotation. An update that would leave the annotation as it is writes nothing,
+ * so re-saving an unchanged annotation does not add to its history.
+ *
+ * Searches and gets are routed by the {@link DatabaseRouter}, so may be served by a read replica. The change
+ * feed always reads the primary, as it must not skip history that has not reached the replica yet.
+ */
 public class AnnotationsServiceImpl implements AnnotationsService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationsServiceImpl.class);
 
     private final DSLContext database;
 
+    private final AnnotationChangeBus changeBus;
+
+    private final AnnotationsKafkaPublisher kafkaPublisher;
+
+    private final DatabaseRouter databaseRouter;
+
+    private final SearchResultCache searchResultCache;
+
+    private final AnnotationBloomFilters bloomFilters;
+
+    private final HistoryCoalescingConfig historyCoalescingConfig;
+
+    private final HistoryContentCompressor historyContentCompressor;
+
+    private final ChangeFeedConfig changeFeedConfig;
+
     private final Table<Record> annotationTable;
     private final Table<Record> historyTable;
 
     public static final int SEARCH_PAGE_LIMIT = 10;
 
+    public static final int FEED_PAGE_LIMIT = 1000;
+
+    public static final int MAX_FEED_PAGE_LIMIT = 10000;
+
+    public static final int MAX_EXISTS_IDS = 100000;
+
+    public static final int EXISTS_CHUNK_SIZE = 1000;
+
+    /**
+     * Bulk updates are committed in chunks of this many annotations, so no transaction holds its locks for long
+     */
+    public static final int BULK_UPDATE_CHUNK_SIZE = 500;
+
+    /**
+     * Concurrent upserts of an annotation that has only just been created can still deadlock, as each upgrades
+     * the shared lock its failed insert left on the row, so the loser is retried
+     */
+    private static final int MAX_UPSERT_ATTEMPTS = 3;
+
+    private static final int DUPLICATE_KEY_ERROR = 1062;
+    private static final int DEADLOCK_ERROR = 1213;
+
+    private static final String UNCHANGED_FIELD = "unchanged";
+
+    /**
+     * Covers the existence check, so it is answered from the index without reading the annotation rows
+     */
+    private static final String STATUS_INDEX = "annotation_status_idx";
+
     @Inject
-    public AnnotationsServiceImpl(final DSLContext jooqConfig) {
+    public AnnotationsServiceImpl(final DSLContext jooqConfig,
+                                  final AnnotationChangeBus changeBus,
+                                  final AnnotationsKafkaPublisher kafkaPublisher,
+                                  final DatabaseRouter databaseRouter,
+                                  final SearchResultCache searchResultCache,
+                                  final AnnotationBloomFilters bloomFilters,
+                                  final HistoryCoalescingConfig historyCoalescingConfig,
+                                  final HistoryContentCompressor historyContentCompressor,
+                                  final ChangeFeedConfig changeFeedConfig) {
         this.database = jooqConfig;
+        this.changeBus = changeBus;
+        this.kafkaPublisher = kafkaPublisher;
+        this.databaseRouter = databaseRouter;
+        this.searchResultCache = searchResultCache;
+        this.bloomFilters = bloomFilters;
+        this.historyCoalescingConfig = historyCoalescingConfig;
+        this.historyContentCompressor = historyContentCompressor;
+        this.changeFeedConfig = changeFeedConfig;
         this.annotationTable = Optional.ofNullable(Annotation.class.getAnnotation(JooqEntity.class))
                 .map(JooqEntity::tableName)
                 .map(DSL::table)
@@ -53,62 +139,114 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                                    final String index,
                                    final String q,
                                    final Integer seekPosition) {
-        return database.transactionResult(configuration -> {
-            LOGGER.info(String.format("Searching the annotations for %s, pagination information (position=%d)",
-                    q, seekPosition));
+        LOGGER.info(String.format("Searching the annotations for %s, pagination information (position=%d)",
+                q, seekPosition));
 
-            final String likeTerm = String.format("%%%s%%", q);
+        final String likeTerm = String.format("%%%s%%", q);
 
-            return DSL.using(configuration)
-                    .select()
-                    .from(annotationTable)
-                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
-                    .and(or(
-                            Annotation.ID_FIELD.like(likeTerm),
-                            Annotation.CONTENT_FIELD.like(likeTerm),
-                            Annotation.ASSIGN_TO_FIELD.like(likeTerm)
-                    ))
-                    .limit(SEARCH_PAGE_LIMIT)
-                    .offset((seekPosition != null) ? seekPosition : 0)
-                    .fetch()
-                    .into(Annotation.class);
-        });
+        return databaseRouter.forRead(user).select()
+                .from(annotationTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(or(
+                        Annotation.ID_FIELD.like(likeTerm),
+                        Annotation.CONTENT_FIELD.like(likeTerm),
+                        Annotation.ASSIGN_TO_FIELD.like(likeTerm)
+                ))
+                .limit(SEARCH_PAGE_LIMIT)
+                .offset((seekPosition != null) ? seekPosition : 0)
+                .fetch()
+                .into(Annotation.class);
     }
 
     @Override
     public Optional<Annotation> get(final ServiceUser user,
                                     final String index,
                                     final String id) {
-        return database.transactionResult(configuration -> {
-            final Annotation result = DSL.using(configuration)
-                    .select()
-                    .from(annotationTable)
+        if (!bloomFilters.mightContain(index, id)) {
+            return Optional.empty();
+        }
+
+        final Annotation result = databaseRouter.forRead(user).select()
+                .from(annotationTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(Annotation.ID_FIELD.equal(id))
+                .fetchOneInto(Annotation.class);
+        if (null == result) {
+            bloomFilters.falsePositive();
+        }
+        return Optional.ofNullable(result);
+    }
+
+    @Override
+    public Map<String, Status> getStatuses(final ServiceUser user,
+                                           final String index,
+                                           final Collection<String> ids) {
+        final List<String> candidates = ids.stream()
+                .distinct()
+                .filter(id -> bloomFilters.mightContain(index, id))
+                .collect(Collectors.toList());
+
+        final DSLContext reader = databaseRouter.forRead(user);
+        final Map<String, Status> statuses = new HashMap<>();
+        for (int from = 0; from < candidates.size(); from += EXISTS_CHUNK_SIZE) {
+            final List<String> chunk = candidates.subList(from, Math.min(from + EXISTS_CHUNK_SIZE, candidates.size()));
+            reader.select(Annotation.ID_FIELD, Annotation.STATUS_FIELD)
+                    .from(annotationTable.useIndex(STATUS_INDEX))
                     .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
-                    .and(Annotation.ID_FIELD.equal(id))
-                    .fetchOneInto(Annotation.class);
-            return Optional.ofNullable(result);
-        });
+                    .and(Annotation.ID_FIELD.in(chunk))
+                    .fetch()
+                    .forEach(r -> statuses.put(r.value1(), Status.valueOf(r.value2())));
+        }
+
+        return statuses;
     }
 
     @Override
     public Optional<List<AnnotationHistory>> getHistory(final ServiceUser user,
                                                         final String index,
                                                         final String id) {
-        return database.transactionResult(configuration ->
-                Optional.of(DSL.using(configuration).select()
-                        .from(historyTable)
-                        .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
-                        .and(AnnotationHistory.ANNOTATION_ID_FIELD.equal(id))
-                        .fetch()
-                        .into(AnnotationHistory.class)
-                ).filter(a -> a.size() > 0));
+        return Optional.of(databaseRouter.forRead(user).select()
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.ANNOTATION_ID_FIELD.equal(id))
+                .fetch(HistoryContentCompressor::toHistory)
+        ).filter(a -> a.size() > 0);
+    }
+
+    @Override
+    public List<AnnotationHistory> getChanges(final ServiceUser user,
+                                              final String index,
+                                              final Long fromId,
+                                              final Integer limit) {
+        if (null != limit && limit < 1) {
+            throw new IllegalArgumentException("The limit of a page of changes must be at least 1");
+        }
+        final int pageLimit = Math.min(Optional.ofNullable(limit).orElse(FEED_PAGE_LIMIT), MAX_FEED_PAGE_LIMIT);
+
+        // Read first, so every point inserted before it is certainly in the page if it has committed
+        final Timestamp cutoff = SettledHistory.getCutoff(database, changeFeedConfig.getSettleTime().toMilliseconds());
+
+        return SettledHistory.takeSettled(database.select()
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.ID_FIELD.greaterThan(Optional.ofNullable(fromId).orElse(0L)))
+                .orderBy(AnnotationHistory.ID_FIELD)
+                .limit(pageLimit)
+                .fetch(), cutoff);
     }
 
     @Override
     public Optional<Annotation> create(final ServiceUser user,
                                        final String index,
-                                       final String id) {
-        return database.transactionResult(configuration -> {
+                                       final String id,
+                                       final Annotation initialState) {
+        final Optional<Annotation> initial = Optional.ofNullable(initialState);
+        final String content = initial.map(Annotation::getContent).orElse(Annotation.DEFAULT_CONTENT);
+        final String assignTo = initial.map(Annotation::getAssignTo).orElse(Annotation.DEFAULT_ASSIGNEE);
+        final String status = initial.map(Annotation::getStatus).orElse(Annotation.DEFAULT_STATUS).toString();
+
+        final List<AnnotationHistory> changes = new ArrayList<>();
+        final Optional<Annotation> result = database.transactionResult(configuration -> {
             final ULong now = ULong.valueOf(System.currentTimeMillis());
 
             DSL.using(configuration)
@@ -129,15 +267,22 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                             user.getName(),
                             now,
                             id,
-                            Annotation.DEFAULT_CONTENT,
-                            Annotation.DEFAULT_ASSIGNEE,
-                            Annotation.DEFAULT_STATUS.toString())
+                            content,
+                            assignTo,
+                            status)
                     .execute();
+            AnnotationCounts.add(configuration, index, status, assignTo, 1);
+            bloomFilters.add(index, id);
 
-            final Annotation currentState = updateHistoryAndReturn(configuration, index, id, HistoryOperation.CREATE);
+            final Annotation currentState = updateHistoryAndReturn(configuration, index, id, HistoryOperation.CREATE, changes);
 
             return Optional.ofNullable(currentState);
         });
+        databaseRouter.wrote(user);
+        searchResultCache.invalidate(index);
+        changes.forEach(changeBus::publish);
+
+        return result;
     }
 
     @Override
@@ -145,36 +290,413 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                                        final String index,
                                        final String id,
                                        final Annotation annotationUpdate) {
-        return database.transactionResult(configuration -> {
+        final String status = Optional.ofNullable(annotationUpdate.getStatus()).map(Object::toString).orElse(null);
+
+        final List<AnnotationHistory> changes = new ArrayList<>();
+        final Optional<Annotation> result = database.transactionResult(configuration -> {
             final ULong now = ULong.valueOf(System.currentTimeMillis());
 
+            // Locks the annotation, so the counts are moved from the group it was really in
+            final Record previous = DSL.using(configuration)
+                    .select(Annotation.STATUS_FIELD, Annotation.ASSIGN_TO_FIELD)
+                    .from(annotationTable)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .and(Annotation.ID_FIELD.equal(id))
+                    .forUpdate()
+                    .fetchOne();
+
+            if (null == previous) {
+                throw new Exception("Zero rows affected by the update");
+            }
+
             int rowsAffected = DSL.using(configuration)
                     .update(annotationTable)
                     .set(Annotation.ASSIGN_TO_FIELD, annotationUpdate.getAssignTo())
-                    .set(Annotation.STATUS_FIELD, Optional.ofNullable(annotationUpdate.getStatus()).map(Object::toString).orElse(null))
+                    .set(Annotation.STATUS_FIELD, status)
                     .set(Annotation.CONTENT_FIELD, annotationUpdate.getContent())
                     .set(DocRefJooqEntity.UPDATE_USER_FIELD, user.getName())
                     .set(DocRefJooqEntity.UPDATE_TIME_FIELD, now)
                     .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
                     .and(Annotation.ID_FIELD.equal(id))
+                    .andNot(hasState(annotationUpdate.getContent(), annotationUpdate.getAssignTo(), status))
                     .execute();
 
+            // The annotation exists, so it already had the given state, there is nothing to record
             if (rowsAffected == 0) {
-                throw new Exception("Zero rows affected by the update");
+                return Optional.ofNullable(getCurrentState(configuration, index, id));
+            }
+
+            removeCoalescedHistory(configuration, user, index, id, now.longValue());
+
+            final Annotation currentState = updateHistoryAndReturn(configuration, index, id, HistoryOperation.UPDATE, changes);
+            AnnotationCounts.move(configuration, index,
+                    previous.get(Annotation.STATUS_FIELD), previous.get(Annotation.ASSIGN_TO_FIELD),
+                    currentState.getStatus().toString(), currentState.getAssignTo());
+
+            return Optional.of(currentState);
+        });
+        if (!changes.isEmpty()) {
+            databaseRouter.wrote(user);
+            searchResultCache.invalidate(index);
+            changes.forEach(changeBus::publish);
+        }
+
+        return result;
+    }
+
+    /**
+     * Not a single INSERT ... ON DUPLICATE KEY UPDATE, as the history and counts depend on whether the annotation
+     * was created, and on the status and assignee it had before. The annotation is looked for without a lock, and
+     * inserted if it was missing. An insert that hits a duplicate key, or an annotation that was there, is locked
+     * and updated instead. A deadlocked attempt is retried, and finds the annotation there the next time.
+     */
+    @Override
+    public Optional<Annotation> upsert(final ServiceUser user,
+                                       final String index,
+                                       final String id,
+                                       final Annotation annotation) {
+        final String content = Optional.ofNullable(annotation.getContent()).orElse(Annotation.DEFAULT_CONTENT);
+        final String assignTo = Optional.ofNullable(annotation.getAssignTo()).orElse(Annotation.DEFAULT_ASSIGNEE);
+        final String status = Optional.ofNullable(annotation.getStatus()).orElse(Annotation.DEFAULT_STATUS).toString();
+
+        final List<AnnotationHistory> changes = new ArrayList<>();
+        Optional<Annotation> result;
+        for (int attempt = 1; ; attempt++) {
+            changes.clear();
+            try {
+                result = upsertTransaction(user, index, id, content, assignTo, status, changes);
+                break;
+            } catch (final DataAccessException e) {
+                if (attempt >= MAX_UPSERT_ATTEMPTS || !isDeadlock(e)) {
+                    throw e;
+                }
+                LOGGER.debug("Upsert of Annotation {} deadlocked, retrying", id);
+            }
+        }
+        if (!changes.isEmpty()) {
+            databaseRouter.wrote(user);
+            searchResultCache.invalidate(index);
+            changes.forEach(changeBus::publish);
+        }
+
+        return result;
+    }
+
+    private Optional<Annotation> upsertTransaction(final ServiceUser user,
+                                                   final String index,
+                                                   final String id,
+                                                   final String content,
+                                                   final String assignTo,
+                                                   final String status,
+                                                   final List<AnnotationHistory> changes) {
+        // Looked for outside of the transaction, so the transaction's snapshot is not taken until the annotation
+        // is locked, and the history it reads is the latest
+        final boolean existed = exists(index, id);
+
+        return database.transactionResult(configuration -> {
+            final ULong now = ULong.valueOf(System.currentTimeMillis());
+            final DSLContext context = DSL.using(configuration);
+
+            // A missing annotation is inserted without locking it first. Locking a missing row takes a gap lock,
+            // and two first upserts that both held the gap would deadlock as each inserted into it.
+            Record previous = null;
+            if (existed) {
+                previous = lockState(context, index, id, content, assignTo, status);
+            }
+            if (null == previous) {
+                if (insert(context, user, index, id, content, assignTo, status, now)) {
+                    AnnotationCounts.add(configuration, index, status, assignTo, 1);
+                    bloomFilters.add(index, id);
+                    return Optional.ofNullable(updateHistoryAndReturn(configuration, index, id, HistoryOperation.CREATE, changes));
+                }
+
+                // Created by someone else since it was looked for, so it is an update after all
+                previous = lockState(context, index, id, content, assignTo, status);
+                if (null == previous) {
+                    throw new Exception("The annotation was deleted while it was being upserted");
+                }
             }
 
-            final Annotation currentState = updateHistoryAndReturn(configuration, index, id, HistoryOperation.UPDATE);
+            if (Boolean.TRUE.equals(previous.get(UNCHANGED_FIELD, Boolean.class))) {
+                // A locking read, as the snapshot of this transaction may predate the annotation
+                return Optional.ofNullable(context.select()
+                        .from(annotationTable)
+                        .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                        .and(Annotation.ID_FIELD.equal(id))
+                        .forUpdate()
+                        .fetchOneInto(Annotation.class));
+            }
+
+            context.update(annotationTable)
+                    .set(Annotation.CONTENT_FIELD, content)
+                    .set(Annotation.ASSIGN_TO_FIELD, assignTo)
+                    .set(Annotation.STATUS_FIELD, status)
+                    .set(DocRefJooqEntity.UPDATE_USER_FIELD, user.getName())
+                    .set(DocRefJooqEntity.UPDATE_TIME_FIELD, now)
+                    .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                    .and(Annotation.ID_FIELD.equal(id))
+                    .execute();
+
+            removeCoalescedHistory(configuration, user, index, id, now.longValue());
+
+            final Annotation currentState = updateHistoryAndReturn(configuration, index, id, HistoryOperation.UPDATE, changes);
+            AnnotationCounts.move(configuration, index,
+                    previous.get(Annotation.STATUS_FIELD), previous.get(Annotation.ASSIGN_TO_FIELD),
+                    status, assignTo);
 
             return Optional.of(currentState);
         });
     }
 
+    /**
+     * A consistent read, so it takes no locks
+     */
+    private boolean exists(final String index,
+                           final String id) {
+        return database.fetchExists(database.selectOne()
+                .from(annotationTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(Annotation.ID_FIELD.equal(id)));
+    }
+
+    /**
+     * Locks an existing annotation, so the counts are moved from the group it was really in
+     * @return Its status and assignee, and whether it already has the given state, null if it does not exist
+     */
+    private Record lockState(final DSLContext context,
+                             final String index,
+                             final String id,
+                             final String content,
+                             final String assignTo,
+                             final String status) {
+        return context.select(Annotation.STATUS_FIELD,
+                        Annotation.ASSIGN_TO_FIELD,
+                        DSL.field(hasState(content, assignTo, status)).as(UNCHANGED_FIELD))
+                .from(annotationTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(Annotation.ID_FIELD.equal(id))
+                .forUpdate()
+                .fetchOne();
+    }
+
+    /**
+     * Insert an annotation, unless one with the same ID already exists
+     * @return True if it was inserted
+     */
+    private boolean insert(final DSLContext context,
+                           final ServiceUser user,
+                           final String index,
+                           final String id,
+                           final String content,
+                           final String assignTo,
+                           final String status,
+                           final ULong now) {
+        try {
+            context.insertInto(annotationTable)
+                    .columns(
+                            QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                            DocRefJooqEntity.CREATE_USER_FIELD,
+                            DocRefJooqEntity.CREATE_TIME_FIELD,
+                            DocRefJooqEntity.UPDATE_USER_FIELD,
+                            DocRefJooqEntity.UPDATE_TIME_FIELD,
+                            Annotation.ID_FIELD,
+                            Annotation.CONTENT_FIELD,
+                            Annotation.ASSIGN_TO_FIELD,
+                            Annotation.STATUS_FIELD)
+                    .values(index,
+                            user.getName(),
+                            now,
+                            user.getName(),
+                            now,
+                            id,
+                            content,
+                            assignTo,
+                            status)
+                    .execute();
+            return true;
+        } catch (final DataAccessException e) {
+            // Only the failed statement is rolled back, so the transaction carries on
+            if (isDuplicateKey(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isDuplicateKey(final DataAccessException e) {
+        return getErrorCode(e) == DUPLICATE_KEY_ERROR;
+    }
+
+    private static boolean isDeadlock(final DataAccessException e) {
+        return getErrorCode(e) == DEADLOCK_ERROR;
+    }
+
+    private static int getErrorCode(final DataAccessException e) {
+        for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                return ((SQLException) cause).getErrorCode();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int updateAll(final ServiceUser user,
+                         final String index,
+                         final BulkUpdateDTO update) {
+        if (null == update.getExpression() && null == update.getIds()) {
+            throw new IllegalArgumentException("A bulk update must select annotations by expression or ID");
+        }
+        if (null == update.getStatus() && null == update.getAssignTo()) {
+            throw new IllegalArgumentException("A bulk update must give a status or assignee");
+        }
+
+        final String status = Optional.ofNullable(update.getStatus()).map(Object::toString).orElse(null);
+
+        Condition selected = QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index)
+                .and(AnnotationsQueryServiceImpl.getCondition(update.getExpression()));
+        if (null != update.getIds()) {
+            selected = selected.and(Annotation.ID_FIELD.in(update.getIds()));
+        }
+        // Annotations that already have the target state are left alone, so each chunk makes progress.
+        // Compared null safely, as a plain comparison with a null assignee is null, which would skip the annotation
+        Condition alreadyDone = DSL.trueCondition();
+        if (null != status) {
+            alreadyDone = alreadyDone.and(Annotation.STATUS_FIELD.isNotDistinctFrom(status));
+        }
+        if (null != update.getAssignTo()) {
+            alreadyDone = alreadyDone.and(Annotation.ASSIGN_TO_FIELD.isNotDistinctFrom(update.getAssignTo()));
+        }
+        final Condition toUpdate = selected.andNot(alreadyDone);
+
+        int recordsUpdated = 0;
+        int chunkSize;
+        String lastId = "";
+        do {
+            final String fromId = lastId;
+            final List<AnnotationHistory> changes = new ArrayList<>();
+            final List<String> chunk = database.transactionResult(configuration ->
+                    updateChunk(configuration, user, index, toUpdate.and(Annotation.ID_FIELD.greaterThan(fromId)),
+                            status, update.getAssignTo(), changes));
+
+            chunkSize = chunk.size();
+            if (chunkSize > 0) {
+                recordsUpdated += chunkSize;
+                lastId = chunk.get(chunkSize - 1);
+
+                databaseRouter.wrote(user);
+                searchResultCache.invalidate(index);
+                changes.forEach(changeBus::publish);
+            }
+        } while (chunkSize == BULK_UPDATE_CHUNK_SIZE);
+
+        LOGGER.info(String.format("Bulk update of %d annotations in %s", recordsUpdated, index));
+
+        return recordsUpdated;
+    }
+
+    /**
+     * Update one chunk of a bulk update with a single UPDATE, and take the history points of the chunk with a
+     * single INSERT ... SELECT
+     * @return The IDs of the annotations updated, in order
+     */
+    private List<String> updateChunk(final Configuration jooqConfiguration,
+                                     final ServiceUser user,
+                                     final String index,
+                                     final Condition toUpdate,
+                                     final String status,
+                                     final String assignTo,
+                                     final List<AnnotationHistory> changes) {
+        final DSLContext context = DSL.using(jooqConfiguration);
+        final ULong now = ULong.valueOf(System.currentTimeMillis());
+
+        // Locks the chunk, so the counts are moved from the groups the annotations were really in
+        final List<Record> previous = context.select(Annotation.ID_FIELD, Annotation.STATUS_FIELD, Annotation.ASSIGN_TO_FIELD)
+                .from(annotationTable)
+                .where(toUpdate)
+                .orderBy(Annotation.ID_FIELD)
+                .limit(BULK_UPDATE_CHUNK_SIZE)
+                .forUpdate()
+                .fetch();
+        if (previous.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<String> ids = previous.stream()
+                .map(r -> r.get(Annotation.ID_FIELD))
+                .collect(Collectors.toList());
+        final Condition inChunk = QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index)
+                .and(Annotation.ID_FIELD.in(ids));
+
+        context.update(annotationTable)
+                .set(Annotation.STATUS_FIELD, null != status ? DSL.val(status) : Annotation.STATUS_FIELD)
+                .set(Annotation.ASSIGN_TO_FIELD, null != assignTo ? DSL.val(assignTo) : Annotation.ASSIGN_TO_FIELD)
+                .set(DocRefJooqEntity.UPDATE_USER_FIELD, user.getName())
+                .set(DocRefJooqEntity.UPDATE_TIME_FIELD, now)
+                .where(inChunk)
+                .execute();
+
+        context.insertInto(historyTable,
+                        QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                        DocRefJooqEntity.CREATE_USER_FIELD,
+                        DocRefJooqEntity.CREATE_TIME_FIELD,
+                        DocRefJooqEntity.UPDATE_USER_FIELD,
+                        DocRefJooqEntity.UPDATE_TIME_FIELD,
+                        AnnotationHistory.OPERATION_FIELD,
+                        AnnotationHistory.ANNOTATION_ID_FIELD,
+                        Annotation.CONTENT_FIELD,
+                        AnnotationHistory.COMPRESSED_CONTENT_FIELD,
+                        Annotation.ASSIGN_TO_FIELD,
+                        Annotation.STATUS_FIELD)
+                .select(context.select(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD,
+                        DocRefJooqEntity.CREATE_USER_FIELD,
+                        DocRefJooqEntity.CREATE_TIME_FIELD,
+                        DocRefJooqEntity.UPDATE_USER_FIELD,
+                        DocRefJooqEntity.UPDATE_TIME_FIELD,
+                        DSL.val(HistoryOperation.UPDATE.toString()),
+                        Annotation.ID_FIELD,
+                        historyContentCompressor.contentField(Annotation.CONTENT_FIELD),
+                        historyContentCompressor.compressedContentField(Annotation.CONTENT_FIELD),
+                        Annotation.ASSIGN_TO_FIELD,
+                        Annotation.STATUS_FIELD)
+                        .from(annotationTable)
+                        .where(inChunk)
+                        .orderBy(Annotation.ID_FIELD))
+                .execute();
+
+        // The first ID generated by the INSERT ... SELECT, read back so the changes can be published
+        final long firstHistoryId = context.lastID().longValue();
+        changes.addAll(context.select()
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.ID_FIELD.greaterOrEqual(firstHistoryId))
+                .and(AnnotationHistory.OPERATION_FIELD.equal(HistoryOperation.UPDATE.toString()))
+                .and(AnnotationHistory.ANNOTATION_ID_FIELD.in(ids))
+                .orderBy(AnnotationHistory.ID_FIELD)
+                .fetch(HistoryContentCompressor::toHistory));
+        kafkaPublisher.addAllToOutbox(jooqConfiguration, changes);
+
+        // All the moves of the chunk are applied together, so the count rows are locked in order
+        final Map<List<String>, Long> deltas = new HashMap<>();
+        previous.forEach(r -> {
+            final String fromStatus = r.get(Annotation.STATUS_FIELD);
+            final String fromAssignTo = r.get(Annotation.ASSIGN_TO_FIELD);
+            deltas.merge(Arrays.asList(fromStatus, fromAssignTo), -1L, Long::sum);
+            deltas.merge(Arrays.asList(null != status ? status : fromStatus, null != assignTo ? assignTo : fromAssignTo),
+                    1L, Long::sum);
+        });
+        AnnotationCounts.addAll(jooqConfiguration, index, deltas);
+
+        return ids;
+    }
+
     @Override
     public Optional<Boolean> remove(final ServiceUser user,
                                     final String index,
                                     final String id) {
-        return database.transactionResult(configuration -> {
-            takeAnnotationHistoryDelete(user, configuration, index, id);
+        final List<AnnotationHistory> changes = new ArrayList<>();
+        final Optional<Boolean> result = database.transactionResult(configuration -> {
+            final Annotation removed = takeAnnotationHistoryDelete(user, configuration, index, id, changes);
 
             int rowsAffected = DSL.using(configuration).deleteFrom(annotationTable)
                     .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
@@ -184,21 +706,90 @@ public class AnnotationsServiceImpl implements AnnotationsService {
             if (rowsAffected == 0) {
                 throw new Exception("Zero rows affected by the update");
             }
+            AnnotationCounts.add(configuration, index, removed.getStatus().toString(), removed.getAssignTo(), -1);
 
             return Optional.of(Boolean.TRUE);
         });
+        databaseRouter.wrote(user);
+        searchResultCache.invalidate(index);
+        changes.forEach(changeBus::publish);
+
+        return result;
     }
 
-    private Annotation updateHistoryAndReturn(final Configuration jooqConfiguration,
+    /**
+     * If the latest history point of the annotation is an update by the same user within the coalescing window,
+     * remove it, so that the history point about to be written for this update takes its place. It is replaced
+     * rather than amended, so that readers of the change feed and Kafka who have already seen it are given
+     * the new state under a new history ID.
+     */
+    private void removeCoalescedHistory(final Configuration jooqConfiguration,
+                                        final ServiceUser user,
                                         final String index,
                                         final String id,
-                                        final HistoryOperation operation) {
-        final Annotation currentState = DSL.using(jooqConfiguration)
+                                        final long now) {
+        final long window = historyCoalescingConfig.getWindowMillis(index);
+        if (window <= 0) {
+            return;
+        }
+
+        final Record latest = DSL.using(jooqConfiguration)
+                .select(AnnotationHistory.ID_FIELD,
+                        AnnotationHistory.OPERATION_FIELD,
+                        DocRefJooqEntity.UPDATE_USER_FIELD,
+                        DocRefJooqEntity.UPDATE_TIME_FIELD)
+                .from(historyTable)
+                .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
+                .and(AnnotationHistory.ANNOTATION_ID_FIELD.equal(id))
+                .orderBy(AnnotationHistory.ID_FIELD.desc())
+                .limit(1)
+                .fetchOne();
+
+        if (null == latest
+                || !HistoryOperation.UPDATE.toString().equals(latest.get(AnnotationHistory.OPERATION_FIELD))
+                || !user.getName().equals(latest.get(DocRefJooqEntity.UPDATE_USER_FIELD))
+                || latest.get(DocRefJooqEntity.UPDATE_TIME_FIELD).longValue() < now - window) {
+            return;
+        }
+
+        final long historyId = latest.get(AnnotationHistory.ID_FIELD);
+        DSL.using(jooqConfiguration)
+                .deleteFrom(historyTable)
+                .where(AnnotationHistory.ID_FIELD.equal(historyId))
+                .execute();
+        kafkaPublisher.removeFromOutbox(jooqConfiguration, historyId);
+
+        LOGGER.trace(String.format("History Point %d coalesced for Annotation %s", historyId, id));
+    }
+
+    /**
+     * @return A condition that is true if the annotation already has the given state, compared null safely
+     */
+    private static Condition hasState(final String content,
+                                      final String assignTo,
+                                      final String status) {
+        return Annotation.CONTENT_FIELD.isNotDistinctFrom(content)
+                .and(Annotation.ASSIGN_TO_FIELD.isNotDistinctFrom(assignTo))
+                .and(Annotation.STATUS_FIELD.isNotDistinctFrom(status));
+    }
+
+    private Annotation getCurrentState(final Configuration jooqConfiguration,
+                                       final String index,
+                                       final String id) {
+        return DSL.using(jooqConfiguration)
                 .select()
                 .from(annotationTable)
                 .where(QueryableJooqEntity.DATA_SOURCE_UUID_FIELD.equal(index))
                 .and(Annotation.ID_FIELD.equal(id))
                 .fetchOneInto(Annotation.class);
+    }
+
+    private Annotation updateHistoryAndReturn(final Configuration jooqConfiguration,
+                                        final String index,
+                                        final String id,
+                                        final HistoryOperation operation,
+                                        final List<AnnotationHistory> changes) {
+        final Annotation currentState = getCurrentState(jooqConfiguration, index, id);
 
         Objects.requireNonNull(currentState);
 
@@ -213,6 +804,7 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                         AnnotationHistory.OPERATION_FIELD,
                         AnnotationHistory.ANNOTATION_ID_FIELD,
                         Annotation.CONTENT_FIELD,
+                        AnnotationHistory.COMPRESSED_CONTENT_FIELD,
                         Annotation.ASSIGN_TO_FIELD,
                         Annotation.STATUS_FIELD)
                 .values(currentState.getDataSourceUuid(),
@@ -222,20 +814,26 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                         ULong.valueOf(currentState.getUpdateTime()),
                         operation.toString(),
                         currentState.getId(),
-                        currentState.getContent(),
+                        historyContentCompressor.content(currentState.getContent()),
+                        historyContentCompressor.compressedContent(currentState.getContent()),
                         currentState.getAssignTo(),
                         currentState.getStatus().toString())
                 .execute();
 
+        final AnnotationHistory change = toHistory(jooqConfiguration, currentState, operation);
+        kafkaPublisher.addToOutbox(jooqConfiguration, change);
+        changes.add(change);
+
         LOGGER.trace(String.format("History Point Taken for Annotation %s", currentState.getId()));
 
         return currentState;
     }
 
-    private void takeAnnotationHistoryDelete(final ServiceUser user,
-                                             final Configuration jooqConfiguration,
-                                             final String index,
-                                             final String id) {
+    private Annotation takeAnnotationHistoryDelete(final ServiceUser user,
+                                                   final Configuration jooqConfiguration,
+                                                   final String index,
+                                                   final String id,
+                                                   final List<AnnotationHistory> changes) {
         final Annotation currentState = DSL.using(jooqConfiguration)
                 .select()
                 .from(annotationTable)
@@ -254,6 +852,7 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                         AnnotationHistory.OPERATION_FIELD,
                         AnnotationHistory.ANNOTATION_ID_FIELD,
                         Annotation.CONTENT_FIELD,
+                        AnnotationHistory.COMPRESSED_CONTENT_FIELD,
                         Annotation.ASSIGN_TO_FIELD,
                         Annotation.STATUS_FIELD)
                 .values(currentState.getDataSourceUuid(),
@@ -263,11 +862,42 @@ public class AnnotationsServiceImpl implements AnnotationsService {
                         ULong.valueOf(currentState.getUpdateTime()),
                         HistoryOperation.DELETE.toString(),
                         currentState.getId(),
-                        currentState.getContent(),
+                        historyContentCompressor.content(currentState.getContent()),
+                        historyContentCompressor.compressedContent(currentState.getContent()),
                         currentState.getAssignTo(),
                         currentState.getStatus().toString())
                 .execute();
 
+        final AnnotationHistory change = toHistory(jooqConfiguration, currentState, HistoryOperation.DELETE);
+        kafkaPublisher.addToOutbox(jooqConfiguration, change);
+        changes.add(change);
+
         LOGGER.trace(String.format("History Point Taken for Annotation %s", id));
+
+        return currentState;
+    }
+
+    /**
+     * Build the history point that was just inserted for an annotation, so it can be published once committed.
+     * Must be called directly after the insert, as it picks up the generated ID from the same connection.
+     */
+    private AnnotationHistory toHistory(final Configuration jooqConfiguration,
+                                        final Annotation currentState,
+                                        final HistoryOperation operation) {
+        final AnnotationHistory history = new AnnotationHistory.Builder()
+                .id(DSL.using(jooqConfiguration).lastID().longValue())
+                .operation(operation)
+                .annotationId(currentState.getId())
+                .assignTo(currentState.getAssignTo())
+                .status(currentState.getStatus())
+                .content(currentState.getContent())
+                .dataSourceUuid(currentState.getDataSourceUuid())
+                .build();
+        history.setCreateUser(currentState.getCreateUser());
+        history.setCreateTime(currentState.getCreateTime());
+        history.setUpdateUser(currentState.getUpdateUser());
+        history.setUpdateTime(currentState.getUpdateTime());
+
+        return history;
     }
 }
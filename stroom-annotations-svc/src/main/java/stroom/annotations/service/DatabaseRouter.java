@@ -0,0 +1,68 @@
+package stroom.annotations.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jooq.DSLContext;
+import stroom.annotations.config.ReadRoutingConfig;
+import stroom.query.audit.security.ServiceUser;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the database to read annotations from.
+ *
+ * Reads go to the read replica when one is configured, except for users who have written recently, whose reads
+ * are pinned to the primary for a short window so they always see their own changes.
+ */
+@Singleton
+public class DatabaseRouter {
+    private final DSLContext primary;
+
+    private volatile DSLContext replica;
+
+    private final Cache<String, Boolean> recentWriters;
+
+    @Inject
+    public DatabaseRouter(final DSLContext primary,
+                          final ReadRoutingConfig config) {
+        this.primary = primary;
+        this.recentWriters = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getPrimaryPinWindow().toMilliseconds(), TimeUnit.MILLISECONDS)
+                .maximumSize(config.getMaximumPinnedUsers())
+                .build();
+    }
+
+    /**
+     * @param replica The read replica to route reads to, set at startup if a read database is configured
+     */
+    public void setReplica(final DSLContext replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * @param user The user making the read, null for reads made on behalf of the service itself
+     * @return The database to read from
+     */
+    public DSLContext forRead(final ServiceUser user) {
+        final DSLContext currentReplica = replica;
+        if (null == currentReplica
+                || null == user
+                || null != recentWriters.getIfPresent(user.getName())) {
+            return primary;
+        }
+
+        return currentReplica;
+    }
+
+    /**
+     * Pin the reads of the user to the primary, should be called once their write has committed
+     * @param user The user that made the write
+     */
+    public void wrote(final ServiceUser user) {
+        if (null != replica) {
+            recentWriters.put(user.getName(), Boolean.TRUE);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package stroom.annotations.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.jooq.Condition;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.impl.DSL;
+import stroom.annotations.config.HistoryCompressionConfig;
+import stroom.annotations.model.AnnotationHistory;
+import stroom.annotations.model.CompressedContent;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Decides how the content of each history point is stored. Content at least as long as the configured minimum is
+ * compressed into the compressedContent column, leaving content null, anything shorter is stored as it is.
+ * History read back is mapped by {@link #toHistory(Record)}, which decompresses it again.
+ *
+ * The counters record the size of the content compressed here before and after, to show what is being saved.
+ */
+@Singleton
+public class HistoryContentCompressor {
+    private final HistoryCompressionConfig config;
+
+    private final Counter uncompressedBytes;
+    private final Counter compressedBytes;
+
+    @Inject
+    public HistoryContentCompressor(final HistoryCompressionConfig config,
+                                    final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.uncompressedBytes = metricRegistry.counter(MetricRegistry.name(HistoryContentCompressor.class, "uncompressedBytes"));
+        this.compressedBytes = metricRegistry.counter(MetricRegistry.name(HistoryContentCompressor.class, "compressedBytes"));
+    }
+
+    /**
+     * @param content The content of the annotation
+     * @return The value for the content column of the history
+     */
+    public String content(final String content) {
+        return shouldCompress(content) ? null : content;
+    }
+
+    /**
+     * @param content The content of the annotation
+     * @return The value for the compressedContent column of the history
+     */
+    public byte[] compressedContent(final String content) {
+        if (!shouldCompress(content)) {
+            return null;
+        }
+
+        final byte[] compressed = CompressedContent.compress(content);
+        uncompressedBytes.inc(content.length());
+        compressedBytes.inc(compressed.length);
+        return compressed;
+    }
+
+    /**
+     * For history copied from the annotations by INSERT ... SELECT
+     * @param content The content column of the annotations
+     * @return The value for the content column of the history
+     */
+    public Field<String> contentField(final Field<String> content) {
+        if (!config.isEnabled()) {
+            return content;
+        }
+
+        return DSL.decode()
+                .when(shouldCompress(content), DSL.val(null, String.class))
+                .otherwise(content);
+    }
+
+    /**
+     * For history copied from the annotations by INSERT ... SELECT, compressed by the database in the same format
+     * @param content The content column of the annotations
+     * @return The value for the compressedContent column of the history
+     */
+    public Field<byte[]> compressedContentField(final Field<String> content) {
+        if (!config.isEnabled()) {
+            return DSL.val(null, byte[].class);
+        }
+
+        return DSL.decode()
+                .when(shouldCompress(content), DSL.field("compress({0})", byte[].class, content))
+                .otherwise(DSL.val(null, byte[].class));
+    }
+
+    /**
+     * Map a row of the history, with its content decompressed if it was stored compressed
+     * @param record The row, selected with its compressedContent column
+     * @return The history point
+     */
+    public static AnnotationHistory toHistory(final Record record) {
+        final AnnotationHistory history = record.into(AnnotationHistory.class);
+        final byte[] compressedContent = record.get(AnnotationHistory.COMPRESSED_CONTENT_FIELD);
+        if (null == history.getContent() && null != compressedContent) {
+            history.setContent(CompressedContent.decompress(compressedContent));
+        }
+        return history;
+    }
+
+    private boolean shouldCompress(final String content) {
+        return config.isEnabled() && null != content && content.length() >= config.getMinimumLength();
+    }
+
+    private Condition shouldCompress(final Field<String> content) {
+        return DSL.length(content).greaterOrEqual(config.getMinimumLength());
+    }
+}
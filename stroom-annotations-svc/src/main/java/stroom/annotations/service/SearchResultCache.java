@@ -0,0 +1,97 @@
+package stroom.annotations.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import stroom.annotations.config.SearchResultCacheConfig;
+import stroom.query.api.v2.Result;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches query API results, so that dashboards re-issuing the same search on a timer are served from memory.
+ *
+ * Each index has a generation that is part of every cache key, and any change to the annotations of an index
+ * moves it on to the next generation, so results computed before the change are never served after it.
+ * A search that was already running when the change was made stores its result under the old generation,
+ * where it will not be found.
+ */
+@Singleton
+public class SearchResultCache {
+
+    private final SearchResultCacheConfig config;
+
+    private final Cache<List<Object>, Result> results;
+
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final Meter hits;
+    private final Meter misses;
+
+    @Inject
+    public SearchResultCache(final SearchResultCacheConfig config,
+                             final MetricRegistry metricRegistry) {
+        this.config = config;
+        this.results = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getTimeToLive().toMilliseconds(), TimeUnit.MILLISECONDS)
+                .build();
+        this.hits = metricRegistry.meter(MetricRegistry.name(SearchResultCache.class, "hits"));
+        this.misses = metricRegistry.meter(MetricRegistry.name(SearchResultCache.class, "misses"));
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * @param index The index being searched
+     * @param query Everything else that determines the result, the parts must implement equals and hashCode
+     * @param search Runs the search if the result is not cached
+     * @return The result of the search
+     */
+    public Result get(final String index,
+                      final List<Object> query,
+                      final Supplier<Result> search) {
+        if (!config.isEnabled()) {
+            return search.get();
+        }
+
+        final List<Object> key = new ArrayList<>(query.size() + 2);
+        key.add(index);
+        key.add(getGeneration(index).get());
+        key.addAll(query);
+
+        final Result cached = results.getIfPresent(key);
+        if (null != cached) {
+            hits.mark();
+            return cached;
+        }
+        misses.mark();
+
+        final Result result = search.get();
+        results.put(key, result);
+        return result;
+    }
+
+    /**
+     * Stop serving cached results for an index, should be called once a change to it has committed
+     * @param index The index that changed
+     */
+    public void invalidate(final String index) {
+        getGeneration(index).incrementAndGet();
+    }
+
+    private AtomicLong getGeneration(final String index) {
+        return generations.computeIfAbsent(index, i -> new AtomicLong());
+    }
+}
@@ -0,0 +1,56 @@
+package stroom.annotations.service;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.impl.DSL;
+import stroom.annotations.model.AnnotationHistory;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * History IDs are handed out when a history point is inserted, but the point only becomes visible when its
+ * transaction commits, so points do not become visible in ID order. A reader that has seen ID n, and from then
+ * on only asks for IDs after n, would never see a lower ID that committed after n did.
+ *
+ * Readers that follow the history by ID therefore only move past points that were inserted at least the settle
+ * time ago. By then the transaction of any lower ID is assumed to have committed or rolled back. This delays what
+ * they see by up to the settle time, but nothing is skipped as long as no transaction commits more than the settle
+ * time after writing its history.
+ */
+public final class SettledHistory {
+
+    private SettledHistory() {
+    }
+
+    /**
+     * @param context Where the history is read from
+     * @param settleMillis The settle time
+     * @return The insert time points must be at or before to have settled, by the database's clock
+     */
+    public static Timestamp getCutoff(final DSLContext context,
+                                      final long settleMillis) {
+        return context.select(DSL.field("now(3) - interval {0} microsecond", Timestamp.class, DSL.val(settleMillis * 1000)))
+                .fetchOne(0, Timestamp.class);
+    }
+
+    /**
+     * @param records History in ID order, selected with its insert time
+     * @param cutoff From {@link #getCutoff(DSLContext, long)}, read before the history
+     * @return The history up to the first point that has not settled
+     */
+    public static List<AnnotationHistory> takeSettled(final Result<Record> records,
+                                                      final Timestamp cutoff) {
+        final List<AnnotationHistory> settled = new ArrayList<>();
+        for (final Record record : records) {
+            final Timestamp insertTime = record.get(AnnotationHistory.INSERT_TIME_FIELD);
+            if (null == insertTime || insertTime.after(cutoff)) {
+                break;
+            }
+            settled.add(HistoryContentCompressor.toHistory(record));
+        }
+        return settled;
+    }
+}
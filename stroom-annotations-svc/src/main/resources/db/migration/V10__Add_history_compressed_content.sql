@@ -0,0 +1,4 @@
+-- Long history content can be stored compressed instead of in the content column, in the format of the
+-- COMPRESS() function, so it can still be read directly with UNCOMPRESS(compressedContent). At most one of
+-- the two columns is set. The annotation table is not compressed, its content is what searches match on.
+ALTER TABLE annotation_history ADD COLUMN compressedContent BLOB;
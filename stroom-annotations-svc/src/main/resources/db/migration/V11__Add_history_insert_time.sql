@@ -0,0 +1,4 @@
+-- The time each history point was inserted, set by the database. Readers that follow the history by ID only move
+-- past points inserted at least the settle time ago, so a point whose transaction commits after a later ID's is
+-- never skipped. Existing rows take the time of the migration.
+ALTER TABLE annotation_history ADD COLUMN insertTime TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3);
@@ -0,0 +1,2 @@
+-- Lets the change feed page through the history of a single index by its auto-increment ID
+CREATE INDEX history_feed_idx ON annotation_history (dataSourceUuid, id);
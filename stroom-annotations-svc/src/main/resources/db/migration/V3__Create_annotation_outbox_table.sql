@@ -0,0 +1,5 @@
+-- History points waiting to be published to Kafka, written in the same transaction as the history itself
+CREATE TABLE annotation_outbox (
+    historyId       INT NOT NULL,
+    PRIMARY KEY     (historyId)
+) ENGINE=InnoDB DEFAULT CHARSET latin1;
@@ -0,0 +1,14 @@
+-- Pre-aggregated counts of the annotations in each index by status and assignee, so that workload
+-- dashboards can be served without scanning the annotations. A null assignee is counted as ''.
+CREATE TABLE annotation_count (
+    dataSourceUuid  VARCHAR(255) NOT NULL,
+    status          VARCHAR(255) NOT NULL,
+    assignTo        VARCHAR(255) NOT NULL,
+    annotationCount BIGINT NOT NULL,
+    PRIMARY KEY     (dataSourceUuid, status, assignTo)
+) ENGINE=InnoDB DEFAULT CHARSET latin1;
+
+INSERT INTO annotation_count (dataSourceUuid, status, assignTo, annotationCount)
+    SELECT dataSourceUuid, status, COALESCE(assignTo, ''), COUNT(*)
+    FROM annotation
+    GROUP BY dataSourceUuid, status, COALESCE(assignTo, '');
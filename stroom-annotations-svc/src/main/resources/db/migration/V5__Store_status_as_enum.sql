@@ -0,0 +1,54 @@
+-- Store the status as a one byte code rather than the name of the status. The ENUM is the mapping
+-- between the codes and the values of stroom.annotations.model.Status, so the names are still what
+-- is read and written. The codes follow the order of the values, so new values must only ever be
+-- appended, in the Java enum and in a new migration.
+ALTER TABLE annotation
+    MODIFY status ENUM(
+        'QUEUED',
+        'CLOSED_DATA_ERROR',
+        'CLOSED_DUPLICATE',
+        'CLOSED_INCIDENT_RAISED',
+        'CLOSED_LEGITIMATE_BEHAVIOUR',
+        'CLOSED_PASSED_TO_CONTENT_DEVELOPMENT',
+        'CLOSED_TRENDED',
+        'OPEN_CHANGE_COMMENT',
+        'OPEN_ESCALATED',
+        'OPEN_GUIDANCE_REQUIRED',
+        'OPEN_MONITORING_EVENT',
+        'OPEN_PASSED_TO_AUDIT',
+        'OPEN_PASSED_TO_ITAD'
+    ) NOT NULL;
+
+ALTER TABLE annotation_history
+    MODIFY status ENUM(
+        'QUEUED',
+        'CLOSED_DATA_ERROR',
+        'CLOSED_DUPLICATE',
+        'CLOSED_INCIDENT_RAISED',
+        'CLOSED_LEGITIMATE_BEHAVIOUR',
+        'CLOSED_PASSED_TO_CONTENT_DEVELOPMENT',
+        'CLOSED_TRENDED',
+        'OPEN_CHANGE_COMMENT',
+        'OPEN_ESCALATED',
+        'OPEN_GUIDANCE_REQUIRED',
+        'OPEN_MONITORING_EVENT',
+        'OPEN_PASSED_TO_AUDIT',
+        'OPEN_PASSED_TO_ITAD'
+    ) NOT NULL;
+
+ALTER TABLE annotation_count
+    MODIFY status ENUM(
+        'QUEUED',
+        'CLOSED_DATA_ERROR',
+        'CLOSED_DUPLICATE',
+        'CLOSED_INCIDENT_RAISED',
+        'CLOSED_LEGITIMATE_BEHAVIOUR',
+        'CLOSED_PASSED_TO_CONTENT_DEVELOPMENT',
+        'CLOSED_TRENDED',
+        'OPEN_CHANGE_COMMENT',
+        'OPEN_ESCALATED',
+        'OPEN_GUIDANCE_REQUIRED',
+        'OPEN_MONITORING_EVENT',
+        'OPEN_PASSED_TO_AUDIT',
+        'OPEN_PASSED_TO_ITAD'
+    ) NOT NULL;
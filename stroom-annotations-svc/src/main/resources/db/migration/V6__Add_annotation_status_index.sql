@@ -0,0 +1,3 @@
+-- Covers the bulk existence check, which only needs the ID and status of each annotation, so that it
+-- can be answered from this narrow index rather than from the full rows of the primary key.
+CREATE INDEX annotation_status_idx ON annotation (dataSourceUuid, id, status);
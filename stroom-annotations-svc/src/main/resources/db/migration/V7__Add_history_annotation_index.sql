@@ -0,0 +1,2 @@
+-- Finds the history of a single annotation, and its latest history point, without scanning the whole index
+CREATE INDEX history_annotation_idx ON annotation_history (dataSourceUuid, annotationId, id);
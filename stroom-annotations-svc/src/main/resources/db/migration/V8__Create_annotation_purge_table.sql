@@ -0,0 +1,7 @@
+-- Indexes whose document has been deleted, and whose annotations are still to be purged in the background.
+-- Kept in the database, so a purge carries on where it left off after a restart.
+CREATE TABLE annotation_purge (
+    dataSourceUuid  VARCHAR(255) NOT NULL,
+    requestTime     BIGINT UNSIGNED NOT NULL,
+    PRIMARY KEY     (dataSourceUuid)
+) ENGINE=InnoDB DEFAULT CHARSET latin1;